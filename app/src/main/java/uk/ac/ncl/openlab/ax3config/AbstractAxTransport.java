@@ -0,0 +1,197 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Line-oriented I/O common to all Open Movement AX3 Device transports
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public abstract class AbstractAxTransport implements AxTransport {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Metrics (null when not recording)
+    protected volatile AxMetrics metrics = null;
+
+    public void setMetrics(AxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Device ID from a USB serial number string (e.g. "AX3_12345" or "CWA17_12345"), or -1
+    protected static int parseSerialNumber(String usbSerial) {
+        if (usbSerial == null) return -1;
+        String serial = usbSerial.trim();
+        if (!serial.startsWith("AX") && !serial.startsWith("CWA"))
+            return -1;
+        for (int i = serial.length() - 1; ; i--) {
+            if (i < 0 || !Character.isDigit(serial.charAt(i))) {
+                if (i + 1 >= serial.length()) {
+                    return -1;
+                }
+                return Integer.parseInt(serial.substring(i + 1));
+            }
+        }
+    }
+
+    // Read bytes
+    public int read(byte[] buffer, int timeoutMS) {
+        return read(buffer, timeoutMS, false);
+    }
+
+    // Line framing (partial lines are kept between reads) and a reusable read buffer
+    private final AxLineFramer framer = new AxLineFramer();
+    private byte[] readBuffer = new byte[64];
+
+    // Size of each read while framing lines (e.g. a multiple of the transport's packet size; set before reading)
+    protected void setReadSize(int size) {
+        if (readBuffer.length != size) {
+            readBuffer = new byte[Math.max(size, 1)];
+        }
+    }
+
+    // Read line-by-line, up to one beginning with a final prefix or any terminal prefix, or timeouts; each line is added to the list (if given) and the last line is kept in the response (if given); the latency and gaps are recorded in the timing (if given)
+    protected int readFramed(int initialTimeoutMs, int continuationTimeoutMs, CharSequence finalPrefix, CharSequence[] terminalPrefixes, List<String> lines, AxResponse lastLine, AxResponseTimings.Timing timing) {
+        boolean endNow = false;
+        boolean probableEnd = false;
+        byte[] buffer = readBuffer;
+        int lineCount = 0;
+        long start = System.nanoTime();
+        long firstData = -1;
+        long lastData = 0;
+        long maxGap = 0;
+        for (;;) {
+            if (endNow) break;
+            int count = read(buffer, probableEnd ? continuationTimeoutMs : initialTimeoutMs, true); // blocking wait for next read (or timeout)
+            if (metrics != null) metrics.recordRead(count);
+            if (count > 0) {
+                long now = System.nanoTime();
+                if (firstData < 0) {
+                    firstData = now;
+                } else if (now - lastData > maxGap) {
+                    maxGap = now - lastData;
+                }
+                lastData = now;
+            }
+            // frame bytes line-by-line
+            for (int i = 0; i < count; i++) {
+                if (framer.add(buffer[i])) {
+                    lineCount++;
+                    if (lines != null) {
+                        lines.add(framer.toString());
+                    }
+                    if (lastLine != null) {
+                        lastLine.setLine(framer.getBuffer(), 0, framer.getLength());
+                    }
+                    if (finalPrefix != null && framer.startsWith(finalPrefix)) {
+                        endNow = true;  // but continue processing bytes
+                    }
+                    if (terminalPrefixes != null) {
+                        for (CharSequence prefix : terminalPrefixes) {
+                            if (prefix != null && framer.startsWith(prefix)) {
+                                endNow = true;
+                            }
+                        }
+                    }
+                }
+            }
+            // nothing received within the time-out (or the quiet period after a probable end)
+            if (count == 0) break;
+
+            // if last read was partial, and was also at the end of a string, probably the end (but keep reading until quiet)
+            probableEnd = count < buffer.length && !framer.isPartial();
+        }
+        if (metrics != null && (finalPrefix != null || terminalPrefixes != null)) metrics.recordResponse(endNow);
+        if (timing != null) timing.record(firstData < 0 ? -1 : firstData - start, maxGap);
+        return lineCount;
+    }
+
+    // Read line, up to one beginning with a final prefix, or timeouts
+    public String[] readLines(int initialTimeoutMs, int continuationTimeoutMs, String finalPrefix) {
+        List<String> lines = new ArrayList<String>();
+        readFramed(initialTimeoutMs, continuationTimeoutMs, finalPrefix, null, lines, null, null);
+        return lines.toArray(new String[0]);
+    }
+
+    // Read lines, up to one beginning with any of the terminal prefixes, with time-outs adapted to the timing previously observed
+    public String[] readLines(AxResponseTimings.Timing timing, int maxTimeoutMs, int maxContinuationTimeoutMs, CharSequence[] terminalPrefixes) {
+        List<String> lines = new ArrayList<String>();
+        readFramed(timing.getInitialTimeoutMs(maxTimeoutMs, terminalPrefixes != null), timing.getContinuationTimeoutMs(maxContinuationTimeoutMs), null, terminalPrefixes, lines, null, timing);
+        return lines.toArray(new String[0]);
+    }
+
+    // Read lines, as readLines(), but only keeping the last line (without allocation); returns false if no lines were received
+    public boolean readResponse(int initialTimeoutMs, int continuationTimeoutMs, CharSequence finalPrefix, AxResponse response) {
+        response.clear();
+        return readFramed(initialTimeoutMs, continuationTimeoutMs, finalPrefix, null, null, response, null) > 0;
+    }
+
+    // Read lines, as readResponse(), ending early at any of the terminal prefixes, with time-outs adapted to the timing previously observed
+    public boolean readResponse(AxResponseTimings.Timing timing, int maxTimeoutMs, int maxContinuationTimeoutMs, CharSequence finalPrefix, CharSequence[] terminalPrefixes, AxResponse response) {
+        response.clear();
+        return readFramed(timing.getInitialTimeoutMs(maxTimeoutMs, finalPrefix != null || terminalPrefixes != null), timing.getContinuationTimeoutMs(maxContinuationTimeoutMs), finalPrefix, terminalPrefixes, null, response, timing) > 0;
+    }
+
+    // Write bytes from part of an array, returns the number written
+    public abstract int write(byte[] buffer, int offset, int length, int timeoutMS);
+
+    public int write(byte[] buffer, int timeoutMS) {
+        int numWritten = write(buffer, 0, buffer.length, timeoutMS);
+        if (metrics != null) metrics.recordWrite(numWritten);
+        return numWritten;
+    }
+
+    // Write the buffer's remaining bytes, advancing its position by the number written
+    private byte[] copyBuffer = null;
+    public int write(ByteBuffer buffer, int timeoutMS) {
+        int length = buffer.remaining();
+        int numWritten;
+        if (buffer.hasArray()) {
+            // Written directly from the backing array
+            numWritten = write(buffer.array(), buffer.arrayOffset() + buffer.position(), length, timeoutMS);
+        } else {
+            // No backing array (e.g. a direct buffer): copy through a reused array
+            if (copyBuffer == null || copyBuffer.length < length) {
+                copyBuffer = new byte[length];
+            }
+            buffer.duplicate().get(copyBuffer, 0, length);
+            numWritten = write(copyBuffer, 0, length, timeoutMS);
+        }
+        buffer.position(buffer.position() + numWritten);
+        if (metrics != null) metrics.recordWrite(numWritten);
+        return numWritten;
+    }
+
+    // Write string
+    public boolean writeString(String str, int timeoutMS) {
+        byte[] outBuffer = str.getBytes(UTF8);
+        int numBytesWritten = write(outBuffer, timeoutMS);
+        return numBytesWritten == outBuffer.length;
+    }
+
+}
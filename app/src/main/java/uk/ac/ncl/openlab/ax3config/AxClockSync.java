@@ -0,0 +1,218 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Latency-compensated setting of an Open Movement AX3 Device's clock
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+public class AxClockSync {
+
+    // The device clock is set and read at one-second resolution: the TIME command is sent so that it arrives on a
+    // second boundary (half the minimum round-trip time early), then the residual offset is bounded by reading the
+    // clock either side of its next second transition.
+    private static final String DATE_FORMAT = "yyyy/MM/dd','HH:mm:ss";
+    private static final CharSequence[] ERROR_TERMINALS = { "ERROR" };
+    private static final long MIN_LEAD_MS = 20;             // minimum time from now to the scheduled TIME command
+    private static final long GUARD_MS = 5;                 // extra time to start polling before an expected transition
+    private static final long MAX_POLL_MS = 3000;           // give up looking for a clock transition after this long
+    private static final long SPIN_NANOS = 2000000;         // busy-wait (rather than sleep) for the last part of a wait
+
+    // Outcome of a synchronisation
+    public static class Result {
+        private final Date time;
+        private final double roundTripMs;
+        private final double offsetMs;
+        private final double minOffsetMs, maxOffsetMs;
+        private final int exchanges;
+
+        Result(Date time, double roundTripMs, double offsetMs, double minOffsetMs, double maxOffsetMs, int exchanges) {
+            this.time = time;
+            this.roundTripMs = roundTripMs;
+            this.offsetMs = offsetMs;
+            this.minOffsetMs = minOffsetMs;
+            this.maxOffsetMs = maxOffsetMs;
+            this.exchanges = exchanges;
+        }
+
+        // The second the device clock was set to
+        public Date getTime() { return new Date(time.getTime()); }
+        // Minimum round-trip time of a TIME exchange
+        public double getRoundTripMs() { return roundTripMs; }
+        // Estimated device clock minus host clock (assuming symmetric link latency)
+        public double getOffsetMs() { return offsetMs; }
+        // Bounds on the offset that hold whatever the split of the round-trip time
+        public double getMinOffsetMs() { return minOffsetMs; }
+        public double getMaxOffsetMs() { return maxOffsetMs; }
+        public double getUncertaintyMs() { return (maxOffsetMs - minOffsetMs) / 2; }
+        // Number of TIME exchanges used
+        public int getExchanges() { return exchanges; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "offset %+.1f ms (%+.1f..%+.1f ms), round-trip %.1f ms, %d exchanges",
+                    offsetMs, minOffsetMs, maxOffsetMs, roundTripMs, exchanges);
+        }
+    }
+
+    private final AxTransport transport;
+    private final AxResponseTimings.Timing timing;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+    private final AxResponse response = new AxResponse();
+
+    // Host clock, at sub-millisecond resolution, as wall-clock milliseconds
+    private final long baseMs = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+
+    // Offset bounds from the readings so far: guaranteed, and assuming the device acts half-way through the round-trip
+    private double lower, upper;
+    private double symmetricLower, symmetricUpper;
+    private int exchanges;
+
+    public AxClockSync(AxTransport transport, AxResponseTimings.Timing timing) {
+        this.transport = transport;
+        this.timing = timing;
+    }
+
+    private double hostMs(long nanos) {
+        return baseMs + (nanos - baseNanos) / 1000000.0;
+    }
+
+    // Send a TIME command (optionally setting the time) and return the device's reported time, recording the send and receive times
+    private long exchange(String argument, long[] times) throws IOException {
+        String command = argument == null ? "TIME\r\n" : "TIME " + argument + "\r\n";
+        long sent = System.nanoTime();
+        if (!transport.writeString(command, 500)) {
+            throw new IOException("Problem sending command");
+        }
+        if (!transport.readResponse(timing, 1000, 250, "$TIME=", ERROR_TERMINALS, response)) {
+            throw new IOException("No response");
+        }
+        times[0] = sent;
+        times[1] = System.nanoTime();
+        exchanges++;
+        if (!response.startsWith("$TIME=")) {
+            throw new IOException("Expected response not received: " + response + " -- expecting: $TIME=");
+        }
+        // "$TIME=2000/01/01,00:01:22"
+        String line = response.toString();
+        try {
+            return dateFormat.parse(line.substring(6).trim()).getTime();
+        } catch (ParseException e) {
+            throw new IOException("Could not parse time " + line);
+        }
+    }
+
+    // Narrow the offset bounds with a reading: the device clock showed the whole second at some point during the exchange
+    private void bound(long deviceMs, long[] times, double oneWayMs) {
+        double sent = hostMs(times[0]), received = hostMs(times[1]);
+        lower = Math.max(lower, deviceMs - received);
+        upper = Math.min(upper, deviceMs + 1000 - sent);
+        symmetricLower = Math.max(symmetricLower, deviceMs - (sent + oneWayMs));
+        symmetricUpper = Math.min(symmetricUpper, deviceMs + 1000 - (sent + oneWayMs));
+    }
+
+    // Wait until the given host time (sleeping, then spinning for precision)
+    private void waitUntil(double targetMs) throws IOException {
+        for (;;) {
+            long remaining = (long) ((targetMs - hostMs(System.nanoTime())) * 1000000.0);
+            if (remaining <= 0) return;
+            if (remaining > SPIN_NANOS) {
+                try {
+                    Thread.sleep((remaining - SPIN_NANOS) / 1000000L);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting to set time");
+                }
+            }
+        }
+    }
+
+    // Measure the round-trip over the given number of exchanges, set the clock on a second boundary, and estimate the residual offset
+    public Result sync(int measureExchanges) throws IOException {
+        long[] times = new long[2];
+        exchanges = 0;
+
+        // Round-trip time (the minimum is least affected by scheduling and bus contention)
+        long minRoundTrip = Long.MAX_VALUE;
+        for (int i = 0; i < Math.max(measureExchanges, 1); i++) {
+            exchange(null, times);
+            minRoundTrip = Math.min(minRoundTrip, times[1] - times[0]);
+        }
+        double roundTripMs = minRoundTrip / 1000000.0;
+        double oneWayMs = roundTripMs / 2;
+
+        // Send the TIME command so that it arrives on the next second boundary that can be reached
+        double now = hostMs(System.nanoTime());
+        long target = (long) Math.ceil((now + Math.max(MIN_LEAD_MS, 2 * roundTripMs) + oneWayMs) / 1000.0) * 1000;
+        waitUntil(target - oneWayMs);
+        Date time = new Date(target);
+        lower = symmetricLower = -Double.MAX_VALUE;
+        upper = symmetricUpper = Double.MAX_VALUE;
+        long deviceMs = exchange(dateFormat.format(time), times);
+        if (deviceMs != target && deviceMs != target + 1000) {
+            throw new IOException("Time not set: " + response);
+        }
+        // The clock showed the target once set, and the echoed time (the next second, if it ticked before replying) before the reply
+        bound(target, times, oneWayMs);
+        if (deviceMs != target) bound(deviceMs, times, oneWayMs);
+
+        // Read the clock back-to-back across its next second transition (starting just before it is expected)
+        double estimate = Math.max(lower, Math.min(upper, 0));
+        long previous = deviceMs;
+        boolean straddled = false;
+        double deadline = hostMs(System.nanoTime()) + MAX_POLL_MS;
+        while (!straddled) {
+            long next = previous + 1000;
+            waitUntil(next - estimate - oneWayMs - roundTripMs - GUARD_MS);
+            boolean first = true;
+            for (;;) {
+                if (hostMs(System.nanoTime()) > deadline) {
+                    throw new IOException("Clock transition not seen");
+                }
+                long reading = exchange(null, times);
+                bound(reading, times, oneWayMs);
+                if (reading >= next) {
+                    straddled = !first;
+                    previous = reading;
+                    break;
+                }
+                first = false;
+            }
+            estimate = (Math.max(symmetricLower, lower) + Math.min(symmetricUpper, upper)) / 2;
+        }
+
+        // Symmetric estimate, kept within the guaranteed bounds
+        double offset = (symmetricLower + symmetricUpper) / 2;
+        offset = Math.max(lower, Math.min(upper, offset));
+        return new Result(time, roundTripMs, offset, lower, upper, exchanges);
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Pipelined command batch for Open Movement AX3 Device
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AxCommandBatch {
+
+    // Outcome of a single command within the batch
+    public static class Result {
+        private final String command;
+        private final String expectedPrefix;
+        private String response = null;
+
+        Result(String command, String expectedPrefix) {
+            this.command = command;
+            this.expectedPrefix = expectedPrefix;
+        }
+
+        public String getCommand() { return command; }
+        public String getExpectedPrefix() { return expectedPrefix; }
+        public String getResponse() { return response; }
+
+        public boolean isMatched() {
+            return response != null && response.startsWith(expectedPrefix);
+        }
+
+        @Override
+        public String toString() {
+            if (response == null) {
+                return command + " -- no response, expecting: " + expectedPrefix;
+            } else if (!isMatched()) {
+                return command + " -- unexpected response: " + response + " -- expecting: " + expectedPrefix;
+            }
+            return command + " -- " + response;
+        }
+    }
+
+    private final List<Result> results = new ArrayList<Result>();
+    private int pending = 0;
+
+    public AxCommandBatch() {
+    }
+
+    public void add(String command, String expectedPrefix) {
+        results.add(new Result(command, expectedPrefix));
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    // All commands, as a single request to be sent in one transfer
+    public String getRequest() {
+        StringBuilder sb = new StringBuilder();
+        for (Result result : results) {
+            sb.append(result.command).append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    public boolean isComplete() {
+        return pending >= results.size();
+    }
+
+    // Expected prefix of the next outstanding response (or null if complete)
+    public String getPendingPrefix() {
+        if (isComplete()) return null;
+        return results.get(pending).expectedPrefix;
+    }
+
+    // The key part of a prefix, e.g. "RATE=" for "RATE=74,100"
+    private static String responseKey(String expectedPrefix) {
+        for (int i = 0; i < expectedPrefix.length(); i++) {
+            char c = expectedPrefix.charAt(i);
+            if (c == ':' || c == '=') {
+                return expectedPrefix.substring(0, i + 1);
+            }
+        }
+        return expectedPrefix;
+    }
+
+    // Match a received line against the outstanding commands, in order (returns true if the line was consumed)
+    public boolean onLine(String line) {
+        if (isComplete()) return false;
+        line = line.trim();
+        Result result = results.get(pending);
+        if (line.startsWith(result.expectedPrefix)) {
+            // Expected response
+            result.response = line;
+            pending++;
+            return true;
+        }
+        if (line.startsWith(responseKey(result.expectedPrefix)) || line.startsWith("ERROR")) {
+            // Response to this command, but not the expected one
+            result.response = line;
+            pending++;
+            return true;
+        }
+        // Unrelated output (e.g. banner or status line)
+        return false;
+    }
+
+    public Result[] getResults() {
+        return results.toArray(new Result[0]);
+    }
+
+    public boolean isSuccess() {
+        for (Result result : results) {
+            if (!result.isMatched()) return false;
+        }
+        return true;
+    }
+
+    // Description of each command that did not receive its expected response
+    public String[] getErrors() {
+        List<String> errors = new ArrayList<String>();
+        for (Result result : results) {
+            if (!result.isMatched()) {
+                errors.add(result.toString());
+            }
+        }
+        return errors.toArray(new String[0]);
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Command encoder for Open Movement AX3 Device (ASCII written directly into a reused buffer)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.Date;
+
+public class AxCommandEncoder {
+
+    // AX3 date range is 2000-01-01T00:00:00 to 2063-12-31T23:59:59
+    private static final int MIN_YEAR = 2000;
+    private static final int MAX_YEAR = 2063;
+
+    private final ByteBuffer command = ByteBuffer.allocate(256);
+    private final StringBuilder expected = new StringBuilder(64);
+    private final Calendar calendar = Calendar.getInstance();
+    private final char[] digits = new char[11];
+
+    // Start a new command
+    public AxCommandEncoder begin() {
+        command.clear();
+        expected.setLength(0);
+        return this;
+    }
+
+    // Command text
+    public AxCommandEncoder append(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            command.put((byte) text.charAt(i));
+        }
+        return this;
+    }
+
+    public AxCommandEncoder append(int value) {
+        int count = formatInt(value);
+        for (int i = digits.length - count; i < digits.length; i++) {
+            command.put((byte) digits[i]);
+        }
+        return this;
+    }
+
+    // Date/time as "yyyy/MM/dd,HH:mm:ss" (or, if clamped outside the device range, "0" or "-1")
+    public AxCommandEncoder appendDate(Date time, boolean clamp) {
+        calendar.setTimeInMillis(time.getTime());
+        int year = calendar.get(Calendar.YEAR);
+        if (clamp && year < MIN_YEAR) {
+            return append(0);
+        } else if (clamp && year > MAX_YEAR) {
+            return append(-1);
+        }
+        appendPadded(year, 4).append("/");
+        appendPadded(calendar.get(Calendar.MONTH) + 1, 2).append("/");
+        appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2).append(",");
+        appendPadded(calendar.get(Calendar.HOUR_OF_DAY), 2).append(":");
+        appendPadded(calendar.get(Calendar.MINUTE), 2).append(":");
+        return appendPadded(calendar.get(Calendar.SECOND), 2);
+    }
+
+    private AxCommandEncoder appendPadded(int value, int width) {
+        int count = formatInt(value);
+        for (int i = count; i < width; i++) {
+            command.put((byte) '0');
+        }
+        return append(value);
+    }
+
+    // Expected response prefix
+    public AxCommandEncoder expect(CharSequence text) {
+        expected.append(text);
+        return this;
+    }
+
+    public AxCommandEncoder expect(int value) {
+        expected.append(value);
+        return this;
+    }
+
+    // Expect the command text from the given offset (e.g. an argument that is echoed in the response)
+    public AxCommandEncoder expectArgument(int fromOffset) {
+        for (int i = fromOffset; i < command.position(); i++) {
+            expected.append((char) (command.get(i) & 0xff));
+        }
+        return this;
+    }
+
+    // Current length of the command (e.g. the offset of an argument)
+    public int position() {
+        return command.position();
+    }
+
+    // Terminate the command, ready for writing
+    public ByteBuffer end() {
+        command.put((byte) '\r').put((byte) '\n');
+        command.flip();
+        return command;
+    }
+
+    public ByteBuffer getCommand() {
+        return command;
+    }
+
+    public CharSequence getExpected() {
+        return expected;
+    }
+
+    // Decimal digits right-aligned in the digit buffer, returns the number of characters
+    private int formatInt(int value) {
+        int i = digits.length;
+        long v = value;
+        boolean negative = v < 0;
+        if (negative) v = -v;
+        do {
+            digits[--i] = (char) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (negative) digits[--i] = '-';
+        return digits.length - i;
+    }
+
+}
@@ -29,8 +29,11 @@
 package uk.ac.ncl.openlab.ax3config;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Calendar;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
@@ -44,15 +47,15 @@ public class AxConfig {
     private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
 
     // Device connection
-    private UsbSerialPort serialPort;
+    private AxTransport serialPort;
 
 
     // Construct against a device
-    public AxConfig(UsbSerialPort serialPort) {
+    public AxConfig(AxTransport serialPort) {
         this.serialPort = serialPort;
     }
 
-    private String dateToString(Date time, boolean clamp) {
+    String dateToString(Date time, boolean clamp) {
         String timeString;
         Calendar cal = Calendar.getInstance();
         cal.setTime(time);
@@ -65,7 +68,7 @@ public class AxConfig {
         }
     }
 
-    private Date stringToDate(String input) {
+    Date stringToDate(String input) {
         if (input.equals("0")) {
             return new Date(Long.MIN_VALUE);
         } else if (input.equals("-1")) {
@@ -79,110 +82,158 @@ public class AxConfig {
         }
     }
 
-    private String[] command(String command, String expectedPrefix, boolean commaSeparated) throws IOException {
-        if (!serialPort.writeString(command + "\r\n", 500)) {
+    // Last response (reused for each command)
+    private final AxResponse response = new AxResponse();
+
+    // Command encoder (reused for each command)
+    private final AxCommandEncoder encoder = new AxCommandEncoder();
+
+    // Metrics (null when not recording)
+    private AxMetrics metrics = null;
+
+    public void setMetrics(AxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Learned response timings for this device (may be kept between connections to the same device)
+    private AxResponseTimings timings = new AxResponseTimings();
+
+    public AxResponseTimings getResponseTimings() {
+        return timings;
+    }
+
+    public void setResponseTimings(AxResponseTimings timings) {
+        this.timings = timings;
+    }
+
+    // Lines that always end a response
+    private static final CharSequence[] ERROR_TERMINALS = { "ERROR" };
+
+    // Final responses to commands that are not simply "<VERB>=", "<VERB>:" or "$<VERB>="
+    private static final Map<String, String> FINAL_RESPONSES = new HashMap<String, String>();
+    static {
+        FINAL_RESPONSES.put("FORMAT", "FORMAT: Delayed activation.");
+        FINAL_RESPONSES.put("SAMPLE", "$BATT=");
+    }
+
+    // Whether a response may still arrive for a command that timed out (so must not be taken as the next command's response)
+    private boolean lateResponses = false;
+
+    // Discard any response that arrived after its command timed out
+    private void discardLateResponses() {
+        if (!lateResponses) return;
+        lateResponses = false;
+        serialPort.readLines(20, 20, null);
+    }
+
+    // Send the command in the encoder, and read the expected response
+    private AxResponse command(String verb, boolean commaSeparated) throws IOException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        discardLateResponses();
+        ByteBuffer commandBuffer = encoder.end();
+        int length = commandBuffer.remaining();
+        if (serialPort.write(commandBuffer, 500) != length) {
+            if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, true, false);
             throw new IOException("Problem sending command");
         }
-        String[] lines = serialPort.readLines(1000, 250, expectedPrefix);
-        if (lines.length <= 0) {
+        CharSequence expectedPrefix = encoder.getExpected();
+        if (!serialPort.readResponse(timings.get(verb), 1000, 250, expectedPrefix, ERROR_TERMINALS, response)) {
+            if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, true, true);
+            lateResponses = true;
             throw new IOException("No response");
         }
-        if (!lines[lines.length - 1].startsWith(expectedPrefix)) {
-            throw new IOException("Expected response not received: " + lines[lines.length - 1] + " -- expecting: " + expectedPrefix);
+        if (!response.startsWith(expectedPrefix)) {
+            if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, true, true);
+            throw new IOException("Expected response not received: " + response + " -- expecting: " + expectedPrefix);
         }
+        if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, false, false);
+        response.tokenize(commaSeparated);
+        return response;
+    }
 
-        String responseLine = lines[lines.length - 1].trim();
-        for (int i = 0; i < responseLine.length(); i++) {
-            char c = responseLine.charAt(i);
-            if (c == ':' || c == ' ' || c == '=' || c == ',') {
-                String key = responseLine.substring(0, i);
-                String value = responseLine.substring(i + 1);
-                if (commaSeparated) {
-                    // Parsed comma/space separated values
-                    String[] parts = value.split("[, ]");
-                    String[] retParts = new String[1 + parts.length];
-                    retParts[0] = key;
-                    for (int j = 0; j < parts.length; j++) {
-                        retParts[1 + j] = parts[j];
-                    }
-                    return retParts;
-                } else {
-                    // Parsed name/value pair
-                    return new String[] { key, value };
-                }
-            }
+    // Date value of a response, e.g. "HIBERNATE=2018/07/16,16:00:00"
+    private Date dateValue(AxResponse results) throws IOException {
+        if (results.getFieldCount() < 2) throw new IOException("Unexpected response");
+        String timeString;
+        if (results.getFieldCount() > 2) {
+            timeString = results.getString(1) + "," + results.getString(2);
+        } else {
+            timeString = results.getString(1);
         }
-        // Unparsed: return string
-        return new String[] { responseLine };
+        Date value = stringToDate(timeString);
+        if (value == null) {
+            throw new IOException("Could not parse time " + timeString);
+        }
+        return value;
     }
 
+    // Round-trip measurements before a clock synchronisation, and the last synchronisation
+    private static final int SYNC_EXCHANGES = 5;
+    private AxClockSync.Result clockSync = null;
 
+    // Last status read (until changed by this connection)
+    private DeviceStatus status = null;
+    private DeviceStatus lastStatus = null;
+
+    // Discard the cached status, as the device has been changed
+    public void invalidateStatus() {
+        status = null;
+    }
+
+    // The most recent status read, even if since changed (no communication with the device), or null
+    public DeviceStatus getLastStatus() {
+        return lastStatus;
+    }
 
     public void setSessionId(int value) throws IOException {
-        command("SESSION " + value, "SESSION=" + value, true);
+        invalidateStatus();
+        encoder.begin().append("SESSION ").append(value).expect("SESSION=").expect(value);
+        command("SESSION", true);
     }
 
     public int getSessionId() throws IOException {
         // "SESSION=<sessionId>"
-        String[] results = command("SESSION", "SESSION=", true);
-        if (results.length < 2) throw new IOException("Unexpected response");
+        encoder.begin().append("SESSION").expect("SESSION=");
+        AxResponse results = command("SESSION", true);
+        if (results.getFieldCount() < 2) throw new IOException("Unexpected response");
         try {
-            return (int)Long.parseLong(results[1], 10);
+            return (int)results.getLong(1);
         } catch (NumberFormatException e) { throw new IOException("Invalid response value"); }
     }
 
     public void setStartTime(Date startTime) throws IOException {
         // "HIBERNATE=2018/07/16,16:00:00"
-        String timeString = dateToString(startTime, true);
-        command("HIBERNATE " + timeString, "HIBERNATE=" + timeString, false);
+        invalidateStatus();
+        encoder.begin().append("HIBERNATE ");
+        int argument = encoder.position();
+        encoder.appendDate(startTime, true).expect("HIBERNATE=").expectArgument(argument);
+        command("HIBERNATE", false);
     }
 
     public Date getStartTime() throws IOException {
         // "HIBERNATE=2018/07/16,16:00:00"
-        String[] results = command("HIBERNATE", "HIBERNATE=", false);
-        if (results.length < 2) throw new IOException("Unexpected response");
-        try {
-            String timeString;
-            if (results.length > 2) {
-                timeString = results[1] + "," + results[2];
-            } else {
-                timeString = results[1];
-            }
-            Date value = stringToDate(timeString);
-            if (value == null) {
-                throw new IOException("Could not parse time " + timeString);
-            }
-            return value;
-        } catch (NumberFormatException e) { throw new IOException("Invalid response value"); }
+        encoder.begin().append("HIBERNATE").expect("HIBERNATE=");
+        AxResponse results = command("HIBERNATE", false);
+        return dateValue(results);
     }
 
     public void setEndTime(Date endTime) throws IOException {
         // "STOP=2018/07/17,09:00:00""
-        String timeString = dateToString(endTime, true);
-        command("STOP " + timeString, "STOP=" + timeString, false);
+        invalidateStatus();
+        encoder.begin().append("STOP ");
+        int argument = encoder.position();
+        encoder.appendDate(endTime, true).expect("STOP=").expectArgument(argument);
+        command("STOP", false);
     }
 
     public Date getEndTime() throws IOException {
         // "STOP=2018/07/17,09:00:00""
-        String[] results = command("STOP", "STOP=", false);
-        if (results.length < 2) throw new IOException("Unexpected response");
-        try {
-            String timeString;
-            if (results.length > 2) {
-                timeString = results[1] + "," + results[2];
-            } else {
-                timeString = results[1];
-            }
-            Date value = stringToDate(timeString);
-            if (value == null) {
-                throw new IOException("Could not parse time " + timeString);
-            }
-            return value;
-        } catch (NumberFormatException e) { throw new IOException("Invalid response value"); }
+        encoder.begin().append("STOP").expect("STOP=");
+        AxResponse results = command("STOP", false);
+        return dateValue(results);
     }
 
-    public void setRate(int rate, int range) throws IOException {
-        // "RATE=74,100"
+    private static int rateValue(int rate, int range) throws IOException {
         int value = 0;
 
         switch (rate)
@@ -209,49 +260,248 @@ public class AxConfig {
             default: throw new IOException("Invalid range");
         }
 
-        command("RATE " + value, "RATE=" + value + "," + rate, true);
+        return value;
+    }
+
+    public void setRate(int rate, int range) throws IOException {
+        // "RATE=74,100"
+        int value = rateValue(rate, range);
+        invalidateStatus();
+        encoder.begin().append("RATE ").append(value).expect("RATE=").expect(value).expect(",").expect(rate);
+        command("RATE", true);
     }
 
     public void setTime(Date time) throws IOException {
         // "$TIME=2000/01/01,00:01:22"
-        String timeString = dateToString(time, false);
-        command("TIME " + timeString, "$TIME=" + timeString, false);
+        invalidateStatus();
+        encoder.begin().append("TIME ");
+        int argument = encoder.position();
+        encoder.appendDate(time, false).expect("$TIME=").expectArgument(argument);
+        command("TIME", false);
+    }
+
+    // Set the clock to the host's time, compensating for the link latency, and estimate the residual offset
+    public AxClockSync.Result syncTime(int exchanges) throws IOException {
+        invalidateStatus();
+        clockSync = null;       // (a failed attempt must not leave an earlier result in place)
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            clockSync = new AxClockSync(serialPort, timings.get("TIME")).sync(exchanges);
+        } catch (IOException e) {
+            if (metrics != null) metrics.recordCommand("SYNC", System.nanoTime() - start, true, false);
+            throw e;
+        }
+        if (metrics != null) metrics.recordCommand("SYNC", System.nanoTime() - start, false, false);
+        return clockSync;
+    }
+
+    // Result of the last clock synchronisation (null if none, or if the last configuration or attempt did not synchronise)
+    public AxClockSync.Result getClockSync() {
+        return clockSync;
     }
 
     public void commit(boolean wipe) throws IOException {
         // command("COMMIT", "COMMIT: Delayed activation.");
+        invalidateStatus();
         if (wipe) {
-            command("FORMAT WC", "FORMAT: Delayed activation.", false);
+            encoder.begin().append("FORMAT WC").expect("FORMAT: Delayed activation.");
         } else {
-            command("FORMAT QC", "FORMAT: Delayed activation.", false);
+            encoder.begin().append("FORMAT QC").expect("FORMAT: Delayed activation.");
         }
+        command(wipe ? "FORMAT WC" : "FORMAT QC", false);    // (a wipe takes longer, so is timed separately)
     }
 
     public void setLed(int value) throws IOException {
-        command("LED " + value, "LED=" + value, true);
+        encoder.begin().append("LED ").append(value).expect("LED=").expect(value);
+        command("LED", true);
     }
 
     public int getBattery() throws IOException {
         // "$BATT=<raw-ADC>,<millivolts>,mV,<percentage>,<charge-termination-flag>"
-        String[] results = command("SAMPLE 1", "$BATT=", true);
-        if (results.length < 5) throw new IOException("Unexpected response");
+        encoder.begin().append("SAMPLE 1").expect("$BATT=");
+        AxResponse results = command("SAMPLE", true);
+        if (results.getFieldCount() < 5) throw new IOException("Unexpected response");
         try {
-            return Integer.parseInt(results[4], 10);
+            return results.getInt(4);
         } catch (NumberFormatException e) { throw new IOException("Invalid response value"); }
     }
 
-    public boolean hasConfiguration() throws IOException {
-        int sessionId = getSessionId();
-        Date startTime = getStartTime();
-        Date endTime = getEndTime();
-        return sessionId != 0 || endTime.getTime() > startTime.getTime();
+    // Build the command batch for a configuration, in the same order as the individual setters would be called
+    private AxCommandBatch buildBatch(AxConfiguration configuration) throws IOException {
+        AxCommandBatch batch = new AxCommandBatch();
+        if (configuration.getSessionId() != null) {
+            int sessionId = configuration.getSessionId();
+            batch.add("SESSION " + sessionId, "SESSION=" + sessionId);
+        }
+        if (configuration.getStartTime() != null) {
+            String timeString = dateToString(configuration.getStartTime(), true);
+            batch.add("HIBERNATE " + timeString, "HIBERNATE=" + timeString);
+        }
+        if (configuration.getEndTime() != null) {
+            String timeString = dateToString(configuration.getEndTime(), true);
+            batch.add("STOP " + timeString, "STOP=" + timeString);
+        }
+        if (configuration.getRate() != 0) {
+            int value = rateValue(configuration.getRate(), configuration.getRange());
+            batch.add("RATE " + value, "RATE=" + value + "," + configuration.getRate());
+        }
+        if (configuration.getTime() != null && !configuration.getSyncTime()) {
+            String timeString = dateToString(configuration.getTime(), false);
+            batch.add("TIME " + timeString, "$TIME=" + timeString);
+        }
+        if (configuration.getCommit()) {
+            batch.add(configuration.getWipe() ? "FORMAT WC" : "FORMAT QC", "FORMAT: Delayed activation.");
+        }
+        if (configuration.getLed() != null) {
+            int led = configuration.getLed();
+            batch.add("LED " + led, "LED=" + led);
+        }
+        return batch;
+    }
+
+    // Timing key of a command: its verb, with the argument only where it changes the response time (e.g. "FORMAT WC")
+    static String timingKey(String command) {
+        String text = command.trim().toUpperCase(Locale.US);
+        int end = 0;
+        while (end < text.length() && text.charAt(end) != ' ' && text.charAt(end) != '=') end++;
+        String verb = text.substring(0, end);
+        if (verb.equals("FORMAT")) {
+            return text.replaceAll("\\s+", " ");
+        }
+        return verb;
+    }
+
+    // Timing key of a configuration batch, from the commands it contains (e.g. "CONFIGURE SESSION,RATE,FORMAT WC")
+    private static String batchKey(AxCommandBatch batch) {
+        StringBuilder key = new StringBuilder("CONFIGURE");
+        AxCommandBatch.Result[] results = batch.getResults();
+        for (int i = 0; i < results.length; i++) {
+            key.append(i == 0 ? ' ' : ',').append(timingKey(results[i].getCommand()));
+        }
+        return key.toString();
+    }
+
+    // Send all of the batch's commands in a single transfer, then match the responses in order
+    private void exchange(AxCommandBatch batch, String verb) throws IOException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        discardLateResponses();
+        if (!serialPort.writeString(batch.getRequest(), 1000)) {
+            throw new IOException("Problem sending commands");
+        }
+        while (!batch.isComplete()) {
+            CharSequence[] terminals = { batch.getPendingPrefix() };
+            String[] lines = serialPort.readLines(timings.get(verb), 1000, 250, terminals);
+            if (lines.length <= 0) {
+                lateResponses = true;
+                break;  // no further responses
+            }
+            for (String line : lines) {
+                batch.onLine(line);
+            }
+        }
+        if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, !batch.isSuccess(), !batch.isComplete());
+    }
+
+    // Send all configuration commands in a single transfer, then match the responses in order
+    public AxCommandBatch configure(AxConfiguration configuration) throws IOException {
+        clockSync = null;       // (only reports a synchronisation by this configuration)
+        AxCommandBatch batch = buildBatch(configuration);
+        if (batch.size() <= 0) {
+            if (configuration.getSyncTime()) syncTime(SYNC_EXCHANGES);
+            return batch;
+        }
+        invalidateStatus();
+        exchange(batch, batchKey(batch));
+        if (configuration.getSyncTime() && batch.isSuccess()) {
+            syncTime(SYNC_EXCHANGES);
+        }
+        return batch;
     }
 
-    @Override
-    public void finalize() {
-        close();
+    // Parse a batch response line
+    private AxResponse batchResponse(AxCommandBatch.Result result, boolean commaSeparated) throws IOException {
+        if (!result.isMatched()) {
+            throw new IOException("Expected response not received: " + result);
+        }
+        byte[] line = result.getResponse().getBytes("ISO-8859-1");
+        response.setLine(line, 0, line.length);
+        response.tokenize(commaSeparated);
+        return response;
+    }
+
+    // Read the session, start, stop, rate, battery and time in a single exchange (cached until changed by this connection)
+    public DeviceStatus readStatus() throws IOException {
+        DeviceStatus cached = status;
+        if (cached != null) {
+            return cached;
+        }
+        AxCommandBatch batch = new AxCommandBatch();
+        batch.add("SESSION", "SESSION=");
+        batch.add("HIBERNATE", "HIBERNATE=");
+        batch.add("STOP", "STOP=");
+        batch.add("RATE", "RATE=");
+        batch.add("SAMPLE 1", "$BATT=");
+        batch.add("TIME", "$TIME=");
+        exchange(batch, "STATUS");
+        long readTime = System.currentTimeMillis();
+        AxCommandBatch.Result[] results = batch.getResults();
+        try {
+            // "SESSION=<sessionId>"
+            AxResponse session = batchResponse(results[0], true);
+            if (session.getFieldCount() < 2) throw new IOException("Unexpected response");
+            int sessionId = (int) session.getLong(1);
+            Date startTime = dateValue(batchResponse(results[1], false));
+            Date endTime = dateValue(batchResponse(results[2], false));
+            // "RATE=74,100"
+            AxResponse rate = batchResponse(results[3], true);
+            if (rate.getFieldCount() < 3) throw new IOException("Unexpected response");
+            int rateValue = rate.getInt(1);
+            int frequency = rate.getInt(2);
+            // "$BATT=<raw-ADC>,<millivolts>,mV,<percentage>,<charge-termination-flag>"
+            AxResponse battery = batchResponse(results[4], true);
+            if (battery.getFieldCount() < 5) throw new IOException("Unexpected response");
+            int batteryPercent = battery.getInt(4);
+            // "$TIME=2000/01/01,00:01:22"
+            Date deviceTime = dateValue(batchResponse(results[5], false));
+            status = new DeviceStatus(sessionId, startTime, endTime, rateValue, frequency, batteryPercent, deviceTime, readTime);
+            lastStatus = status;
+            return status;
+        } catch (NumberFormatException e) { throw new IOException("Invalid response value"); }
+    }
+
+    // Send a custom command, returning the response lines once a known final response (or error) is seen, or the device is quiet
+    public String[] customCommand(String command, int maxTimeoutMs) throws IOException {
+        String text = command.trim();
+        int end = 0;
+        while (end < text.length() && text.charAt(end) != ' ' && text.charAt(end) != '=') end++;
+        String verb = text.substring(0, end).toUpperCase(Locale.US);
+        if (verb.length() <= 0) {
+            throw new IOException("No command");
+        }
+        CharSequence[] terminals;
+        if (FINAL_RESPONSES.containsKey(verb)) {
+            terminals = new CharSequence[] { FINAL_RESPONSES.get(verb), "ERROR" };
+        } else {
+            terminals = new CharSequence[] { verb + "=", verb + ":", "$" + verb + "=", "ERROR" };
+        }
+        invalidateStatus();     // (may change any setting)
+        long start = metrics != null ? System.nanoTime() : 0;
+        discardLateResponses();
+        if (!serialPort.writeString(text + "\r\n", 500)) {
+            if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, true, false);
+            throw new IOException("Problem sending command");
+        }
+        String[] lines = serialPort.readLines(timings.get(timingKey(text)), maxTimeoutMs, 250, terminals);
+        if (metrics != null) metrics.recordCommand(verb, System.nanoTime() - start, false, lines.length <= 0);
+        if (lines.length <= 0) lateResponses = true;
+        return lines;
+    }
+
+    public boolean hasConfiguration() throws IOException {
+        return readStatus().hasConfiguration();
     }
 
+    // Close the transport (the transport may instead be closed directly, e.g. when it outlives this object)
     public void close() {
         if (serialPort != null) {
             serialPort.close();
@@ -0,0 +1,82 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Device configuration settings for Open Movement AX3 Device
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.util.Date;
+
+public class AxConfiguration {
+
+    // Settings (null/zero when not to be sent to the device)
+    private Integer sessionId = null;
+    private Date startTime = null;
+    private Date endTime = null;
+    private int rate = 0;
+    private int range = 0;
+    private Date time = null;
+    private boolean syncTime = false;
+    private boolean commit = false;
+    private boolean wipe = false;
+    private Integer led = null;
+
+    public AxConfiguration() {
+    }
+
+    public Integer getSessionId() { return sessionId; }
+    public void setSessionId(Integer sessionId) { this.sessionId = sessionId; }
+
+    public Date getStartTime() { return startTime; }
+    public void setStartTime(Date startTime) { this.startTime = startTime; }
+
+    public Date getEndTime() { return endTime; }
+    public void setEndTime(Date endTime) { this.endTime = endTime; }
+
+    public int getRate() { return rate; }
+    public int getRange() { return range; }
+    public void setRate(int rate, int range) {
+        this.rate = rate;
+        this.range = range;
+    }
+
+    public Date getTime() { return time; }
+    public void setTime(Date time) { this.time = time; }
+
+    // Set the clock with latency compensation, on a second boundary (instead of sending the time in the batch)
+    public boolean getSyncTime() { return syncTime; }
+    public void setSyncTime(boolean syncTime) { this.syncTime = syncTime; }
+
+    public boolean getCommit() { return commit; }
+    public boolean getWipe() { return wipe; }
+    public void setCommit(boolean commit, boolean wipe) {
+        this.commit = commit;
+        this.wipe = wipe;
+    }
+
+    public Integer getLed() { return led; }
+    public void setLed(Integer led) { this.led = led; }
+
+}
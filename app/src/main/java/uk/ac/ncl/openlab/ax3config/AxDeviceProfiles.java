@@ -0,0 +1,208 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Persistent cache of what is known about each Open Movement AX3 Device (by serial number), for faster reconnection
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+// Kept in a properties file: the USB interface and endpoint indices found when the device was first opened (including
+// whether it has the older firmware's missing data interface), learned response timings, and the last status read.
+// Cached values are only hints: the endpoints are checked as they are used, and discarded if they no longer match.
+public class AxDeviceProfiles {
+
+    // USB interface and endpoint indices of a device (dataInterface is -1 on older firmware, where the data endpoints are on the control interface; controlInterface is -1 for the generic interface)
+    public static final class Endpoints {
+        private final int controlInterface;
+        private final int dataInterface;
+        private final int controlEndpoint;
+        private final int readEndpoint;
+        private final int writeEndpoint;
+
+        public Endpoints(int controlInterface, int dataInterface, int controlEndpoint, int readEndpoint, int writeEndpoint) {
+            this.controlInterface = controlInterface;
+            this.dataInterface = dataInterface;
+            this.controlEndpoint = controlEndpoint;
+            this.readEndpoint = readEndpoint;
+            this.writeEndpoint = writeEndpoint;
+        }
+
+        public int getControlInterface() { return controlInterface; }
+        public int getDataInterface() { return dataInterface; }
+        public int getControlEndpoint() { return controlEndpoint; }
+        public int getReadEndpoint() { return readEndpoint; }
+        public int getWriteEndpoint() { return writeEndpoint; }
+
+        // Older firmware with incorrect USB CDC descriptors (no separate data interface)
+        public boolean isMissingDataInterface() { return dataInterface < 0; }
+
+        // Generic (vendor-specific class) interface of experimental firmware: no control interface, the data endpoints are on dataInterface
+        public boolean isGeneric() { return controlInterface < 0 && dataInterface >= 0; }
+    }
+
+    private final File file;
+    private final Properties properties = new Properties();
+    private boolean changed = false;
+
+    // Load the cache (an unreadable or missing file is treated as empty)
+    public AxDeviceProfiles(File file) {
+        this.file = file;
+        if (file.exists()) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                properties.clear();
+            } catch (IllegalArgumentException e) {
+                properties.clear();
+            }
+        }
+    }
+
+    private String get(int serialNumber, String key) {
+        return properties.getProperty(serialNumber + "." + key);
+    }
+
+    private void set(int serialNumber, String key, String value) {
+        String name = serialNumber + "." + key;
+        if (value == null) {
+            if (properties.remove(name) != null) changed = true;
+        } else if (!value.equals(properties.getProperty(name))) {
+            properties.setProperty(name, value);
+            changed = true;
+        }
+    }
+
+    // Comma-separated values, or null if missing or malformed
+    private static long[] parse(String value, int count) {
+        if (value == null) return null;
+        String[] parts = value.split(",");
+        if (parts.length != count) return null;
+        long[] values = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                values[i] = Long.parseLong(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    public synchronized Endpoints getEndpoints(int serialNumber) {
+        long[] values = parse(get(serialNumber, "endpoints"), 5);
+        if (values == null) return null;
+        return new Endpoints((int) values[0], (int) values[1], (int) values[2], (int) values[3], (int) values[4]);
+    }
+
+    // Set the endpoints (null to remove them, e.g. if they no longer match the device)
+    public synchronized void setEndpoints(int serialNumber, Endpoints endpoints) {
+        set(serialNumber, "endpoints", endpoints == null ? null : endpoints.controlInterface + "," + endpoints.dataInterface + ","
+                + endpoints.controlEndpoint + "," + endpoints.readEndpoint + "," + endpoints.writeEndpoint);
+    }
+
+    // Restore learned response timings (those not yet learned for this connection)
+    public synchronized void restoreTimings(int serialNumber, AxResponseTimings timings) {
+        String prefix = serialNumber + ".timing.";
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.startsWith(prefix)) continue;
+            String[] parts = properties.getProperty(name).split(",");
+            if (parts.length != 4) continue;
+            try {
+                AxResponseTimings.Timing timing = timings.get(name.substring(prefix.length()));
+                if (timing.getSamples() == 0) {
+                    timing.set(Long.parseLong(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+                }
+            } catch (NumberFormatException e) {
+                // (ignore malformed entries)
+            }
+        }
+    }
+
+    public synchronized void setTimings(int serialNumber, AxResponseTimings timings) {
+        for (Map.Entry<String, AxResponseTimings.Timing> entry : timings.getAll().entrySet()) {
+            AxResponseTimings.Timing timing = entry.getValue();
+            if (timing.getSamples() <= 0) continue;
+            set(serialNumber, "timing." + entry.getKey(), timing.getSamples() + "," + timing.getLatencyMs() + "," + timing.getLatencyDeviationMs() + "," + timing.getGapMs());
+        }
+    }
+
+    // Last status read from the device (may since have changed), or null
+    public synchronized DeviceStatus getLastStatus(int serialNumber) {
+        long[] values = parse(get(serialNumber, "status"), 8);
+        if (values == null) return null;
+        return new DeviceStatus((int) values[0], new Date(values[1]), new Date(values[2]), (int) values[3], (int) values[4], (int) values[5], new Date(values[6]), values[7]);
+    }
+
+    public synchronized void setLastStatus(int serialNumber, DeviceStatus status) {
+        if (status == null) return;
+        set(serialNumber, "status", status.getSessionId() + "," + status.getStartTime().getTime() + "," + status.getEndTime().getTime() + ","
+                + status.getRateValue() + "," + status.getRate() + "," + status.getBattery() + "," + status.getDeviceTime().getTime() + "," + status.getReadTime());
+    }
+
+    // Forget a device
+    public synchronized void remove(int serialNumber) {
+        String prefix = serialNumber + ".";
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                properties.remove(name);
+                changed = true;
+            }
+        }
+    }
+
+    // Write the cache, if changed (to a temporary file, then replacing the previous one)
+    public synchronized void save() throws IOException {
+        if (!changed) return;
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, "AX3 device profiles");
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Problem replacing " + file);
+            }
+        }
+        changed = false;
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Attached Open Movement AX3 Devices, with their connections kept open between sessions
+
+package uk.ac.ncl.openlab.ax3config;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Tracks devices from the attached/detached broadcasts.  A device is opened (and its interfaces claimed) when first used,
+// and the open connection is kept in a pool, by serial number, until the device is detached, so that repeated sessions
+// with a docked device skip opening it.  Each connection is used by one session at a time.
+public class AxDeviceRegistry {
+
+    // Minimum interval between writing the profiles file when sessions end (it is always written by closeAll())
+    private static final long PROFILES_SAVE_INTERVAL_MS = 30000;
+
+    // An open device connection, held by one session between acquire() and release()
+    public static final class Connection {
+        private final UsbDevice device;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile UsbSerialPort port = null;
+        private volatile AxConfig config = null;
+        private volatile int serialNumber = -1;
+        private volatile boolean closed = false;
+        private volatile int uses = 0;
+
+        Connection(UsbDevice device) {
+            this.device = device;
+        }
+
+        public UsbDevice getDevice() { return device; }
+        public UsbSerialPort getPort() { return port; }
+        public AxConfig getConfig() { return config; }
+        public int getSerialNumber() { return serialNumber; }
+
+        // Sessions that have used this connection (1 for the session that opened it)
+        public int getUses() { return uses; }
+
+        private void close() {
+            closed = true;
+            UsbSerialPort port = this.port;
+            if (port != null) port.close();
+        }
+    }
+
+    private final UsbManager usbManager;
+    private final ConcurrentHashMap<String, UsbDevice> attached = new ConcurrentHashMap<String, UsbDevice>();     // by device name
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>(); // by device name
+    private final ConcurrentHashMap<Integer, Connection> pool = new ConcurrentHashMap<Integer, Connection>();      // by serial number
+    private volatile AxMetrics metrics = null;
+    private volatile AxDeviceProfiles profiles = null;
+    private volatile long profilesSaved = 0;
+
+    public AxDeviceRegistry(UsbManager usbManager) {
+        this.usbManager = usbManager;
+        for (UsbDevice device : UsbSerialPort.getDevices(usbManager)) {
+            attached.put(device.getDeviceName(), device);
+        }
+    }
+
+    // Record metrics for subsequently opened connections (null to stop recording)
+    public void setMetrics(AxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Cache of device endpoints, response timings and status, used when opening and updated when connections are released (null for none)
+    public void setProfiles(AxDeviceProfiles profiles) {
+        this.profiles = profiles;
+    }
+
+    // Last known status of a device (from the profiles, so available without connecting, but possibly out of date), or null
+    public DeviceStatus getLastStatus(int serialNumber) {
+        AxDeviceProfiles profiles = this.profiles;
+        return profiles != null ? profiles.getLastStatus(serialNumber) : null;
+    }
+
+    // Attached devices (no need to search the USB device list again)
+    public UsbDevice[] getDevices() {
+        return attached.values().toArray(new UsbDevice[0]);
+    }
+
+    // Serial numbers of the devices with an open connection
+    public Integer[] getSerialNumbers() {
+        return pool.keySet().toArray(new Integer[0]);
+    }
+
+    // (call from the ACTION_USB_DEVICE_ATTACHED broadcast)
+    public void onAttached(UsbDevice device) {
+        if (UsbSerialPort.isDevice(device)) {
+            attached.put(device.getDeviceName(), device);
+        }
+    }
+
+    // Remove the device, closing any connection (call from the ACTION_USB_DEVICE_DETACHED broadcast) (abandoning any transfer in progress)
+    public void onDetached(UsbDevice device) {
+        attached.remove(device.getDeviceName());
+        Connection connection = connections.remove(device.getDeviceName());
+        if (connection != null) {
+            remove(connection);
+            connection.close();
+        }
+    }
+
+    private void remove(Connection connection) {
+        connections.remove(connection.device.getDeviceName(), connection);
+        if (connection.serialNumber >= 0) {
+            pool.remove(connection.serialNumber, connection);
+        }
+    }
+
+    // Obtain the device's connection, opening it if not already open, waiting while another session holds it
+    public Connection acquire(UsbDevice device) throws IOException {
+        String name = device.getDeviceName();
+        for (;;) {
+            Connection connection = connections.get(name);
+            if (connection == null) {
+                connection = new Connection(device);
+                Connection existing = connections.putIfAbsent(name, connection);
+                if (existing != null) connection = existing;
+            }
+            try {
+                connection.lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for device");
+            }
+            if (connection.closed) {        // (detached or failed while waiting)
+                connection.lock.unlock();
+                continue;
+            }
+            try {
+                if (connection.port == null) {
+                    open(connection);
+                }
+            } catch (IOException e) {
+                invalidate(connection);
+                throw e;
+            }
+            connection.uses++;
+            connection.config.invalidateStatus();   // (the device may have changed between sessions, e.g. its battery)
+            return connection;
+        }
+    }
+
+    private void open(Connection connection) throws IOException {
+        AxDeviceProfiles profiles = this.profiles;
+        UsbSerialPort port = new UsbSerialPort(connection.device);
+        connection.port = port;
+        port.setMetrics(metrics);
+        port.setProfiles(profiles);
+        port.open(usbManager);
+        AxConfig config = new AxConfig(port);
+        config.setMetrics(metrics);
+        connection.config = config;
+        connection.serialNumber = port.getSerialNumber();
+        if (profiles != null && connection.serialNumber >= 0) {
+            profiles.restoreTimings(connection.serialNumber, config.getResponseTimings());
+        }
+        if (connection.serialNumber < 0) return;    // (not pooled: the device could not be identified)
+        Connection previous = pool.put(connection.serialNumber, connection);
+        if (previous != null && previous != connection) {
+            // (the same device at a new address, e.g. re-attached without a detached broadcast)
+            connections.remove(previous.device.getDeviceName(), previous);
+            previous.close();
+        }
+    }
+
+    // Return the connection to the pool, open for the next session
+    public void release(Connection connection) {
+        if (connection.lock.isHeldByCurrentThread()) {
+            updateProfile(connection);
+            connection.lock.unlock();
+        }
+    }
+
+    // Close and discard the connection (e.g. after a communication error), instead of releasing it
+    public void invalidate(Connection connection) {
+        remove(connection);
+        connection.close();
+        release(connection);
+    }
+
+    // Keep what was learned about the device in the session
+    private void updateProfile(Connection connection) {
+        AxDeviceProfiles profiles = this.profiles;
+        AxConfig config = connection.config;
+        if (profiles == null || config == null || connection.serialNumber < 0) return;
+        profiles.setTimings(connection.serialNumber, config.getResponseTimings());
+        profiles.setLastStatus(connection.serialNumber, config.getLastStatus());
+        long now = System.currentTimeMillis();
+        if (now - profilesSaved >= PROFILES_SAVE_INTERVAL_MS) {
+            profilesSaved = now;
+            saveProfiles(profiles);
+        }
+    }
+
+    private static void saveProfiles(AxDeviceProfiles profiles) {
+        try {
+            profiles.save();
+        } catch (IOException e) {
+            // (only a cache)
+        }
+    }
+
+    // Close all connections, and write out the profiles
+    public void closeAll() {
+        List<Connection> all = new ArrayList<Connection>(connections.values());
+        connections.clear();
+        pool.clear();
+        for (Connection connection : all) {
+            connection.close();
+        }
+        AxDeviceProfiles profiles = this.profiles;
+        if (profiles != null) saveProfiles(profiles);
+    }
+
+}
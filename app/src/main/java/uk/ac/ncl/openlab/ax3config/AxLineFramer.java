@@ -0,0 +1,102 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Byte-level line framing for Open Movement AX3 Device responses (no per-line allocation)
+
+package uk.ac.ncl.openlab.ax3config;
+
+public class AxLineFramer {
+
+    private static final int MAX_LINE = 4096;
+
+    private byte[] line = new byte[128];
+    private int length = 0;
+    private boolean complete = false;
+
+    // Add a received byte, returns true if it completed a line (valid until the next byte is added)
+    public boolean add(byte b) {
+        if (complete) {
+            length = 0;
+            complete = false;
+        }
+        if (b == '\n') {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            complete = true;
+            return true;
+        }
+        if (length >= line.length) {
+            if (line.length >= MAX_LINE) {
+                return false;   // overlong line, excess dropped
+            }
+            byte[] newLine = new byte[Math.min(line.length * 2, MAX_LINE)];
+            System.arraycopy(line, 0, newLine, 0, length);
+            line = newLine;
+        }
+        line[length++] = b;
+        return false;
+    }
+
+    // Whether there is a partially received line
+    public boolean isPartial() {
+        return !complete && length > 0;
+    }
+
+    // Discard any partial line
+    public void clear() {
+        length = 0;
+        complete = false;
+    }
+
+    // Completed line (only valid immediately after add() returns true)
+    public byte[] getBuffer() {
+        return line;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean startsWith(CharSequence prefix) {
+        return startsWith(line, 0, length, prefix);
+    }
+
+    // Compare (ASCII) bytes with a prefix, without decoding
+    public static boolean startsWith(byte[] buffer, int offset, int length, CharSequence prefix) {
+        int prefixLength = prefix.length();
+        if (prefixLength > length) return false;
+        for (int i = 0; i < prefixLength; i++) {
+            if ((buffer[offset + i] & 0xff) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return AxResponse.decode(line, 0, length);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Fixed-capacity log of the most recent messages (oldest are discarded)
+
+package uk.ac.ncl.openlab.ax3config;
+
+public class AxLog {
+
+    private final String[] lines;
+    private int start = 0;
+    private int count = 0;
+    private long total = 0;
+
+    public AxLog(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity");
+        this.lines = new String[capacity];
+    }
+
+    public synchronized void add(String line) {
+        int index = (start + count) % lines.length;
+        lines[index] = line;
+        if (count < lines.length) {
+            count++;
+        } else {
+            start = (start + 1) % lines.length;   // overwrote the oldest
+        }
+        total++;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+        start = 0;
+        count = 0;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+
+    // Number of lines ever added (including those discarded)
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    // Append the retained lines, oldest first, each followed by a newline
+    public synchronized void appendTo(StringBuilder sb) {
+        for (int i = 0; i < count; i++) {
+            sb.append(lines[(start + i) % lines.length]).append('\n');
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+}
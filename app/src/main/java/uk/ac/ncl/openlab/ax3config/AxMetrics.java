@@ -0,0 +1,171 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Command and transfer metrics for Open Movement AX3 Device communication
+// (attach to a transport and/or AxConfig with setMetrics(); nothing is recorded when not attached)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AxMetrics {
+
+    // Per-command (verb) statistics
+    public static class CommandStats {
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AxHistogram latencyMicros = new AxHistogram();
+
+        public long getCount() { return latencyMicros.getCount(); }
+        public long getErrors() { return errors.get(); }
+        public long getTimeouts() { return timeouts.get(); }
+        public AxHistogram getLatencyMicros() { return latencyMicros; }
+
+        void reset() {
+            errors.set(0);
+            timeouts.set(0);
+            latencyMicros.reset();
+        }
+    }
+
+    private final ConcurrentMap<String, CommandStats> commands = new ConcurrentHashMap<String, CommandStats>();
+
+    // Transfers
+    private final AxHistogram readBytes = new AxHistogram();
+    private final AxHistogram writeBytes = new AxHistogram();
+    private final AtomicLong emptyReads = new AtomicLong();
+
+    // Response framing: ended on the expected prefix, or by time-out
+    private final AtomicLong responsesMatched = new AtomicLong();
+    private final AtomicLong responsesTimedOut = new AtomicLong();
+
+    // Time to open (and claim) the device
+    private final AxHistogram openMicros = new AxHistogram();
+
+    public CommandStats getCommandStats(String verb) {
+        CommandStats stats = commands.get(verb);
+        if (stats == null) {
+            CommandStats newStats = new CommandStats();
+            stats = commands.putIfAbsent(verb, newStats);
+            if (stats == null) stats = newStats;
+        }
+        return stats;
+    }
+
+    // Command round trip (error: no response or not the expected response; timeout: no expected response before the time-out)
+    public void recordCommand(String verb, long elapsedNanos, boolean error, boolean timeout) {
+        CommandStats stats = getCommandStats(verb);
+        stats.latencyMicros.record(elapsedNanos / 1000);
+        if (error) stats.errors.incrementAndGet();
+        if (timeout) stats.timeouts.incrementAndGet();
+    }
+
+    public void recordRead(int numBytes) {
+        if (numBytes <= 0) {
+            emptyReads.incrementAndGet();
+        } else {
+            readBytes.record(numBytes);
+        }
+    }
+
+    public void recordWrite(int numBytes) {
+        writeBytes.record(numBytes);
+    }
+
+    public void recordResponse(boolean matched) {
+        if (matched) {
+            responsesMatched.incrementAndGet();
+        } else {
+            responsesTimedOut.incrementAndGet();
+        }
+    }
+
+    public void recordOpen(long elapsedNanos) {
+        openMicros.record(elapsedNanos / 1000);
+    }
+
+    public AxHistogram getReadBytes() { return readBytes; }
+    public AxHistogram getWriteBytes() { return writeBytes; }
+    public long getEmptyReads() { return emptyReads.get(); }
+    public long getResponsesMatched() { return responsesMatched.get(); }
+    public long getResponsesTimedOut() { return responsesTimedOut.get(); }
+    public AxHistogram getOpenMicros() { return openMicros; }
+
+    public void reset() {
+        for (CommandStats stats : commands.values()) {
+            stats.reset();
+        }
+        readBytes.reset();
+        writeBytes.reset();
+        emptyReads.set(0);
+        responsesMatched.set(0);
+        responsesTimedOut.set(0);
+        openMicros.reset();
+    }
+
+    private static void appendMillis(StringBuilder sb, String label, double micros) {
+        sb.append(label).append(String.format(Locale.US, "%.1f", micros / 1000.0)).append("ms");
+    }
+
+    private static void appendLatency(StringBuilder sb, AxHistogram histogram) {
+        sb.append(" n=").append(histogram.getCount());
+        appendMillis(sb, " mean=", histogram.getMean());
+        appendMillis(sb, " p50<=", histogram.getPercentile(50));
+        appendMillis(sb, " p99<=", histogram.getPercentile(99));
+        appendMillis(sb, " max=", histogram.getMax());
+    }
+
+    // Human-readable summary, one line per item
+    public void dump(StringBuilder sb) {
+        Map<String, CommandStats> sorted = new TreeMap<String, CommandStats>(commands);
+        for (Map.Entry<String, CommandStats> entry : sorted.entrySet()) {
+            CommandStats stats = entry.getValue();
+            sb.append(entry.getKey());
+            appendLatency(sb, stats.latencyMicros);
+            sb.append(" errors=").append(stats.getErrors()).append(" timeouts=").append(stats.getTimeouts()).append('\n');
+        }
+        sb.append("open");
+        appendLatency(sb, openMicros);
+        sb.append('\n');
+        sb.append("reads n=").append(readBytes.getCount()).append(" empty=").append(getEmptyReads())
+                .append(String.format(Locale.US, " mean=%.1fB", readBytes.getMean())).append(" max=").append(readBytes.getMax()).append("B\n");
+        sb.append("writes n=").append(writeBytes.getCount())
+                .append(String.format(Locale.US, " mean=%.1fB", writeBytes.getMean())).append(" max=").append(writeBytes.getMax()).append("B\n");
+        sb.append("responses matched=").append(getResponsesMatched()).append(" timed-out=").append(getResponsesTimedOut()).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        dump(sb);
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,436 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Shares one connection to an Open Movement AX3 Device between concurrent commands and a sample stream
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+// A reader thread owns the underlying transport's reads, and separates stream frames (passed to the stream listener, if
+// constructed with a stream protocol) from text lines.  Each write of commands is queued as an exchange, in the order written, and response lines are routed to the
+// exchange at the head of the queue: the thread that wrote the commands then reads its responses through the usual methods
+// (raw reads return the bytes of its response lines).
+// Writes are only serialized while writing, so commands from several threads (and the stream) are pipelined on one connection.
+public class AxMultiplexer implements AxTransport, AxStreamProtocol.Listener {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final int READ_TIMEOUT_MS = 100;
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    // An exchange not being read for this long (e.g. a command whose response is not wanted) no longer receives lines
+    private static final long ABANDON_NANOS = 500 * 1000000L;
+
+    // Commands written together, and their responses
+    private static class Exchange {
+        final ArrayDeque<String> lines = new ArrayDeque<String>();
+        int remaining;              // responses still expected
+        boolean reading = false;
+        long idleSince;
+        long headSince = 0;         // when it started receiving lines (0 if not yet)
+        byte[] partial = null;      // line bytes not yet returned by a raw read
+        int partialOffset = 0;
+
+        Exchange(int commands, long now) {
+            this.remaining = commands;
+            this.idleSince = now;
+        }
+    }
+
+    // Text lines only (no stream)
+    private static final class LineParser implements AxStreamProtocol.Parser {
+        private final AxLineFramer framer = new AxLineFramer();
+        private final AxStreamProtocol.Listener listener;
+
+        LineParser(AxStreamProtocol.Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void parse(byte[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (framer.add(buffer[i])) listener.onLine(framer.getBuffer(), framer.getLength());
+            }
+        }
+
+        @Override
+        public long getChecksumErrors() { return 0; }
+    }
+
+    private final AxTransport transport;
+    private final AxStreamProtocol protocol;
+    private final AxStreamProtocol.Parser parser;
+    private final Object writeLock = new Object();
+    private final Object routeLock = new Object();                  // (only held briefly, never during I/O)
+    private final LinkedList<Exchange> exchanges = new LinkedList<Exchange>();
+    private final ThreadLocal<Exchange> current = new ThreadLocal<Exchange>();
+    private volatile AxStreamProtocol.Listener streamListener = null;
+    private volatile AxMetrics metrics = null;
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    private long unsolicited = 0;
+
+    // Commands only
+    public AxMultiplexer(AxTransport transport) {
+        this(transport, null);
+    }
+
+    // Commands, and a stream in the given protocol (for an AxStream on this multiplexer)
+    public AxMultiplexer(AxTransport transport, AxStreamProtocol protocol) {
+        this.transport = transport;
+        this.protocol = protocol;
+        this.parser = protocol != null ? protocol.createParser(this) : new LineParser(this);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "AxMultiplexer");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    // Receives stream frames, and lines that are not responses to a command (null to discard them)
+    public void setStreamListener(AxStreamProtocol.Listener listener) {
+        this.streamListener = listener;
+    }
+
+    // Protocol of the frames parsed (null if none)
+    public AxStreamProtocol getStreamProtocol() {
+        return protocol;
+    }
+
+    // Frames discarded as invalid
+    public long getChecksumErrors() {
+        return parser.getChecksumErrors();
+    }
+
+    public void setMetrics(AxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Lines received when no command was waiting, or not read by the command's thread
+    public long getUnsolicited() {
+        synchronized (routeLock) {
+            return unsolicited;
+        }
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        while (running) {
+            int count = transport.read(buffer, READ_TIMEOUT_MS, true);
+            AxMetrics metrics = this.metrics;
+            if (metrics != null) metrics.recordRead(count);
+            if (count > 0) {
+                parser.parse(buffer, 0, count);
+            }
+        }
+    }
+
+    @Override
+    public void onFrame(short[] samples, int count, int sequence) {
+        AxStreamProtocol.Listener listener = streamListener;
+        if (listener != null) listener.onFrame(samples, count, sequence);
+    }
+
+    // Route a line to the exchange at the head of the queue
+    @Override
+    public void onLine(byte[] line, int length) {
+        String text = new String(line, 0, length, LATIN1);
+        boolean routed;
+        synchronized (routeLock) {
+            Exchange head = head(System.nanoTime());
+            routed = head != null;
+            if (routed) {
+                head.lines.add(text);
+                routeLock.notifyAll();
+            } else {
+                unsolicited++;
+            }
+        }
+        if (!routed) {
+            AxStreamProtocol.Listener listener = streamListener;
+            if (listener != null) listener.onLine(line, length);
+        }
+    }
+
+    // Current head exchange, first removing any that are finished or abandoned (must hold routeLock)
+    private Exchange head(long now) {
+        for (;;) {
+            Exchange head = exchanges.peek();
+            if (head == null) return null;
+            if (head.reading || (head.remaining > 0 && now - head.idleSince < ABANDON_NANOS)) {
+                if (head.headSince == 0) head.headSince = now;
+                return head;
+            }
+            finish(head);
+        }
+    }
+
+    // Remove an exchange, passing any lines it did not read on to the next (must hold routeLock)
+    private void finish(Exchange exchange) {
+        boolean wasHead = exchanges.peek() == exchange;
+        exchanges.remove(exchange);
+        if (wasHead && !exchange.lines.isEmpty()) {
+            Exchange next = exchanges.peek();
+            if (next != null) {
+                while (!exchange.lines.isEmpty()) {
+                    next.lines.addFirst(exchange.lines.pollLast());
+                }
+            } else {
+                unsolicited += exchange.lines.size();
+                exchange.lines.clear();
+            }
+        }
+        if (current.get() == exchange) current.remove();
+        routeLock.notifyAll();
+    }
+
+    // Number of commands (line endings) in written bytes
+    private static int countCommands(byte[] buffer) {
+        int count = 0;
+        for (int i = 0; i < buffer.length; i++) {
+            if (buffer[i] == '\n' || (buffer[i] == '\r' && (i + 1 >= buffer.length || buffer[i + 1] != '\n'))) count++;
+        }
+        return count;
+    }
+
+    // Queue an exchange for the commands (in the order they are written), then write them
+    private int send(byte[] buffer, int timeoutMS) {
+        synchronized (writeLock) {
+            int commands = countCommands(buffer);
+            if (commands > 0) {
+                Exchange exchange = new Exchange(commands, System.nanoTime());
+                Exchange previous = current.get();
+                synchronized (routeLock) {
+                    if (previous != null) {
+                        // This thread has stopped reading it: any lines it holds answer earlier commands, so are dropped
+                        // rather than passed on to this exchange
+                        previous.remaining = 0;
+                        unsolicited += previous.lines.size();
+                        previous.lines.clear();
+                        previous.partial = null;
+                    }
+                    exchanges.add(exchange);
+                }
+                current.set(exchange);
+            }
+            return transport.write(buffer, timeoutMS);
+        }
+    }
+
+    // Read the lines of this thread's current exchange (as AbstractAxTransport.readFramed())
+    private int readExchange(int initialTimeoutMs, int continuationTimeoutMs, CharSequence finalPrefix, CharSequence[] terminalPrefixes, List<String> lines, AxResponse lastLine, AxResponseTimings.Timing timing) {
+        Exchange exchange = current.get();
+        if (exchange == null) return 0;     // nothing written
+        int lineCount = 0;
+        boolean matched = false;
+        long firstData = -1;
+        long lastData = 0;
+        long maxGap = 0;
+        long start = 0;
+        synchronized (routeLock) {
+            exchange.reading = true;
+            try {
+                long deadline = 0;
+                while (!matched) {
+                    long now = System.nanoTime();
+                    Exchange head = head(now);
+                    if (head != exchange) {
+                        // Waiting for earlier exchanges to finish (the time-out starts once this exchange is receiving)
+                        if (!exchanges.contains(exchange)) break;
+                        waitNanos(ABANDON_NANOS);
+                        continue;
+                    }
+                    if (deadline == 0) {
+                        start = exchange.headSince;
+                        deadline = Math.max(start, now) + initialTimeoutMs * 1000000L;
+                    }
+                    String line = exchange.lines.poll();
+                    if (line == null) {
+                        if (now >= deadline) break;
+                        waitNanos(deadline - now);
+                        continue;
+                    }
+                    if (firstData < 0) {
+                        firstData = now;
+                    } else if (now - lastData > maxGap) {
+                        maxGap = now - lastData;
+                    }
+                    lastData = now;
+                    lineCount++;
+                    if (lines != null) lines.add(line);
+                    if (lastLine != null) {
+                        byte[] bytes = line.getBytes(LATIN1);
+                        lastLine.setLine(bytes, 0, bytes.length);
+                    }
+                    if (finalPrefix != null && line.startsWith(finalPrefix.toString())) matched = true;
+                    if (terminalPrefixes != null) {
+                        for (CharSequence prefix : terminalPrefixes) {
+                            if (prefix != null && line.startsWith(prefix.toString())) matched = true;
+                        }
+                    }
+                    deadline = now + continuationTimeoutMs * 1000000L;
+                }
+            } finally {
+                exchange.reading = false;
+                exchange.idleSince = System.nanoTime();
+                // A matched response completes one command; otherwise (quiet or timed-out) no more responses are expected
+                exchange.remaining = matched ? exchange.remaining - 1 : 0;
+                if (exchange.remaining <= 0) finish(exchange);
+            }
+        }
+        AxMetrics metrics = this.metrics;
+        if (metrics != null && (finalPrefix != null || terminalPrefixes != null)) metrics.recordResponse(matched);
+        if (timing != null) timing.record(firstData < 0 ? -1 : firstData - start, maxGap);
+        return lineCount;
+    }
+
+    private void waitNanos(long nanos) {
+        try {
+            routeLock.wait(Math.max(1, nanos / 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Raw reads return this thread's response lines, each with a CRLF line ending (the reader thread owns the transport's reads)
+    public int read(byte[] buffer, int timeoutMS) {
+        return read(buffer, timeoutMS, false);
+    }
+
+    public int read(byte[] buffer, int timeoutMS, boolean single) {
+        Exchange exchange = current.get();
+        if (exchange == null) return 0;     // nothing written
+        int offset = 0;
+        synchronized (routeLock) {
+            exchange.reading = true;
+            try {
+                long deadline = 0;
+                while (offset < buffer.length) {
+                    if (exchange.partial != null) {
+                        int count = Math.min(buffer.length - offset, exchange.partial.length - exchange.partialOffset);
+                        System.arraycopy(exchange.partial, exchange.partialOffset, buffer, offset, count);
+                        offset += count;
+                        exchange.partialOffset += count;
+                        if (exchange.partialOffset >= exchange.partial.length) exchange.partial = null;
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    Exchange head = head(now);
+                    if (head != exchange) {
+                        // Waiting for earlier exchanges to finish (the time-out starts once this exchange is receiving)
+                        if (!exchanges.contains(exchange)) break;
+                        waitNanos(ABANDON_NANOS);
+                        continue;
+                    }
+                    if (deadline == 0) {
+                        deadline = Math.max(exchange.headSince, now) + timeoutMS * 1000000L;
+                    }
+                    String line = exchange.lines.poll();
+                    if (line == null) {
+                        if ((single && offset > 0) || now >= deadline) break;
+                        waitNanos(deadline - now);
+                        continue;
+                    }
+                    exchange.partial = (line + "\r\n").getBytes(LATIN1);
+                    exchange.partialOffset = 0;
+                }
+            } finally {
+                exchange.reading = false;
+                exchange.idleSince = System.nanoTime();
+                // Quiet (or timed-out): no more responses are expected
+                if (offset == 0) {
+                    exchange.remaining = 0;
+                    finish(exchange);
+                }
+            }
+        }
+        return offset;
+    }
+
+    public int write(byte[] buffer, int timeoutMS) {
+        return send(buffer, timeoutMS);
+    }
+
+    public int write(ByteBuffer buffer, int timeoutMS) {
+        int length = buffer.remaining();
+        byte[] data = new byte[length];
+        buffer.duplicate().get(data);
+        int written = send(data, timeoutMS);
+        buffer.position(buffer.position() + written);
+        return written;
+    }
+
+    public boolean writeString(String str, int timeoutMS) {
+        byte[] data = str.getBytes(UTF8);
+        return send(data, timeoutMS) == data.length;
+    }
+
+    public String[] readLines(int initialTimeoutMs, int continuationTimeoutMs, String finalPrefix) {
+        List<String> lines = new ArrayList<String>();
+        readExchange(initialTimeoutMs, continuationTimeoutMs, finalPrefix, null, lines, null, null);
+        return lines.toArray(new String[0]);
+    }
+
+    public boolean readResponse(int initialTimeoutMs, int continuationTimeoutMs, CharSequence finalPrefix, AxResponse response) {
+        response.clear();
+        return readExchange(initialTimeoutMs, continuationTimeoutMs, finalPrefix, null, null, response, null) > 0;
+    }
+
+    public String[] readLines(AxResponseTimings.Timing timing, int maxTimeoutMs, int maxContinuationTimeoutMs, CharSequence[] terminalPrefixes) {
+        List<String> lines = new ArrayList<String>();
+        readExchange(timing.getInitialTimeoutMs(maxTimeoutMs, terminalPrefixes != null), timing.getContinuationTimeoutMs(maxContinuationTimeoutMs), null, terminalPrefixes, lines, null, timing);
+        return lines.toArray(new String[0]);
+    }
+
+    public boolean readResponse(AxResponseTimings.Timing timing, int maxTimeoutMs, int maxContinuationTimeoutMs, CharSequence finalPrefix, CharSequence[] terminalPrefixes, AxResponse response) {
+        response.clear();
+        return readExchange(timing.getInitialTimeoutMs(maxTimeoutMs, finalPrefix != null || terminalPrefixes != null), timing.getContinuationTimeoutMs(maxContinuationTimeoutMs), finalPrefix, terminalPrefixes, null, response, timing) > 0;
+    }
+
+    // Stop the reader thread and close the underlying transport
+    public void close() {
+        running = false;
+        try {
+            thread.join(READ_TIMEOUT_MS * 5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        transport.close();
+        synchronized (routeLock) {
+            routeLock.notifyAll();
+        }
+    }
+
+}
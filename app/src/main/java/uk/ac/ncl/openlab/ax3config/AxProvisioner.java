@@ -0,0 +1,227 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Parallel configuration of multiple Open Movement AX3 Devices
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AxProvisioner {
+
+    // A device to be provisioned
+    public interface Target {
+        AxTransport open() throws IOException;
+        // Configuration of the open device (a pooled connection's own, with its learned timings and cached status)
+        AxConfig getConfig();
+        int getSerialNumber();
+        // Finish with the device (failed: communication failed, so the connection may no longer be usable)
+        void close(boolean failed);
+    }
+
+    // Configuration to apply to each device (called on the worker thread, just before configuring)
+    public interface Configurator {
+        AxConfiguration getConfiguration(int serialNumber);
+    }
+
+    // Results are reported as each device completes (called on the worker threads)
+    public interface Listener {
+        void onResult(Result result);
+        void onFinished(int count);
+    }
+
+    public enum Outcome {
+        CONFIGURED,             // configured (an existing configuration may have been overwritten)
+        EXISTING_CONFIGURATION, // not configured as the device already had a configuration
+        LOW_BATTERY,            // not configured as the battery was below the minimum
+        FAILED                  // communication error or command not accepted
+    }
+
+    public static class Result {
+        private final int serialNumber;
+        private final Outcome outcome;
+        private final String message;
+        private final boolean overwritten;
+        private final long openMs, checkMs, configureMs, totalMs;
+        private final AxClockSync.Result clockSync;
+
+        Result(int serialNumber, Outcome outcome, String message, boolean overwritten, long openMs, long checkMs, long configureMs, long totalMs, AxClockSync.Result clockSync) {
+            this.serialNumber = serialNumber;
+            this.outcome = outcome;
+            this.message = message;
+            this.overwritten = overwritten;
+            this.openMs = openMs;
+            this.checkMs = checkMs;
+            this.configureMs = configureMs;
+            this.totalMs = totalMs;
+            this.clockSync = clockSync;
+        }
+
+        public int getSerialNumber() { return serialNumber; }
+        public Outcome getOutcome() { return outcome; }
+        public String getMessage() { return message; }
+        public boolean isOverwritten() { return overwritten; }
+        public long getOpenMs() { return openMs; }
+        public long getCheckMs() { return checkMs; }
+        public long getConfigureMs() { return configureMs; }
+        public long getTotalMs() { return totalMs; }
+        public AxClockSync.Result getClockSync() { return clockSync; }    // (null unless the clock was synchronised)
+
+        @Override
+        public String toString() {
+            return "Device " + serialNumber + ": " + outcome + (message != null ? " (" + message + ")" : "")
+                    + " -- open " + openMs + " ms, check " + checkMs + " ms, configure " + configureMs + " ms, total " + totalMs + " ms"
+                    + (clockSync != null ? " -- clock " + clockSync : "");
+        }
+    }
+
+    private final ExecutorService executor;
+    private int minimumBattery = 80;
+    private boolean allowOverwrite = false;
+    private volatile AxMetrics metrics = null;
+
+    // Provision on a worker pool of at most the given size
+    public AxProvisioner(int maxWorkers) {
+        this.executor = Executors.newFixedThreadPool(Math.max(maxWorkers, 1), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AxProvisioner-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setMinimumBattery(int minimumBattery) { this.minimumBattery = minimumBattery; }
+    public void setAllowOverwrite(boolean allowOverwrite) { this.allowOverwrite = allowOverwrite; }
+    public void setMetrics(AxMetrics metrics) { this.metrics = metrics; }
+
+    // Start provisioning the targets concurrently (returns immediately, results are reported to the listener)
+    public void provision(List<? extends Target> targets, final Configurator configurator, final Listener listener) {
+        final int count = targets.size();
+        if (count == 0) {
+            listener.onFinished(0);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (final Target target : targets) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Result result;
+                        try {
+                            result = provision(target, configurator);
+                        } catch (RuntimeException e) {
+                            // (only if closing the target failed)
+                            result = new Result(-1, Outcome.FAILED, e.toString(), false, 0, 0, 0, 0, null);
+                        }
+                        listener.onResult(result);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            listener.onFinished(count);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // Check, then configure, a single device (on the calling thread)
+    public Result provision(Target target, Configurator configurator) {
+        long start = System.nanoTime();
+        long opened = start, checked = start;
+        int serialNumber = -1;
+        boolean overwritten = false;
+        AxClockSync.Result clockSync = null;
+        boolean failed = false;
+        try {
+            AxTransport transport = target.open();
+            AxConfig config = target.getConfig();
+            if (metrics != null) {
+                transport.setMetrics(metrics);
+                config.setMetrics(metrics);
+            }
+            serialNumber = target.getSerialNumber();
+            opened = System.nanoTime();
+
+            DeviceStatus status = config.readStatus();     // (one exchange)
+            boolean existing = status.hasConfiguration();
+            int battery = status.getBattery();
+            checked = System.nanoTime();
+            if (existing && !allowOverwrite) {
+                return result(serialNumber, Outcome.EXISTING_CONFIGURATION, null, false, start, opened, checked, checked, null);
+            }
+            if (battery < minimumBattery) {
+                return result(serialNumber, Outcome.LOW_BATTERY, "battery " + battery + "%", false, start, opened, checked, checked, null);
+            }
+            overwritten = existing;
+
+            AxCommandBatch batch = config.configure(configurator.getConfiguration(serialNumber));
+            long configured = System.nanoTime();
+            clockSync = config.getClockSync();
+            if (!batch.isSuccess()) {
+                String[] errors = batch.getErrors();
+                return result(serialNumber, Outcome.FAILED, errors.length > 0 ? errors[0] : null, overwritten, start, opened, checked, configured, clockSync);
+            }
+            return result(serialNumber, Outcome.CONFIGURED, null, overwritten, start, opened, checked, configured, clockSync);
+        } catch (IOException e) {
+            failed = true;
+            long now = System.nanoTime();
+            return result(serialNumber, Outcome.FAILED, e.getMessage(), overwritten, start, Math.max(opened, start), Math.max(checked, opened), now, clockSync);
+        } catch (RuntimeException e) {
+            // (e.g. a malformed reply, or a configurator bug -- reported against the device rather than lost on the worker)
+            failed = true;
+            long now = System.nanoTime();
+            return result(serialNumber, Outcome.FAILED, e.toString(), overwritten, start, Math.max(opened, start), Math.max(checked, opened), now, clockSync);
+        } finally {
+            target.close(failed);
+        }
+    }
+
+    private static Result result(int serialNumber, Outcome outcome, String message, boolean overwritten, long start, long opened, long checked, long configured, AxClockSync.Result clockSync) {
+        long end = System.nanoTime();
+        return new Result(serialNumber, outcome, message, overwritten,
+                (opened - start) / 1000000, (checked - opened) / 1000000, (configured - checked) / 1000000, (end - start) / 1000000, clockSync);
+    }
+
+    // Stop accepting new devices, and wait for those in progress
+    public void shutdown(long timeoutMs) {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
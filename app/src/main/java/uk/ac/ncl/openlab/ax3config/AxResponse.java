@@ -0,0 +1,172 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Response line tokenizer for Open Movement AX3 Device (fields are views onto a reused buffer)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.charset.Charset;
+
+public class AxResponse {
+
+    // Bytes map directly to characters
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private byte[] data = new byte[128];
+    private int length = 0;
+
+    // Field 0 is the key, followed by the value(s)
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count = 0;
+
+    // Set the response line (copied)
+    public void setLine(byte[] buffer, int offset, int length) {
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+        System.arraycopy(buffer, offset, data, 0, length);
+        this.length = length;
+        this.count = 0;
+    }
+
+    public void clear() {
+        length = 0;
+        count = 0;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    private void addField(int start, int end) {
+        if (count >= starts.length) {
+            int[] newStarts = new int[starts.length * 2];
+            int[] newEnds = new int[ends.length * 2];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(ends, 0, newEnds, 0, count);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    // Split into the key and either comma/space separated values, or a single value
+    public void tokenize(boolean commaSeparated) {
+        count = 0;
+        int start = 0;
+        int end = length;
+        while (start < end && data[start] <= ' ') start++;
+        while (end > start && data[end - 1] <= ' ') end--;
+        for (int i = start; i < end; i++) {
+            byte c = data[i];
+            if (c == ':' || c == ' ' || c == '=' || c == ',') {
+                addField(start, i);
+                if (commaSeparated) {
+                    // Parsed comma/space separated values
+                    int fieldStart = i + 1;
+                    for (int j = fieldStart; j < end; j++) {
+                        if (data[j] == ',' || data[j] == ' ') {
+                            addField(fieldStart, j);
+                            fieldStart = j + 1;
+                        }
+                    }
+                    if (fieldStart < end) addField(fieldStart, end);
+                } else {
+                    // Parsed name/value pair
+                    addField(i + 1, end);
+                }
+                return;
+            }
+        }
+        // Unparsed: whole line
+        addField(start, end);
+    }
+
+    public boolean startsWith(CharSequence prefix) {
+        return AxLineFramer.startsWith(data, 0, length, prefix);
+    }
+
+    public int getFieldCount() {
+        return count;
+    }
+
+    public int getFieldLength(int index) {
+        return ends[index] - starts[index];
+    }
+
+    public boolean fieldEquals(int index, CharSequence value) {
+        return getFieldLength(index) == value.length() && AxLineFramer.startsWith(data, starts[index], getFieldLength(index), value);
+    }
+
+    // Parse a field as a decimal number, in place
+    public long getLong(int index) {
+        int i = starts[index];
+        int end = ends[index];
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i >= end || end - i > 18) {
+            throw new NumberFormatException("Invalid number: " + getString(index));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid number: " + getString(index));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public int getInt(int index) {
+        long value = getLong(index);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Number out of range: " + getString(index));
+        }
+        return (int) value;
+    }
+
+    // Field as a string (allocates)
+    public String getString(int index) {
+        return decode(data, starts[index], ends[index] - starts[index]);
+    }
+
+    // Whole line as a string (allocates)
+    @Override
+    public String toString() {
+        return decode(data, 0, length);
+    }
+
+    static String decode(byte[] buffer, int offset, int length) {
+        return new String(buffer, offset, length, LATIN1);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Learned response timings for Open Movement AX3 Device commands (per command, for one device)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class AxResponseTimings {
+
+    // Timing of responses to one command
+    public static class Timing {
+        private static final int MIN_SAMPLES = 4;           // use the maximum timeouts until this many responses have been seen
+        private static final int MIN_INITIAL_MS = 100;
+        private static final int MIN_CONTINUATION_MS = 20;
+        private static final double MARGIN_MS = 20;
+
+        // Smoothed latency (to the first bytes of the response) and its mean deviation, and smoothed maximum gap between packets
+        private long samples = 0;
+        private long timeouts = 0;
+        private double latencyMs = 0;
+        private double latencyDeviationMs = 0;
+        private double gapMs = 0;
+        private boolean backedOff = false;                  // the last exchange timed out
+
+        // Time to wait for the start of a response: the maximum when its end is recognised (by a final or terminal prefix), as
+        // the wait ends when it arrives and a slow reply must not be lost; otherwise adapted to the latency (the maximum after
+        // a time-out, until a response is next seen, as RFC 6298 backs off)
+        public synchronized int getInitialTimeoutMs(int maxTimeoutMs, boolean recognisedEnd) {
+            if (recognisedEnd || samples < MIN_SAMPLES || backedOff) return maxTimeoutMs;
+            int timeout = (int) Math.ceil(latencyMs + 4 * latencyDeviationMs + MARGIN_MS);
+            return Math.max(Math.min(timeout, maxTimeoutMs), Math.min(MIN_INITIAL_MS, maxTimeoutMs));
+        }
+
+        // Quiet period after which a response is considered complete
+        public synchronized int getContinuationTimeoutMs(int maxTimeoutMs) {
+            if (samples < MIN_SAMPLES || backedOff) return maxTimeoutMs;
+            int timeout = (int) Math.ceil(4 * gapMs + MARGIN_MS / 4);
+            return Math.max(Math.min(timeout, maxTimeoutMs), Math.min(MIN_CONTINUATION_MS, maxTimeoutMs));
+        }
+
+        // Record an exchange: time to the first bytes (negative if none were received), and the longest gap between packets
+        public synchronized void record(long latencyNanos, long maxGapNanos) {
+            if (latencyNanos < 0) {
+                timeouts++;
+                backedOff = true;
+                return;
+            }
+            backedOff = false;
+            double latency = latencyNanos / 1000000.0;
+            double gap = maxGapNanos / 1000000.0;
+            if (samples == 0) {
+                latencyMs = latency;
+                latencyDeviationMs = latency / 2;
+                gapMs = gap;
+            } else {
+                // As TCP round-trip estimation (RFC 6298), but the gap estimate rises immediately
+                latencyDeviationMs += (Math.abs(latency - latencyMs) - latencyDeviationMs) / 4;
+                latencyMs += (latency - latencyMs) / 8;
+                gapMs = gap > gapMs ? gap : gapMs + (gap - gapMs) / 8;
+            }
+            samples++;
+        }
+
+        public synchronized long getSamples() { return samples; }
+        public synchronized long getTimeouts() { return timeouts; }
+        public synchronized double getLatencyMs() { return latencyMs; }
+        public synchronized double getLatencyDeviationMs() { return latencyDeviationMs; }
+        public synchronized double getGapMs() { return gapMs; }
+
+        // Restore previously learned values (as fewer samples than needed to adapt the timeouts, so a response on the new
+        // connection must be seen first)
+        public synchronized void set(long samples, double latencyMs, double latencyDeviationMs, double gapMs) {
+            this.samples = Math.min(samples, MIN_SAMPLES - 1);
+            this.latencyMs = latencyMs;
+            this.latencyDeviationMs = latencyDeviationMs;
+            this.gapMs = gapMs;
+        }
+    }
+
+    private final ConcurrentMap<String, Timing> timings = new ConcurrentHashMap<String, Timing>();
+
+    // Timing for a command (e.g. "SESSION", or "FORMAT WC" where the argument changes the response time)
+    public Timing get(String key) {
+        Timing timing = timings.get(key);
+        if (timing == null) {
+            Timing newTiming = new Timing();
+            timing = timings.putIfAbsent(key, newTiming);
+            if (timing == null) timing = newTiming;
+        }
+        return timing;
+    }
+
+    public Map<String, Timing> getAll() {
+        return timings;
+    }
+
+}
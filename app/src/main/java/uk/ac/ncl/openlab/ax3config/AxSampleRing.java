@@ -0,0 +1,98 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Single-producer/single-consumer ring buffer of accelerometer samples (lock-free, primitive, no allocation once created)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AxSampleRing {
+
+    private final short[] samples;      // interleaved x/y/z
+    private final int mask;             // capacity (in samples) - 1
+
+    // Total samples written (by the producer) and read (by the consumer); each side caches the other's position
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+    private long cachedHead = 0;        // producer's view of head
+    private long cachedTail = 0;        // consumer's view of tail
+
+    // Capacity in samples (rounded up to a power of two)
+    public AxSampleRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        samples = new short[size * 3];
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Samples available to read
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // Producer: add up to count samples (interleaved x/y/z from the offset), returns the number added (fewer if full)
+    public int offer(short[] source, int offset, int count) {
+        long writeIndex = tail.get();
+        int capacity = mask + 1;
+        if (writeIndex + count - cachedHead > capacity) {
+            cachedHead = head.get();
+            count = (int) Math.min(count, capacity - (writeIndex - cachedHead));
+            if (count <= 0) return 0;
+        }
+        copy(source, offset, samples, (int) (writeIndex & mask), count, true);
+        tail.lazySet(writeIndex + count);     // (ordered store: the samples are visible before the new tail)
+        return count;
+    }
+
+    // Consumer: remove up to maxCount samples (interleaved x/y/z to the offset), returns the number removed
+    public int poll(short[] destination, int offset, int maxCount) {
+        long readIndex = head.get();
+        if (cachedTail - readIndex < maxCount) {
+            cachedTail = tail.get();
+        }
+        int count = (int) Math.min(maxCount, cachedTail - readIndex);
+        if (count <= 0) return 0;
+        copy(destination, offset, samples, (int) (readIndex & mask), count, false);
+        head.lazySet(readIndex + count);
+        return count;
+    }
+
+    // Copy samples to/from the ring at a (sample) index, wrapping around the end
+    private void copy(short[] array, int offset, short[] ring, int index, int count, boolean toRing) {
+        int first = Math.min(count, mask + 1 - index);
+        if (toRing) {
+            System.arraycopy(array, offset, ring, index * 3, first * 3);
+            System.arraycopy(array, offset + first * 3, ring, 0, (count - first) * 3);
+        } else {
+            System.arraycopy(ring, index * 3, array, offset, first * 3);
+            System.arraycopy(ring, 0, array, offset + first * 3, (count - first) * 3);
+        }
+    }
+
+}
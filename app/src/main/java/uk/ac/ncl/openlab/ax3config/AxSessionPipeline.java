@@ -0,0 +1,275 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Background device sessions for Open Movement AX3 Device (all device I/O off the UI thread)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AxSessionPipeline {
+
+    // Work to perform with an open device (runs on a background thread)
+    public interface Task {
+        void run(Session session) throws IOException;
+    }
+
+    // Progress and completion (called on the main thread)
+    public interface Listener {
+        void onProgress(String message);
+        void onFinished(boolean success, String message);
+    }
+
+    // An open device, as seen by a task
+    public static class Session {
+        private final Job job;
+
+        Session(Job job) {
+            this.job = job;
+        }
+
+        public UsbSerialPort getPort() { return job.port; }
+        public AxConfig getConfig() { return job.config; }
+
+        // Post a progress message to the listener
+        public void progress(String message) {
+            job.progress(message);
+        }
+
+        public boolean isCancelled() {
+            return job.cancelled;
+        }
+
+        // Throws if the session has been cancelled or has timed out (call between steps)
+        public void checkCancelled() throws InterruptedIOException {
+            if (job.cancelled) {
+                throw new InterruptedIOException(job.cancelReason);
+            }
+        }
+    }
+
+    private static final int PENDING = 0, RUNNING = 1, DONE = 2;
+
+    // A submitted session: open, run the task, close
+    public final class Job implements Runnable {
+        private final UsbDevice device;
+        private volatile UsbSerialPort port = null;
+        private AxDeviceRegistry.Connection connection = null;
+        private final Task task;
+        private final Listener listener;
+        private final int timeoutMs;
+        private AxConfig config;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile boolean cancelled = false;
+        private volatile String cancelReason = null;
+        private volatile Thread thread = null;
+        private ScheduledFuture<?> timeout = null;
+
+        Job(UsbDevice device, int timeoutMs, Task task, Listener listener) {
+            this.device = device;
+            this.timeoutMs = timeoutMs;
+            this.task = task;
+            this.listener = listener;
+        }
+
+        private void progress(final String message) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProgress(message);
+                }
+            });
+        }
+
+        private void finish(final boolean success, final String message) {
+            state.set(DONE);
+            jobs.remove(this);
+            if (timeout != null) timeout.cancel(false);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFinished(success, message);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(PENDING, RUNNING)) return;     // cancelled before starting
+            thread = Thread.currentThread();
+            boolean success = false;
+            boolean failed = true;
+            String message = null;
+            AxDeviceRegistry registry = AxSessionPipeline.this.registry;
+            try {
+                if (registry != null) {
+                    // Connection from the pool (opened only if not already open)
+                    connection = registry.acquire(device);
+                    port = connection.getPort();
+                    config = connection.getConfig();
+                } else {
+                    port = new UsbSerialPort(device);
+                    port.setMetrics(metrics);
+                    port.open(usbManager);
+                    config = new AxConfig(port);
+                    config.setMetrics(metrics);
+                }
+                if (cancelled) {
+                    // Cancelled while opening: the session is not started on the closed port
+                    port.close();
+                    message = cancelReason;
+                } else {
+                    task.run(new Session(this));
+                    failed = false;
+                    success = !cancelled;
+                    if (cancelled) message = cancelReason;
+                }
+            } catch (IOException e) {
+                message = cancelled ? cancelReason : "IO EXCEPTION: " + e.getMessage() + (port != null ? "\nOPEN DEBUG LOG: " + port.getDebugInfo() : "");
+            } catch (RuntimeException e) {
+                message = cancelled ? cancelReason : "EXCEPTION: " + e.getMessage();
+            } finally {
+                thread = null;
+                if (connection != null) {
+                    // Keep the connection open for the next session, unless it may no longer be usable
+                    if (failed || cancelled) {
+                        registry.invalidate(connection);
+                    } else {
+                        registry.release(connection);
+                    }
+                } else if (port != null) {
+                    progress("Closing...");
+                    port.close();
+                }
+                Thread.interrupted();   // clear any interrupt from cancellation
+            }
+            finish(success, message);
+        }
+
+        // Cancel the session (any blocking transfer is abandoned by closing the device)
+        public void cancel() {
+            cancel("Cancelled");
+        }
+
+        void cancel(String reason) {
+            if (cancelled) return;
+            cancelReason = reason;
+            cancelled = true;
+            if (state.compareAndSet(PENDING, DONE)) {
+                finish(false, reason);
+                return;
+            }
+            Thread t = thread;
+            if (t != null) {
+                t.interrupt();
+                UsbSerialPort p = port;
+                if (p != null) p.close();
+            }
+        }
+
+        public boolean isDone() {
+            return state.get() == DONE;
+        }
+    }
+
+    private final UsbManager usbManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Set<Job> jobs = Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+
+    private volatile AxMetrics metrics = null;
+    private volatile AxDeviceRegistry registry = null;
+
+    public AxSessionPipeline(UsbManager usbManager, int maxSessions) {
+        this.usbManager = usbManager;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AxSession-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(Math.max(maxSessions, 1), threadFactory);
+        this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    // Record metrics for subsequent sessions (null to stop recording)
+    public void setMetrics(AxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Use (and keep open) connections from the registry for subsequent sessions, rather than opening and closing the device each time (null to stop)
+    public void setRegistry(AxDeviceRegistry registry) {
+        this.registry = registry;
+    }
+
+    // Queue a session with the device, which is cancelled if not complete within the timeout (0 for none)
+    public Job submit(UsbDevice device, int timeoutMs, Task task, Listener listener) {
+        final Job job = new Job(device, timeoutMs, task, listener);
+        jobs.add(job);
+        if (timeoutMs > 0) {
+            job.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    job.cancel("Timed out after " + job.timeoutMs + " ms");
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        executor.execute(job);
+        return job;
+    }
+
+    public void cancelAll() {
+        for (Job job : jobs) {
+            job.cancel();
+        }
+    }
+
+    public void shutdown() {
+        cancelAll();
+        executor.shutdown();
+        timer.shutdown();
+    }
+
+}
@@ -0,0 +1,347 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Simulated Open Movement AX3 Device (in-process transport for testing and benchmarking without hardware)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+public class AxSimulator extends AbstractAxTransport {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");    // (one byte per character)
+    private static final String DATE_FORMAT = "yyyy/MM/dd','HH:mm:ss";
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+
+    // Link characteristics
+    private int packetSize = 64;                // maximum bytes per packet (fragmentation)
+    private boolean randomFragmentation = false; // split responses at random points within the packet size
+    private long latencyNanos = 0;              // delay before each packet is available
+    private long jitterNanos = 0;               // additional random delay (0..jitter) per packet
+    private long writeLatencyNanos = 0;         // delay before a received command is processed
+    private final Random random;
+
+    // Device state
+    private int sessionId = 0;
+    private String startTime = "-1";
+    private String endTime = "0";
+    private int rateValue = 0x4a;               // 100 Hz, +/- 8g
+    private long timeOffsetMs = 0;
+    private int led = 0;
+    private int battery = 100;
+    private int commandCount = 0;
+
+    // Live stream (frames generated at the sample rate while reading)
+    private int streamFormat = -1;              // -1 when not streaming
+    private long streamStartNanos = 0;
+    private long streamSamples = 0;             // samples generated
+    private int streamSequence = 0;
+    private final short[] streamFrame = new short[AxStreamParser.MAX_FRAME_SAMPLES * 3];
+    private final byte[] streamBuffer = new byte[AxStreamParser.MAX_FRAME_SAMPLES * 6 + 16];
+
+    // Scripted responses, by command (upper case)
+    private final Map<String, String[]> script = new HashMap<String, String[]>();
+
+    // Pending output
+    private static class Packet {
+        final byte[] data;
+        final long dueNanos;
+        int offset = 0;
+        Packet(byte[] data, long dueNanos) {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+    }
+    private final LinkedList<Packet> packets = new LinkedList<Packet>();
+    private long lastDueNanos = 0;
+
+    // Incoming command line
+    private final StringBuilder input = new StringBuilder();
+    private boolean closed = false;
+
+    public AxSimulator() {
+        this(0);
+    }
+
+    public AxSimulator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    // Maximum packet size, and whether responses are split at random points
+    public synchronized void setFragmentation(int packetSize, boolean random) {
+        if (packetSize <= 0) throw new IllegalArgumentException("Invalid packet size");
+        this.packetSize = packetSize;
+        this.randomFragmentation = random;
+    }
+
+    // Per-packet latency and random jitter, in microseconds
+    public synchronized void setLatency(long latencyMicros, long jitterMicros) {
+        this.latencyNanos = latencyMicros * 1000;
+        this.jitterNanos = jitterMicros * 1000;
+    }
+
+    // Delay between a command being written and the device acting on it, in microseconds
+    public synchronized void setWriteLatency(long latencyMicros) {
+        this.writeLatencyNanos = latencyMicros * 1000;
+    }
+
+    // Reply to an exact command with the given lines (instead of the simulated firmware behaviour)
+    public synchronized void setResponse(String command, String... lines) {
+        script.put(command.trim().toUpperCase(Locale.US), lines);
+    }
+
+    public synchronized void clearResponses() {
+        script.clear();
+    }
+
+    public synchronized void setBattery(int battery) { this.battery = battery; }
+    public synchronized int getSessionId() { return sessionId; }
+    public synchronized int getLed() { return led; }
+    public synchronized int getCommandCount() { return commandCount; }
+    public synchronized long getStreamSamples() { return streamSamples; }
+
+    // Simulated acceleration (1/256 g) of a streamed sample's axis
+    public static short streamValue(long sample, int axis) {
+        return (short) ((int) (200 * Math.sin((sample + axis * 33) * 0.01)) + (axis == 2 ? 256 : 0));
+    }
+
+    // Device clock
+    public synchronized Date getDeviceTime() {
+        return new Date(System.currentTimeMillis() + timeOffsetMs);
+    }
+
+    // Difference between the device clock and the host's (the clock keeps the sub-second phase at which it was set)
+    public synchronized long getDeviceTimeOffsetMs() {
+        return timeOffsetMs;
+    }
+
+    public synchronized void setDeviceTimeOffsetMs(long offsetMs) {
+        this.timeOffsetMs = offsetMs;
+    }
+
+    // Queue unsolicited output (e.g. a banner) as if sent by the device
+    public synchronized void inject(String text) {
+        enqueue(text);
+    }
+
+    private String dateString(String value) throws ParseException {
+        if (value.equals("0") || value.equals("-1")) return value;
+        return dateFormat.format(dateFormat.parse(value));
+    }
+
+    private static int rateFrequency(int value) {
+        return 3200 >> (15 - (value & 0x0f));
+    }
+
+    // Firmware command handling (at the host time the device acts on the command)
+    private String[] respond(String line, long nowMs) {
+        String command = line.trim();
+        if (command.length() == 0) return new String[0];
+        commandCount++;
+        String[] scripted = script.get(command.toUpperCase(Locale.US));
+        if (scripted != null) return scripted;
+
+        String name = command;
+        String argument = null;
+        int space = command.indexOf(' ');
+        if (space >= 0) {
+            name = command.substring(0, space);
+            argument = command.substring(space + 1).trim();
+        }
+        name = name.toUpperCase(Locale.US);
+
+        try {
+            if (name.equals("SESSION")) {
+                if (argument != null) sessionId = (int) Long.parseLong(argument, 10);
+                return new String[] { "SESSION=" + sessionId };
+            } else if (name.equals("HIBERNATE")) {
+                if (argument != null) startTime = dateString(argument);
+                return new String[] { "HIBERNATE=" + startTime };
+            } else if (name.equals("STOP")) {
+                if (argument != null) endTime = dateString(argument);
+                return new String[] { "STOP=" + endTime };
+            } else if (name.equals("RATE")) {
+                if (argument != null) rateValue = Integer.parseInt(argument, 10);
+                return new String[] { "RATE=" + rateValue + "," + rateFrequency(rateValue) };
+            } else if (name.equals("TIME")) {
+                if (argument != null) {
+                    timeOffsetMs = dateFormat.parse(argument).getTime() - nowMs;
+                }
+                return new String[] { "$TIME=" + dateFormat.format(new Date(nowMs + timeOffsetMs)) };
+            } else if (name.equals("FORMAT")) {
+                if (argument == null || !(argument.equalsIgnoreCase("QC") || argument.equalsIgnoreCase("WC"))) {
+                    return new String[] { "ERROR: Unknown format type." };
+                }
+                return new String[] { "FORMAT: Delayed activation." };
+            } else if (name.equals("LED")) {
+                if (argument != null) led = Integer.parseInt(argument, 10);
+                return new String[] { "LED=" + led };
+            } else if (name.equals("STREAM")) {
+                // Experimental stream (see AxStreamParser, not a command of the released firmware): "STREAM 1": packed
+                // frames, "STREAM 2": unpacked frames, "STREAM 0": stop
+                int mode = argument != null ? Integer.parseInt(argument, 10) : 0;
+                if (mode == 1 || mode == 2) {
+                    streamFormat = mode == 1 ? AxStreamParser.FORMAT_PACKED : AxStreamParser.FORMAT_UNPACKED;
+                    streamStartNanos = System.nanoTime();
+                    streamSamples = 0;
+                } else {
+                    streamFormat = -1;
+                }
+                return new String[] { "STREAM=" + mode };
+            } else if (name.equals("SAMPLE")) {
+                int millivolts = 3500 + 7 * battery;
+                return new String[] { "$BATT=" + (millivolts * 1024 / 6000) + "," + millivolts + ",mV," + battery + "," + (battery >= 100 ? 1 : 0) };
+            }
+        } catch (NumberFormatException e) {
+            return new String[] { "ERROR: Invalid value." };
+        } catch (ParseException e) {
+            return new String[] { "ERROR: Invalid date." };
+        }
+        return new String[] { "ERROR: Unknown command: " + command };
+    }
+
+    // Split output into packets, each delivered after the configured latency (in order)
+    private void enqueue(String text) {
+        enqueue(text.getBytes(LATIN1), text.length(), System.nanoTime());
+    }
+
+    private void enqueue(byte[] bytes, int total) {
+        enqueue(bytes, total, System.nanoTime());
+    }
+
+    private void enqueue(byte[] bytes, int total, long now) {
+        int offset = 0;
+        while (offset < total) {
+            int length = Math.min(packetSize, total - offset);
+            if (randomFragmentation && length > 1) {
+                length = 1 + random.nextInt(length);
+            }
+            byte[] data = new byte[length];
+            System.arraycopy(bytes, offset, data, 0, length);
+            offset += length;
+
+            long delay = latencyNanos;
+            if (jitterNanos > 0) {
+                delay += (long) (random.nextDouble() * jitterNanos);
+            }
+            long due = Math.max(now, lastDueNanos) + delay;
+            lastDueNanos = due;
+            packets.add(new Packet(data, due));
+        }
+        notifyAll();
+    }
+
+    // Frames of streamed samples that are due (about every 10 ms), returns when the next frame is due
+    private long generateStream(long now) {
+        double frequency = rateFrequency(rateValue);
+        int perFrame = (int) Math.max(1, Math.min(AxStreamParser.MAX_FRAME_SAMPLES, frequency / 100));
+        for (;;) {
+            long frameDue = streamStartNanos + (long) ((streamSamples + perFrame) * 1000000000L / frequency);
+            if (frameDue > now) return frameDue;
+            for (int i = 0; i < perFrame; i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    streamFrame[i * 3 + axis] = streamValue(streamSamples + i, axis);
+                }
+            }
+            int length = AxStreamParser.encode(streamFrame, 0, perFrame, streamFormat, streamSequence, streamBuffer, 0);
+            enqueue(streamBuffer, length);
+            streamSamples += perFrame;
+            streamSequence = (streamSequence + 1) & 0xffff;
+        }
+    }
+
+    // Read bytes
+    public synchronized int read(byte[] buffer, int timeoutMS, boolean single) {
+        long deadline = System.nanoTime() + timeoutMS * 1000000L;
+        int offset = 0;
+        while (offset < buffer.length && !closed) {
+            long now = System.nanoTime();
+            long streamDue = streamFormat >= 0 ? generateStream(now) : Long.MAX_VALUE;
+            Packet packet = packets.peek();
+            if (packet != null && packet.dueNanos <= now) {
+                int count = Math.min(buffer.length - offset, packet.data.length - packet.offset);
+                System.arraycopy(packet.data, packet.offset, buffer, offset, count);
+                packet.offset += count;
+                offset += count;
+                if (packet.offset >= packet.data.length) {
+                    packets.remove();
+                }
+                if (single) break;
+                continue;
+            }
+            long wait = Math.min(packet != null ? Math.min(packet.dueNanos, deadline) : deadline, streamDue) - now;
+            if (wait <= 0) break;   // time-out
+            try {
+                wait(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return offset;
+    }
+
+    // Write bytes (commands are processed as each line is received)
+    public synchronized int write(byte[] buffer, int offset, int length, int timeoutMS) {
+        if (closed) return 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = (char) buffer[i];
+            if (c == '\r' || c == '\n') {
+                if (input.length() > 0) {
+                    String[] lines = respond(input.toString(), System.currentTimeMillis() + writeLatencyNanos / 1000000L);
+                    input.setLength(0);
+                    StringBuilder response = new StringBuilder();
+                    for (String line : lines) {
+                        response.append(line).append("\r\n");
+                    }
+                    String text = response.toString();
+                    enqueue(text.getBytes(LATIN1), text.length(), System.nanoTime() + writeLatencyNanos);
+                }
+            } else {
+                input.append(c);
+            }
+        }
+        return length;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "AxSimulator";
+    }
+
+}
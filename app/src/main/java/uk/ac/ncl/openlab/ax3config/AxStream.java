@@ -0,0 +1,218 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Live sample streaming from an Open Movement AX3 Device (frames parsed on a reader thread into a ring buffer, read in batches)
+// -- the stream's protocol is given explicitly, as the released firmware does not stream (see AxStreamProtocol)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class AxStream implements AxStreamProtocol.Listener {
+
+    // Samples missing from those read (frames dropped, or samples discarded as the buffer was full), before the sample at a position
+    public static final class Gap {
+        private final long position;
+        private final long missing;
+
+        Gap(long position, long missing) {
+            this.position = position;
+            this.missing = missing;
+        }
+
+        // Index of the following sample (in the samples read since the stream started)
+        public long getPosition() { return position; }
+        public long getMissing() { return missing; }
+    }
+
+    private static final int READ_TIMEOUT_MS = 100;
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final AxTransport transport;
+    private final AxMultiplexer multiplexer;
+    private final AxSampleRing ring;
+    private final AxStreamProtocol protocol;
+    private final AxStreamProtocol.Parser parser;   // (null on a multiplexer, which parses the frames)
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+    private volatile Thread waiter = null;
+
+    // Statistics (written by the reader thread)
+    private volatile long samples = 0;
+    private volatile long droppedFrames = 0;
+    private volatile long overruns = 0;
+    private volatile long lines = 0;
+    private int lastSequence = -1;
+    private long buffered = 0;      // samples added to the ring since the stream started
+
+    // Gaps in the samples read, in order (only recorded when tracked, as they are only removed by pollGap())
+    private final ConcurrentLinkedQueue<Gap> gaps = new ConcurrentLinkedQueue<Gap>();
+    private volatile boolean trackGaps = false;
+
+    // Buffer up to the given number of samples (e.g. a few seconds at the sample rate), streamed with the given protocol
+    // (on a multiplexer, the one it parses)
+    public AxStream(AxTransport transport, int capacity, AxStreamProtocol protocol) {
+        this.transport = transport;
+        this.multiplexer = transport instanceof AxMultiplexer ? (AxMultiplexer)transport : null;
+        if (multiplexer != null && multiplexer.getStreamProtocol() != protocol) {
+            throw new IllegalArgumentException("Multiplexer does not parse this stream protocol");
+        }
+        this.ring = new AxSampleRing(capacity);
+        this.protocol = protocol;
+        this.parser = multiplexer == null ? protocol.createParser(this) : null;
+    }
+
+    // Samples received; frames missing from the sequence; samples discarded as the buffer was full; text lines received
+    public long getSamples() { return samples; }
+    public long getDroppedFrames() { return droppedFrames; }
+    public long getOverruns() { return overruns; }
+    public long getChecksumErrors() { return parser != null ? parser.getChecksumErrors() : multiplexer.getChecksumErrors(); }
+    public long getLines() { return lines; }
+
+    // Record the gaps in the samples read (e.g. to keep the time of the samples after them), to be taken with pollGap()
+    public void setTrackGaps(boolean trackGaps) {
+        this.trackGaps = trackGaps;
+        if (!trackGaps) gaps.clear();
+    }
+
+    // Next gap before the sample at the end position (in the samples read), or null if none; samples before a gap are
+    // always readable before it is known, so after reading up to a position, all gaps before it are available
+    public Gap pollGap(long end) {
+        Gap gap = gaps.peek();
+        if (gap == null || gap.position > end) return null;
+        return gaps.poll();
+    }
+
+    // Samples waiting to be read
+    public int available() {
+        return ring.size();
+    }
+
+    // Start the device stream and the reader thread (or, on a multiplexer, receive its frames so commands can be sent while streaming)
+    public synchronized void start() throws IOException {
+        if (running) return;
+        lastSequence = -1;
+        buffered = 0;
+        gaps.clear();
+        if (multiplexer != null) {
+            multiplexer.setStreamListener(this);
+        }
+        if (!transport.writeString(protocol.getStartCommand() + "\r\n", 500)) {
+            throw new IOException("Problem sending command");
+        }
+        running = true;
+        if (multiplexer != null) {
+            transport.readResponse(500, 50, protocol.getResponsePrefix(), new AxResponse());
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "AxStream");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    // Stop the reader thread and the device stream
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        if (multiplexer != null) {
+            transport.writeString(protocol.getStopCommand() + "\r\n", 500);
+            transport.readResponse(500, 50, protocol.getResponsePrefix(), new AxResponse());
+            multiplexer.setStreamListener(null);
+            return;
+        }
+        try {
+            thread.join(READ_TIMEOUT_MS * 5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        transport.writeString(protocol.getStopCommand() + "\r\n", 500);
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        while (running) {
+            int count = transport.read(buffer, READ_TIMEOUT_MS, true);
+            if (count > 0) {
+                parser.parse(buffer, 0, count);
+            }
+        }
+    }
+
+    @Override
+    public void onFrame(short[] frameSamples, int count, int sequence) {
+        if (lastSequence >= 0) {
+            int missing = (sequence - lastSequence - 1) & 0xffff;
+            if (missing != 0) {
+                droppedFrames += missing;
+                if (trackGaps) gaps.add(new Gap(buffered, (long) missing * count));    // (frames are all the same size)
+            }
+        }
+        lastSequence = sequence;
+        int added = ring.offer(frameSamples, 0, count);
+        buffered += added;
+        if (added < count) {
+            overruns += count - added;
+            if (trackGaps) gaps.add(new Gap(buffered, count - added));
+        }
+        samples += count;
+        Thread waiting = waiter;
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+
+    @Override
+    public void onLine(byte[] line, int length) {
+        lines++;    // (e.g. the response to the start command)
+    }
+
+    // Read a batch of up to maxCount samples (interleaved x/y/z, in units of 1/256 g), waiting up to the time-out for at least one; returns the number read
+    public int read(short[] destination, int maxCount, long timeoutMs) {
+        int count = ring.poll(destination, 0, maxCount);
+        if (count > 0 || timeoutMs <= 0) return count;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        waiter = Thread.currentThread();
+        try {
+            for (;;) {
+                count = ring.poll(destination, 0, maxCount);
+                if (count > 0) return count;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !running || Thread.currentThread().isInterrupted()) return 0;
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// EXPERIMENTAL stream framing: separates binary sample frames from text lines on the same channel (streamed by AxSimulator)
+
+package uk.ac.ncl.openlab.ax3config;
+
+public class AxStreamParser implements AxStreamProtocol.Parser {
+
+    // Stream frame (binary, little-endian), between any text lines:
+    //   0x00 0xA5      sync (0x00 does not occur in the firmware's text output)
+    //   u8 count       samples in the frame (1 to MAX_FRAME_SAMPLES)
+    //   u8 format      FORMAT_PACKED: 3-axis, 4 bytes per sample (as CWA data); FORMAT_UNPACKED: 3-axis, 16-bit signed values
+    //   u16 sequence   frame number (consecutive, wrapping), so dropped frames can be detected
+    //   samples        in units of 1/256 g
+    //   u8 checksum    two's complement of the byte sum from count to the end of the samples
+    // (The framing, and the STREAM command, are this project's experimental definition, implemented by AxSimulator: they
+    // are not part of the released firmware's protocol, so a device only streams in this form with a firmware that does)
+    public static final int SYNC0 = 0x00;
+    public static final int SYNC1 = 0xA5;
+    public static final int FORMAT_PACKED = 0;
+    public static final int FORMAT_UNPACKED = 2;
+    public static final int MAX_FRAME_SAMPLES = 120;
+    public static final int SCALE = 256;
+    private static final int HEADER_SIZE = 4;
+
+    // Experimental streams: "STREAM 1" starts packed frames, "STREAM 2" unpacked frames, and "STREAM 0" stops either
+    public static final AxStreamProtocol EXPERIMENTAL_PACKED = new Experimental(1);
+    public static final AxStreamProtocol EXPERIMENTAL_UNPACKED = new Experimental(2);
+
+    private static final class Experimental implements AxStreamProtocol {
+        private final int mode;
+
+        Experimental(int mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        public Parser createParser(Listener listener) { return new AxStreamParser(listener); }
+        @Override
+        public String getStartCommand() { return "STREAM " + mode; }
+        @Override
+        public String getStopCommand() { return "STREAM 0"; }
+        @Override
+        public String getResponsePrefix() { return "STREAM="; }
+
+        @Override
+        public String toString() {
+            return "Experimental stream (" + (mode == 1 ? "packed" : "unpacked") + ")";
+        }
+    }
+
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_SYNC = 1;
+    private static final int STATE_FRAME = 2;
+
+    private final AxStreamProtocol.Listener listener;
+    private final AxLineFramer framer = new AxLineFramer();
+    private final byte[] frame = new byte[HEADER_SIZE + MAX_FRAME_SAMPLES * 6 + 1];
+    private final short[] samples = new short[MAX_FRAME_SAMPLES * 3];
+    private int state = STATE_TEXT;
+    private int frameLength = 0;
+    private int frameSize = 0;
+
+    private long frames = 0;
+    private long checksumErrors = 0;
+
+    public AxStreamParser(AxStreamProtocol.Listener listener) {
+        this.listener = listener;
+    }
+
+    public long getFrames() { return frames; }
+    @Override
+    public long getChecksumErrors() { return checksumErrors; }
+
+    // Bytes per sample of a format (or zero if unknown)
+    static int sampleSize(int format) {
+        return format == FORMAT_PACKED ? 4 : (format == FORMAT_UNPACKED ? 6 : 0);
+    }
+
+    // Parse received bytes
+    @Override
+    public void parse(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            switch (state) {
+                case STATE_TEXT: {
+                    byte b = buffer[i++];
+                    if (b == SYNC0) {
+                        state = STATE_SYNC;
+                    } else if (framer.add(b)) {
+                        listener.onLine(framer.getBuffer(), framer.getLength());
+                    }
+                    break;
+                }
+                case STATE_SYNC: {
+                    state = (buffer[i++] & 0xff) == SYNC1 ? STATE_FRAME : STATE_TEXT;
+                    frameLength = 0;
+                    frameSize = HEADER_SIZE;
+                    break;
+                }
+                default: {
+                    // Copy as much of the frame as is available
+                    int count = Math.min(end - i, frameSize - frameLength);
+                    System.arraycopy(buffer, i, frame, frameLength, count);
+                    i += count;
+                    frameLength += count;
+                    if (frameLength == HEADER_SIZE && frameSize == HEADER_SIZE) {
+                        int samplesInFrame = frame[0] & 0xff;
+                        int size = sampleSize(frame[1] & 0xff);
+                        if (samplesInFrame <= 0 || samplesInFrame > MAX_FRAME_SAMPLES || size == 0) {
+                            checksumErrors++;   // not a valid frame header
+                            state = STATE_TEXT;
+                        } else {
+                            frameSize = HEADER_SIZE + samplesInFrame * size + 1;
+                        }
+                    } else if (frameLength == frameSize) {
+                        frameComplete();
+                        state = STATE_TEXT;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private void frameComplete() {
+        byte[] frame = this.frame;
+        int sum = 0;
+        for (int i = 0; i < frameSize; i++) {
+            sum += frame[i];
+        }
+        if ((sum & 0xff) != 0) {
+            checksumErrors++;
+            return;
+        }
+        int count = frame[0] & 0xff;
+        int format = frame[1] & 0xff;
+        int sequence = (frame[2] & 0xff) | ((frame[3] & 0xff) << 8);
+        short[] samples = this.samples;
+        if (format == FORMAT_PACKED) {
+            for (int i = 0, p = HEADER_SIZE, j = 0; i < count; i++, p += 4, j += 3) {
+                int value = (frame[p] & 0xff) | ((frame[p + 1] & 0xff) << 8) | ((frame[p + 2] & 0xff) << 16) | (frame[p + 3] << 24);
+                int exponent = value >>> 30;
+                samples[j] = (short) (((value << 22) >> 22) << exponent);
+                samples[j + 1] = (short) (((value << 12) >> 22) << exponent);
+                samples[j + 2] = (short) (((value << 2) >> 22) << exponent);
+            }
+        } else {
+            for (int i = 0, p = HEADER_SIZE; i < count * 3; i++, p += 2) {
+                samples[i] = (short) ((frame[p] & 0xff) | (frame[p + 1] << 8));
+            }
+        }
+        frames++;
+        listener.onFrame(samples, count, sequence);
+    }
+
+    // Encode a frame of samples (interleaved x/y/z, 1/256 g) into a buffer, returns the length
+    public static int encode(short[] samples, int offset, int count, int format, int sequence, byte[] buffer, int position) {
+        int start = position;
+        buffer[position++] = (byte) SYNC0;
+        buffer[position++] = (byte) SYNC1;
+        int checked = position;
+        buffer[position++] = (byte) count;
+        buffer[position++] = (byte) format;
+        buffer[position++] = (byte) sequence;
+        buffer[position++] = (byte) (sequence >> 8);
+        for (int i = 0; i < count; i++) {
+            int x = samples[offset + i * 3], y = samples[offset + i * 3 + 1], z = samples[offset + i * 3 + 2];
+            if (format == FORMAT_PACKED) {
+                // (smallest exponent that fits all three axes into 10 bits)
+                int exponent = 0;
+                while (exponent < 3 && (x >> exponent < -512 || x >> exponent > 511 || y >> exponent < -512 || y >> exponent > 511 || z >> exponent < -512 || z >> exponent > 511)) exponent++;
+                int value = ((x >> exponent) & 0x3ff) | (((y >> exponent) & 0x3ff) << 10) | (((z >> exponent) & 0x3ff) << 20) | (exponent << 30);
+                buffer[position++] = (byte) value;
+                buffer[position++] = (byte) (value >> 8);
+                buffer[position++] = (byte) (value >> 16);
+                buffer[position++] = (byte) (value >> 24);
+            } else {
+                buffer[position++] = (byte) x;
+                buffer[position++] = (byte) (x >> 8);
+                buffer[position++] = (byte) y;
+                buffer[position++] = (byte) (y >> 8);
+                buffer[position++] = (byte) z;
+                buffer[position++] = (byte) (z >> 8);
+            }
+        }
+        int sum = 0;
+        for (int i = checked; i < position; i++) {
+            sum += buffer[i];
+        }
+        buffer[position++] = (byte) -sum;
+        return position - start;
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Framing of a live sample stream on the connection to an Open Movement AX3 Device (depends on the device firmware)
+
+package uk.ac.ncl.openlab.ax3config;
+
+// The commands that start and stop a stream, and a parser for its frames.  Streaming is not part of the released
+// firmware's protocol: the only implementations are AxStreamParser's EXPERIMENTAL formats, which AxSimulator streams, so
+// a device must run a firmware that streams in one of them (or another implementation of this interface).
+public interface AxStreamProtocol {
+
+    // Receives parsed frames and text lines (the arrays are reused: only valid during the call)
+    interface Listener {
+        void onFrame(short[] samples, int count, int sequence);
+        void onLine(byte[] line, int length);
+    }
+
+    // Separates frames from text lines in the bytes received (one per reader)
+    interface Parser {
+        void parse(byte[] buffer, int offset, int length);
+        long getChecksumErrors();
+    }
+
+    Parser createParser(Listener listener);
+
+    // Commands to start and to stop the stream (without line endings), and the prefix of their response
+    String getStartCommand();
+    String getStopCommand();
+    String getResponsePrefix();
+
+}
@@ -0,0 +1,65 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Transport (byte stream) to an Open Movement AX3 Device
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.ByteBuffer;
+
+public interface AxTransport {
+
+    // Read bytes (up to the buffer size, or the first non-empty transfer if single), returns the number read
+    int read(byte[] buffer, int timeoutMS);
+    int read(byte[] buffer, int timeoutMS, boolean single);
+
+    // Write bytes, returns the number written
+    int write(byte[] buffer, int timeoutMS);
+
+    // Write the buffer's remaining bytes (advancing its position), returns the number written
+    int write(ByteBuffer buffer, int timeoutMS);
+
+    // Read line, up to one beginning with a final prefix, or timeouts
+    String[] readLines(int initialTimeoutMs, int continuationTimeoutMs, String finalPrefix);
+
+    // Read lines, as readLines(), but only keeping the last line in the given response; returns false if no lines were received
+    boolean readResponse(int initialTimeoutMs, int continuationTimeoutMs, CharSequence finalPrefix, AxResponse response);
+
+    // Read lines, up to one beginning with any of the terminal prefixes, with time-outs (up to the maximums) adapted to, and recorded in, the command's timing
+    String[] readLines(AxResponseTimings.Timing timing, int maxTimeoutMs, int maxContinuationTimeoutMs, CharSequence[] terminalPrefixes);
+
+    // Read lines, as readResponse(), but also ending at any of the terminal prefixes, with time-outs adapted to, and recorded in, the command's timing
+    boolean readResponse(AxResponseTimings.Timing timing, int maxTimeoutMs, int maxContinuationTimeoutMs, CharSequence finalPrefix, CharSequence[] terminalPrefixes, AxResponse response);
+
+    // Write string
+    boolean writeString(String str, int timeoutMS);
+
+    // Record metrics (null to stop recording)
+    void setMetrics(AxMetrics metrics);
+
+    // Close the transport
+    void close();
+
+}
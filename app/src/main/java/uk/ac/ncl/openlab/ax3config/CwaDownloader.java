@@ -0,0 +1,124 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Download of the data file from an Open Movement AX3 Device's drive, read directly from the block device (without mounting)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class CwaDownloader {
+
+    public static final String DATA_FILE = "CWA-DATA.CWA";
+
+    private static final long PROGRESS_NANOS = 250 * 1000000L;
+
+    // Progress (called on the downloading thread)
+    public interface Listener {
+        void onProgress(long bytes, long total);
+    }
+
+    private final BlockDevice device;
+    private Listener listener = null;
+    private volatile boolean cancelled = false;
+
+    public CwaDownloader(BlockDevice device) {
+        this.device = device;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Stop a download in progress (from another thread)
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Download the data file, also writing its sector index if an index file is given (may be null); returns the size
+    public long download(File destination, File indexFile) throws IOException {
+        FatVolume volume = new FatVolume(device);
+        FatVolume.Entry entry = volume.find(DATA_FILE);
+        if (entry == null) {
+            throw new IOException("No data file on the device");
+        }
+        long size = entry.getSize();
+        long[] extents = volume.getExtents(entry);
+
+        int blockSize = device.getBlockSize();
+        int transferBlocks = device.getMaxTransferBlocks();
+        byte[] buffer = new byte[transferBlocks * blockSize];
+        ByteBuffer data = ByteBuffer.wrap(buffer);
+
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        CwaIndexBuilder index = null;
+        try {
+            FileChannel channel = file.getChannel();
+            file.setLength(size);
+            if (indexFile != null) index = new CwaIndexBuilder(indexFile);
+            long position = 0;
+            long lastProgress = System.nanoTime();
+            for (int i = 0; i < extents.length && position < size; i += 2) {
+                for (long b = 0; b < extents[i + 1] && position < size; ) {
+                    if (cancelled) throw new IOException("Cancelled");
+                    // Large reads of consecutive blocks
+                    int count = (int) Math.min(transferBlocks, extents[i + 1] - b);
+                    device.read(extents[i] + b, count, buffer, 0);
+                    b += count;
+                    int length = (int) Math.min((long) count * blockSize, size - position);
+                    data.clear().limit(length);
+                    while (data.hasRemaining()) {
+                        channel.write(data, position + data.position());
+                    }
+                    if (index != null) {
+                        data.clear().limit(length);
+                        index.addFileData(data);
+                    }
+                    position += length;
+                    long now = System.nanoTime();
+                    if (listener != null && (now - lastProgress >= PROGRESS_NANOS || position >= size)) {
+                        listener.onProgress(position, size);
+                        lastProgress = now;
+                    }
+                }
+            }
+            if (index != null) {
+                index.close();
+                index = null;
+            }
+            return size;
+        } finally {
+            file.close();
+            if (index != null) {
+                index.abandon();
+            }
+        }
+    }
+
+}
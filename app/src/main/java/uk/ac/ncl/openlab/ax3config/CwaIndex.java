@@ -0,0 +1,124 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Time-to-sector index (sidecar file) for random access into Open Movement CWA data files
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class CwaIndex {
+
+    // Index file: 32-byte header, then a 12-byte entry per data sector (little-endian)
+    //   header: "CWAI", version (u16), entry size (u16), flags (u32), session ID (u32), base time (s64, ms), entry count (s64)
+    //   entry:  start time of the sector's first sample (s64, ms after the base time), sample count (u16), decode result (u16)
+    // Sectors that are not valid data blocks have no samples, and the time of the previous valid sector (so times never decrease)
+    static final int MAGIC = 0x49415743;    // "CWAI" (little-endian)
+    static final int VERSION = 2;   // (version 1 had s32 times, which overflow 24.8 days after the base time)
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 12;
+    static final int FLAG_COMPLETE = 0x0001;
+
+    // Sidecar file for a data file
+    public static File indexFile(File dataFile) {
+        return new File(dataFile.getPath() + ".idx");
+    }
+
+    private final MappedByteBuffer buffer;
+    private final boolean complete;
+    private final long sessionId;
+    private final long baseTime;
+    private final int count;
+
+    public CwaIndex(File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a CWA index.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            file.close();   // (the mapping remains valid)
+        }
+        if (buffer.getInt(0) != MAGIC || (buffer.getShort(4) & 0xffff) != VERSION || (buffer.getShort(6) & 0xffff) != ENTRY_SIZE) {
+            throw new IOException("Not a CWA index (or unsupported version).");
+        }
+        complete = (buffer.getInt(8) & FLAG_COMPLETE) != 0;
+        sessionId = buffer.getInt(12) & 0xffffffffL;
+        baseTime = buffer.getLong(16);
+        long entries = Math.min(buffer.getLong(24), (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE);
+        count = (int) Math.max(0, entries);
+    }
+
+    // Whether the index was finished (otherwise the data file was still being indexed)
+    public boolean isComplete() { return complete; }
+    public long getSessionId() { return sessionId; }
+
+    // Number of data sectors indexed
+    public int getCount() { return count; }
+
+    // Start time (seconds since epoch, device local time, to the millisecond) of a data sector's first sample
+    public double getTime(int index) {
+        return (baseTime + buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE)) / 1000.0;
+    }
+
+    public int getSampleCount(int index) {
+        return buffer.getShort(HEADER_SIZE + index * ENTRY_SIZE + 8) & 0xffff;
+    }
+
+    // Index of the sector containing the time: the last whose start is not after it (0 if before all), by binary search
+    public int findSector(double time) {
+        long target = (long) Math.floor(time * 1000) - baseTime;
+        int low = 0;
+        int high = count - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(HEADER_SIZE + middle * ENTRY_SIZE) <= target) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    // Limit a reader to the sectors containing samples from the start time up to the end time
+    // (the first and last blocks may also contain samples outside the range, see CwaSamples.getTime())
+    public void selectRange(CwaReader reader, double start, double end) {
+        int first = findSector(start);
+        int last = findSector(end);
+        reader.setRange(first, last + 1);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Builds a CwaIndex sidecar file, incrementally as a CWA data file's sectors become available (e.g. while downloading)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class CwaIndexBuilder {
+
+    private static final int BUFFERED_ENTRIES = 4096;
+    private static final int DEFAULT_HEADER_SIZE = 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(CwaIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer entries = ByteBuffer.allocate(BUFFERED_ENTRIES * CwaIndex.ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CwaSamples samples = new CwaSamples();
+
+    private long sessionId = 0;
+    private long baseTime = Long.MIN_VALUE;     // ms, set from the first valid sector
+    private long lastOffset = 0;
+    private long count = 0;                     // entries added
+    private long written = 0;                   // entries written to the file
+
+    // Position in the data file (for addFileData())
+    private long filePosition = 0;
+    private int dataOffset = DEFAULT_HEADER_SIZE;
+
+    public CwaIndexBuilder(File indexFile) throws IOException {
+        file = new RandomAccessFile(indexFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        writeHeader(false);
+    }
+
+    // Index each complete sector of the next part of the data file (the parts must be consecutive, from the start of the file, in multiples of the sector size)
+    public void addFileData(ByteBuffer data) throws IOException {
+        ByteBuffer le = data.order() == ByteOrder.LITTLE_ENDIAN ? data : data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        for (int offset = le.position(); offset + CwaSamples.SECTOR_SIZE <= le.limit(); offset += CwaSamples.SECTOR_SIZE) {
+            if (filePosition == 0 && (le.getShort(offset) & 0xffff) == 0x444D) {
+                // "MD" file header: its length, and the session ID
+                dataOffset = (le.getShort(offset + 2) & 0xffff) + 4;
+                sessionId = le.getInt(offset + 7) & 0xffffffffL;
+            }
+            if (filePosition >= dataOffset) {
+                add(le, offset);
+            }
+            filePosition += CwaSamples.SECTOR_SIZE;
+        }
+        data.position(data.position() + (le.limit() - le.position()) / CwaSamples.SECTOR_SIZE * CwaSamples.SECTOR_SIZE);
+    }
+
+    // Index the next data sector, at the (absolute) offset of a little-endian buffer
+    public void add(ByteBuffer buffer, int offset) throws IOException {
+        int result = samples.decodeHeader(buffer, offset);
+        int sampleCount = 0;
+        if (result == CwaSamples.OK) {
+            long time = (long) Math.floor(samples.getStartTime() * 1000);
+            if (baseTime == Long.MIN_VALUE) {
+                baseTime = time;
+            }
+            long relative = time - baseTime;
+            if (relative > lastOffset) {
+                lastOffset = relative;
+            }
+            sampleCount = samples.getCount();
+        }
+        entries.putLong(lastOffset);
+        entries.putShort((short) sampleCount);
+        entries.putShort((short) result);
+        count++;
+        if (!entries.hasRemaining()) {
+            flush();
+        }
+    }
+
+    // Write the buffered entries, so that the index can be used (while incomplete)
+    public void flush() throws IOException {
+        entries.flip();
+        long position = CwaIndex.HEADER_SIZE + written * CwaIndex.ENTRY_SIZE;
+        while (entries.hasRemaining()) {
+            position += channel.write(entries, position);
+        }
+        entries.clear();
+        written = count;
+        writeHeader(false);
+    }
+
+    private void writeHeader(boolean complete) throws IOException {
+        header.clear();
+        header.putInt(CwaIndex.MAGIC);
+        header.putShort((short) CwaIndex.VERSION);
+        header.putShort((short) CwaIndex.ENTRY_SIZE);
+        header.putInt(complete ? CwaIndex.FLAG_COMPLETE : 0);
+        header.putInt((int) sessionId);
+        header.putLong(baseTime == Long.MIN_VALUE ? 0 : baseTime);
+        header.putLong(written);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    public long getCount() { return count; }
+
+    // Finish the index
+    public void close() throws IOException {
+        try {
+            flush();
+            writeHeader(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    // Close without marking the index complete (e.g. the transfer failed)
+    public void abandon() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // (already failed)
+        }
+    }
+
+    // Index an existing data file (only the sector headers are decoded)
+    public static CwaIndex build(File dataFile, File indexFile) throws IOException {
+        CwaReader reader = new CwaReader(dataFile);
+        CwaIndexBuilder builder = null;
+        try {
+            builder = new CwaIndexBuilder(indexFile);
+            builder.sessionId = reader.getSessionId();
+            FileChannel channel = reader.getChannel();
+            long first = reader.getFirstSector();
+            long remaining = reader.getSectorCount();
+            long sector = first;
+            while (remaining > 0) {
+                int sectors = (int) Math.min(remaining, 8192);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, sector * CwaSamples.SECTOR_SIZE, (long) sectors * CwaSamples.SECTOR_SIZE);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < sectors; i++) {
+                    builder.add(buffer, i * CwaSamples.SECTOR_SIZE);
+                }
+                sector += sectors;
+                remaining -= sectors;
+            }
+            builder.close();
+            builder = null;
+        } finally {
+            if (builder != null) {
+                builder.abandon();
+            }
+            reader.close();
+        }
+        return new CwaIndex(indexFile);
+    }
+
+}
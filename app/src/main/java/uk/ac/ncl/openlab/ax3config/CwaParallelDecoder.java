@@ -0,0 +1,249 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Parallel (fork/join) decoding of Open Movement CWA data files
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// Data sectors are fixed-size and independently checksummed, so ranges of sectors are decoded concurrently into
+// per-range blocks, while the previously decoded window is delivered to the sink (on the calling thread) in timestamp order.
+// (ForkJoinPool requires Android API 21: intended for desktop/server processing of downloaded files)
+public class CwaParallelDecoder {
+
+    private static final int DEFAULT_SECTORS_PER_TASK = 512;
+
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+    private final int sectorsPerTask;
+    private final int tasksPerWindow;
+
+    // Sectors skipped as not data blocks, or with bad checksums or formats (from the last read)
+    private long skipped = 0;
+    private long badChecksums = 0;
+
+    // Decoded blocks of one range of sectors (reused)
+    private static class Chunk {
+        final CwaSamples[] blocks;
+        int count = 0;
+        int skipped = 0;
+        int badChecksums = 0;
+        IOException error = null;
+
+        Chunk(int size) {
+            blocks = new CwaSamples[size];
+            for (int i = 0; i < size; i++) {
+                blocks[i] = new CwaSamples();
+            }
+        }
+
+        // Decode a range of sectors (from a file position), sorting the blocks by time if they are out of order
+        void decode(FileChannel channel, long position, int sectors) {
+            count = 0;
+            skipped = 0;
+            badChecksums = 0;
+            error = null;
+            if (sectors <= 0) return;
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) sectors * CwaSamples.SECTOR_SIZE);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                boolean ordered = true;
+                for (int i = 0; i < sectors; i++) {
+                    CwaSamples block = blocks[count];
+                    int result = block.decode(buffer, i * CwaSamples.SECTOR_SIZE);
+                    if (result == CwaSamples.OK) {
+                        if (count > 0 && block.getStartTime() < blocks[count - 1].getStartTime()) ordered = false;
+                        count++;
+                    } else {
+                        skipped++;
+                        if (result == CwaSamples.BAD_CHECKSUM) badChecksums++;
+                    }
+                }
+                if (!ordered) sort();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        // Insertion sort (blocks are normally already in order)
+        private void sort() {
+            for (int i = 1; i < count; i++) {
+                CwaSamples block = blocks[i];
+                int j = i - 1;
+                while (j >= 0 && blocks[j].getStartTime() > block.getStartTime()) {
+                    blocks[j + 1] = blocks[j];
+                    j--;
+                }
+                blocks[j + 1] = block;
+            }
+        }
+    }
+
+    // Splits a window of sectors in half until each part is at most one chunk
+    private class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final Chunk[] chunks;
+        private final long firstSector;     // file sector of chunk 0
+        private final long endSector;
+        private final int from;
+        private final int to;
+
+        DecodeTask(FileChannel channel, Chunk[] chunks, long firstSector, long endSector, int from, int to) {
+            this.channel = channel;
+            this.chunks = chunks;
+            this.firstSector = firstSector;
+            this.endSector = endSector;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                long start = firstSector + (long) from * sectorsPerTask;
+                int sectors = (int) Math.max(0, Math.min(sectorsPerTask, endSector - start));
+                chunks[from].decode(channel, start * CwaSamples.SECTOR_SIZE, sectors);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(channel, chunks, firstSector, endSector, from, middle),
+                    new DecodeTask(channel, chunks, firstSector, endSector, middle, to));
+        }
+    }
+
+    // Use a new pool of the given parallelism
+    public CwaParallelDecoder(int parallelism) {
+        this(new ForkJoinPool(parallelism), true, DEFAULT_SECTORS_PER_TASK);
+    }
+
+    // Use an existing pool (not shut down by close()), with the number of sectors decoded by each task
+    public CwaParallelDecoder(ForkJoinPool pool, int sectorsPerTask) {
+        this(pool, false, sectorsPerTask);
+    }
+
+    private CwaParallelDecoder(ForkJoinPool pool, boolean ownPool, int sectorsPerTask) {
+        this.pool = pool;
+        this.ownPool = ownPool;
+        this.sectorsPerTask = sectorsPerTask;
+        this.tasksPerWindow = Math.max(2, pool.getParallelism() * 2);
+    }
+
+    public long getSkipped() { return skipped; }
+    public long getBadChecksums() { return badChecksums; }
+
+    // Decode all data blocks of a file to the sink (called on this thread, in timestamp order), returns the number of samples
+    public long read(File file, CwaReader.Sink sink) throws IOException {
+        CwaReader reader = new CwaReader(file);
+        try {
+            return read(reader, sink);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Decode the remaining data blocks of an open reader (up to the end of any range set) to the sink
+    public long read(CwaReader reader, CwaReader.Sink sink) throws IOException {
+        skipped = 0;
+        badChecksums = 0;
+        FileChannel channel = reader.getChannel();
+        long sector = reader.getFirstSector() + reader.getPosition();
+        long endSector = reader.getEndSector();
+        long windowSectors = (long) tasksPerWindow * sectorsPerTask;
+
+        // Two sets of chunks: one being decoded while the other is delivered
+        Chunk[] decoding = newChunks();
+        Chunk[] delivering = newChunks();
+        int[] next = new int[tasksPerWindow];
+        long total = 0;
+
+        ForkJoinTask<Void> pending = sector < endSector ? pool.submit(new DecodeTask(channel, decoding, sector, endSector, 0, tasksPerWindow)) : null;
+        while (pending != null) {
+            pending.join();
+            Chunk[] decoded = decoding;
+            decoding = delivering;
+            delivering = decoded;
+            sector += windowSectors;
+            pending = sector < endSector ? pool.submit(new DecodeTask(channel, decoding, sector, endSector, 0, tasksPerWindow)) : null;
+            try {
+                total += deliver(delivering, next, sink);
+            } catch (IOException e) {
+                if (pending != null) pending.cancel(false);
+                throw e;
+            }
+        }
+        reader.seek(endSector - reader.getFirstSector());
+        return total;
+    }
+
+    // Merge the window's chunks in block time order to the sink
+    private long deliver(Chunk[] chunks, int[] next, CwaReader.Sink sink) throws IOException {
+        long total = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i].error != null) throw chunks[i].error;
+            skipped += chunks[i].skipped;
+            badChecksums += chunks[i].badChecksums;
+            next[i] = 0;
+        }
+        for (;;) {
+            // Earliest next block of any chunk (ties in file order)
+            int earliest = -1;
+            for (int i = 0; i < chunks.length; i++) {
+                if (next[i] < chunks[i].count && (earliest < 0 || chunks[i].blocks[next[i]].getStartTime() < chunks[earliest].blocks[next[earliest]].getStartTime())) {
+                    earliest = i;
+                }
+            }
+            if (earliest < 0) break;
+            CwaSamples block = chunks[earliest].blocks[next[earliest]++];
+            sink.onSamples(block);
+            total += block.getCount();
+        }
+        return total;
+    }
+
+    private Chunk[] newChunks() {
+        Chunk[] chunks = new Chunk[tasksPerWindow];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(sectorsPerTask);
+        }
+        return chunks;
+    }
+
+    // Shut down the pool (if created by this decoder)
+    public void close() {
+        if (ownPool) {
+            pool.shutdown();
+        }
+    }
+
+}
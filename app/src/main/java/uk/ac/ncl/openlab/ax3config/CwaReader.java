@@ -0,0 +1,198 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Streaming reader for Open Movement CWA data files (memory-mapped, without per-sample allocation)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class CwaReader {
+
+    // Receives each decoded block (the samples are only valid during the call)
+    public interface Sink {
+        void onSamples(CwaSamples samples) throws IOException;
+    }
+
+    private static final int HEADER_MD = 0x444D;    // "MD" (little-endian)
+    private static final int WINDOW_SECTORS = 8192; // 4 MB mapped at a time, so memory use is constant for any file size
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // Header
+    private int headerSize;
+    private int hardwareType;
+    private int deviceId;
+    private long sessionId;
+    private long startTime;
+    private long endTime;
+    private int rate;
+    private int range;
+    private int firmwareRevision;
+
+    // Data sectors (after the header), and the current position
+    private long firstSector;
+    private long sectorCount;
+    private long endSector;
+    private long sector;
+
+    // Mapped window of sectors
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+
+    // Sectors skipped as not data blocks, or with bad checksums or formats
+    private long skipped = 0;
+    private long badChecksums = 0;
+
+    public CwaReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        try {
+            readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CwaSamples.SECTOR_SIZE * 2).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        if (header.position() < 64 || (header.getShort(0) & 0xffff) != HEADER_MD) {
+            throw new IOException("Not a CWA file.");
+        }
+        headerSize = (header.getShort(2) & 0xffff) + 4;
+        if (headerSize % CwaSamples.SECTOR_SIZE != 0) {
+            throw new IOException("Invalid CWA header length.");
+        }
+        hardwareType = header.get(4) & 0xff;
+        int upperDeviceId = header.getShort(11) & 0xffff;
+        deviceId = (header.getShort(5) & 0xffff) | (upperDeviceId == 0xffff ? 0 : upperDeviceId << 16);
+        sessionId = header.getInt(7) & 0xffffffffL;
+        startTime = CwaTimestamp.toSeconds(header.getInt(13) & 0xffffffffL);
+        endTime = CwaTimestamp.toSeconds(header.getInt(17) & 0xffffffffL);
+        int rateCode = header.get(36) & 0xff;
+        rate = (int) CwaSamples.frequency(rateCode);
+        range = CwaSamples.range(rateCode);
+        firmwareRevision = header.get(41) & 0xff;
+
+        firstSector = headerSize / CwaSamples.SECTOR_SIZE;
+        sectorCount = Math.max(0, channel.size() / CwaSamples.SECTOR_SIZE - firstSector);
+        endSector = firstSector + sectorCount;
+        sector = firstSector;
+    }
+
+    public int getHardwareType() { return hardwareType; }
+    public int getDeviceId() { return deviceId; }
+    public long getSessionId() { return sessionId; }
+    public int getRate() { return rate; }
+    public int getRange() { return range; }
+    public int getFirmwareRevision() { return firmwareRevision; }
+
+    // Configured logging start and end (seconds since epoch, device local time; Long.MIN_VALUE/Long.MAX_VALUE if unbounded)
+    public long getStartTime() { return startTime; }
+    public long getEndTime() { return endTime; }
+
+    // Number of data sectors (blocks) in the file
+    public long getSectorCount() { return sectorCount; }
+
+    // Index of the next data sector to be read
+    public long getPosition() { return sector - firstSector; }
+
+    // Move to a data sector
+    public void seek(long index) {
+        sector = firstSector + Math.max(0, Math.min(index, sectorCount));
+    }
+
+    // Only read data sectors from the first up to (not including) the end index (only these are mapped)
+    public void setRange(long first, long end) {
+        endSector = firstSector + Math.max(0, Math.min(end, sectorCount));
+        seek(first);
+        window = null;
+    }
+
+    // File channel, and first and end (range limit) file sectors (for decoding ranges of sectors separately)
+    FileChannel getChannel() { return channel; }
+    long getFirstSector() { return firstSector; }
+    long getEndSector() { return endSector; }
+
+    public long getSkipped() { return skipped; }
+    public long getBadChecksums() { return badChecksums; }
+
+    // Map the window containing the current sector
+    private void map() throws IOException {
+        windowStart = sector;
+        windowEnd = Math.min(endSector, sector + WINDOW_SECTORS);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart * CwaSamples.SECTOR_SIZE, (windowEnd - windowStart) * CwaSamples.SECTOR_SIZE);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Decode the next valid data block into the samples, returns false at the end of the file
+    public boolean next(CwaSamples samples) throws IOException {
+        while (sector < endSector) {
+            if (window == null || sector < windowStart || sector >= windowEnd) {
+                map();
+            }
+            int offset = (int) (sector - windowStart) * CwaSamples.SECTOR_SIZE;
+            sector++;
+            int result = samples.decode(window, offset);
+            if (result == CwaSamples.OK) {
+                return true;
+            }
+            skipped++;
+            if (result == CwaSamples.BAD_CHECKSUM) badChecksums++;
+        }
+        return false;
+    }
+
+    // Decode all remaining blocks to the sink, returns the number of samples
+    public long read(Sink sink) throws IOException {
+        CwaSamples samples = new CwaSamples();
+        long total = 0;
+        while (next(samples)) {
+            sink.onSamples(samples);
+            total += samples.getCount();
+        }
+        return total;
+    }
+
+    public void close() {
+        window = null;
+        try {
+            file.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
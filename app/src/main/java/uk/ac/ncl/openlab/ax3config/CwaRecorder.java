@@ -0,0 +1,323 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Records streamed samples to an Open Movement CWA data file (packed into sectors on one thread, written to disk on another)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Samples are packed into 512-byte unpacked-format sectors, timestamped from the start time and sample rate (the stream
+// carries no times, so samples missing from it advance the sample clock, and end the sector), in batches of sectors.
+// There are two batches: one is filled while the other is written, by a writer thread, to a file extended in large
+// steps, and forced to storage periodically, so disk latency does not hold up the packing (and, as the stream's ring
+// buffer is between them, never holds up the USB reads).
+public class CwaRecorder {
+
+    private static final int HEADER_SIZE = 1024;
+    private static final int SECTOR_SAMPLES = CwaSamples.MAX_UNPACKED_SAMPLES;
+    private static final int BATCH_SECTORS = 64;                    // 32 kB written at a time
+    private static final long MAX_BATCH_NANOS = 1000 * 1000000L;    // a partly-filled batch is written after this long
+    private static final long FORCE_NANOS = 2000 * 1000000L;        // written data is forced to storage at least this often
+    private static final long PREALLOCATE = 16 * 1024 * 1024;       // file extended in steps of this size
+    private static final int READ_TIMEOUT_MS = 100;
+    private static final int READ_BATCH = 512;
+
+    // Sectors being filled or written
+    private static class Batch {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_SECTORS * CwaSamples.SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position;      // file offset
+        long started;       // when the first sector was added
+        long submitted;     // when handed to the writer
+    }
+
+    private static final Batch END = new Batch();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long sessionId;
+    private final int rateCode;
+    private final double frequency;
+    private final double startTime;
+
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(2);
+    private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(3);
+    private final Thread writer;
+    private Thread packer = null;
+    private volatile boolean recording = true;
+    private volatile IOException error = null;
+
+    // Packing state (recording thread)
+    private Batch batch = null;
+    private final short[] sector = new short[SECTOR_SAMPLES * 3];
+    private int sectorCount = 0;
+    private long sampleClock = 0;       // samples since the start time (including those missing) at the next sample
+    private long sectorStart = 0;       // ... at the first sample of the current sector
+    private volatile long samples = 0;
+    private volatile long missing = 0;
+    private volatile long sectors = 0;
+    private volatile long waits = 0;
+
+    // Writing statistics (writer thread)
+    private volatile long batches = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long totalLatency = 0;
+    private volatile long maxLatency = 0;
+    private volatile long forces = 0;
+
+    // Create the file (device local start time in seconds since epoch, and a rate code as used by the device)
+    public CwaRecorder(File file, long sessionId, int rateCode, double startTime) throws IOException {
+        this.sessionId = sessionId;
+        this.rateCode = rateCode;
+        this.frequency = CwaSamples.frequency(rateCode);
+        this.startTime = startTime;
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        try {
+            this.file.setLength(PREALLOCATE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putShort(0, (short) 0x444D);     // "MD"
+            header.putShort(2, (short) (HEADER_SIZE - 4));
+            header.putShort(11, (short) 0xffff);    // (no upper device id)
+            header.putInt(7, (int) sessionId);
+            header.putInt(13, (int) CwaTimestamp.fromSeconds((long) Math.floor(startTime)));
+            header.putInt(17, (int) CwaTimestamp.NEVER);
+            header.put(36, (byte) rateCode);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+        free.add(new Batch());
+        free.add(new Batch());
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "CwaRecorder");
+        writer.start();
+    }
+
+    // Samples and sectors recorded; samples missing from the stream; times the packing waited for a batch to be written
+    public long getSamples() { return samples; }
+    public long getMissing() { return missing; }
+    public long getSectors() { return sectors; }
+    public long getWaits() { return waits; }
+
+    // Batches and bytes written; mean and maximum time from a batch being submitted until it was written; number of forces to storage
+    public long getBatches() { return batches; }
+    public long getBytesWritten() { return bytesWritten; }
+    public double getMeanWriteLatencyMs() { long count = batches; return count > 0 ? totalLatency / 1000000.0 / count : 0; }
+    public double getMaxWriteLatencyMs() { return maxLatency / 1000000.0; }
+    public long getForces() { return forces; }
+
+    // Record from a stream on a new thread (until closed)
+    public synchronized void start(final AxStream stream) {
+        if (packer != null) return;
+        stream.setTrackGaps(true);
+        packer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] buffer = new short[READ_BATCH * 3];
+                long position = 0;      // samples read from the stream
+                try {
+                    while (recording) {
+                        int count = stream.read(buffer, READ_BATCH, READ_TIMEOUT_MS);
+                        // (samples before each gap, then the gap)
+                        int done = 0;
+                        AxStream.Gap gap;
+                        while ((gap = stream.pollGap(position + count)) != null) {
+                            int before = (int) Math.max(0, gap.getPosition() - position - done);
+                            add(buffer, done * 3, before);
+                            done += before;
+                            skip(gap.getMissing());
+                        }
+                        add(buffer, done * 3, count - done);
+                        position += count;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }, "CwaRecorder-pack");
+        packer.start();
+    }
+
+    // Add samples (interleaved x/y/z, 1/256 g), from a single thread
+    public synchronized void add(short[] buffer, int offset, int count) throws IOException {
+        if (error != null) throw error;
+        while (count > 0) {
+            if (sectorCount == 0) sectorStart = sampleClock;
+            int n = Math.min(count, SECTOR_SAMPLES - sectorCount);
+            System.arraycopy(buffer, offset, sector, sectorCount * 3, n * 3);
+            sectorCount += n;
+            sampleClock += n;
+            samples += n;
+            offset += n * 3;
+            count -= n;
+            if (sectorCount >= SECTOR_SAMPLES) {
+                addSector();
+            }
+        }
+        // (a partly-filled batch is not left unwritten for long)
+        if (batch != null && System.nanoTime() - batch.started >= MAX_BATCH_NANOS) {
+            submit();
+        }
+    }
+
+    // Samples missing from the stream at this point: the current sector ends, and the next sample is timestamped after the gap
+    public synchronized void skip(long count) throws IOException {
+        if (error != null) throw error;
+        if (count <= 0) return;
+        if (sectorCount > 0) addSector();
+        sampleClock += count;
+        missing += count;
+    }
+
+    // Pack the current sector into the batch
+    private void addSector() throws IOException {
+        if (batch == null) {
+            try {
+                batch = free.poll();
+                if (batch == null) {
+                    waits++;
+                    while (batch == null) {
+                        if (error != null) throw error;
+                        batch = free.poll(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            batch.buffer.clear();
+            batch.position = HEADER_SIZE + sectors * CwaSamples.SECTOR_SIZE;
+            batch.started = System.nanoTime();
+        }
+        CwaSamples.encode(batch.buffer, batch.buffer.position(), sessionId, sectors, startTime + sectorStart / frequency, rateCode, sector, 0, sectorCount);
+        batch.buffer.position(batch.buffer.position() + CwaSamples.SECTOR_SIZE);
+        sectors++;
+        sectorCount = 0;
+        if (!batch.buffer.hasRemaining()) {
+            submit();
+        }
+    }
+
+    // Hand the batch to the writer
+    private void submit() {
+        batch.buffer.flip();
+        batch.submitted = System.nanoTime();
+        full.add(batch);    // (never full: there are only two batches, and the end marker)
+        batch = null;
+    }
+
+    private void writeLoop() {
+        long lastForce = System.nanoTime();
+        long allocated = PREALLOCATE;
+        boolean unforced = false;
+        try {
+            for (;;) {
+                Batch next = full.poll(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                long now = System.nanoTime();
+                if (next == END) break;
+                if (next != null) {
+                    long end = next.position + next.buffer.remaining();
+                    if (end > allocated) {
+                        allocated = (end / PREALLOCATE + 1) * PREALLOCATE;
+                        file.setLength(allocated);
+                    }
+                    long position = next.position;
+                    while (next.buffer.hasRemaining()) {
+                        position += channel.write(next.buffer, position);
+                    }
+                    long latency = System.nanoTime() - next.submitted;
+                    bytesWritten += position - next.position;
+                    totalLatency += latency;
+                    if (latency > maxLatency) maxLatency = latency;
+                    batches++;
+                    free.add(next);
+                    unforced = true;
+                }
+                if (unforced && now - lastForce >= FORCE_NANOS) {
+                    channel.force(false);
+                    forces++;
+                    lastForce = System.nanoTime();
+                    unforced = false;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new IOException("Interrupted");
+        }
+    }
+
+    // Stop recording, writing any remaining samples, and close the file (trimmed to the data recorded)
+    public void close() throws IOException {
+        recording = false;
+        Thread thread;
+        synchronized (this) {
+            thread = packer;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long length;
+        synchronized (this) {
+            if (sectorCount > 0 && error == null) addSector();
+            if (batch != null) submit();
+            full.add(END);
+            length = HEADER_SIZE + sectors * CwaSamples.SECTOR_SIZE;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (error != null) throw error;
+            file.setLength(length);
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+}
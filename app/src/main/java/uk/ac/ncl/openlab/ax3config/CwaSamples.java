@@ -0,0 +1,254 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Decoded block of accelerometer samples from an Open Movement CWA data file (reused for each block)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class CwaSamples {
+
+    // Each data block is one 512-byte sector: "AX", length 508, 30-byte header, 480 bytes of samples, 16-bit checksum
+    public static final int SECTOR_SIZE = 512;
+    public static final int MAX_SAMPLES = 120;      // 480 bytes of packed 3-axis samples
+    public static final int MAX_UNPACKED_SAMPLES = 80;
+
+    // Decode results
+    public static final int OK = 0;
+    public static final int NOT_DATA = 1;           // not a data block (e.g. unused or another sector type)
+    public static final int BAD_CHECKSUM = 2;
+    public static final int BAD_FORMAT = 3;         // unsupported sample format or rate
+
+    private static final int HEADER_AX = 0x5841;    // "AX" (little-endian)
+    private static final int DATA_OFFSET = 30;
+    private static final int DATA_SIZE = 480;
+
+    // Accelerometer samples, interleaved x/y/z, in units of 1/scale g
+    private final short[] accel = new short[MAX_SAMPLES * 3];
+    private int count = 0;
+    private int scale = 256;
+
+    private int deviceId;
+    private long sessionId;
+    private long sequenceId;
+    private double startTime;       // seconds since epoch (device local time) of the first sample
+    private double frequency;
+    private int range;
+    private int light;
+    private int temperature;
+    private int battery;
+    private int events;
+
+    public int getCount() { return count; }
+    public short[] getAccel() { return accel; }
+    public int getScale() { return scale; }
+    public int getDeviceId() { return deviceId; }
+    public long getSessionId() { return sessionId; }
+    public long getSequenceId() { return sequenceId; }
+    public double getStartTime() { return startTime; }
+    public double getFrequency() { return frequency; }
+    public int getRange() { return range; }
+    public int getLight() { return light; }
+    public int getTemperature() { return temperature; }
+    public int getBattery() { return battery; }
+    public int getEvents() { return events; }
+
+    // Time of a sample (seconds since epoch, device local time)
+    public double getTime(int index) {
+        return startTime + index / frequency;
+    }
+
+    // Acceleration of a sample's axis (0=x, 1=y, 2=z) in g
+    public float getAccel(int index, int axis) {
+        return (float) accel[index * 3 + axis] / scale;
+    }
+
+    // Sample rate (Hz) of a rate code
+    public static double frequency(int rateCode) {
+        return 3200.0 / (1 << (15 - (rateCode & 0x0f)));
+    }
+
+    // Sensitivity (+/- g) of a rate code
+    public static int range(int rateCode) {
+        return 16 >> ((rateCode >> 6) & 0x03);
+    }
+
+    // Whether the sector at the (absolute) offset of a little-endian buffer is a data block with a valid checksum
+    public static int validate(ByteBuffer le, int offset) {
+        if (le.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Buffer must be little-endian");
+        }
+        if ((le.getShort(offset) & 0xffff) != HEADER_AX || (le.getShort(offset + 2) & 0xffff) != SECTOR_SIZE - 4) {
+            return NOT_DATA;
+        }
+        // 16-bit word sum of the whole sector is zero
+        int sum = 0;
+        for (int i = 0; i < SECTOR_SIZE; i += 4) {
+            int word = le.getInt(offset + i);
+            sum += (word & 0xffff) + (word >>> 16);
+        }
+        if ((sum & 0xffff) != 0) {
+            return BAD_CHECKSUM;
+        }
+        return OK;
+    }
+
+    // Format of the last decoded header
+    private int axes;
+    private int bytesPerSample;
+
+    // Decode just the header of the sector at the (absolute) offset of a little-endian buffer (the sample count and times, but not the samples), returns OK or the reason it was not decoded
+    public int decodeHeader(ByteBuffer buffer, int offset) {
+        int result = validate(buffer, offset);
+        if (result != OK) {
+            count = 0;
+            return result;
+        }
+
+        int deviceFractional = buffer.getShort(offset + 4) & 0xffff;
+        long timestamp = buffer.getInt(offset + 14) & 0xffffffffL;
+        int lightScale = buffer.getShort(offset + 18) & 0xffff;
+        int rateCode = buffer.get(offset + 24) & 0xff;
+        int numAxesBps = buffer.get(offset + 25) & 0xff;
+        int timestampOffset = buffer.getShort(offset + 26);
+        int sampleCount = buffer.getShort(offset + 28) & 0xffff;
+
+        int axes = (numAxesBps >> 4) & 0x0f;
+        int bytesPerSample = numAxesBps & 0x0f;
+        if (rateCode == 0 || (bytesPerSample == 0 && axes != 3) || (bytesPerSample != 0 && bytesPerSample != 2)) {
+            count = 0;
+            return BAD_FORMAT;
+        }
+        int sampleSize = bytesPerSample == 0 ? 4 : axes * 2;
+        if (axes < 3 || sampleCount * sampleSize > DATA_SIZE) {
+            count = 0;
+            return BAD_FORMAT;
+        }
+
+        double frequency = frequency(rateCode);
+        double time = CwaTimestamp.toSeconds(timestamp);
+        if ((deviceFractional & 0x8000) != 0) {
+            // Top bit set: 15-bit fraction of a second, and the firmware removed the whole samples it accounts for from the timestamp offset
+            int fractional = (deviceFractional & 0x7fff) << 1;    // 1/65536 s
+            time += fractional / 65536.0;
+            timestampOffset += (int) ((fractional * (long) frequency) >> 16);
+            this.deviceId = 0;
+        } else {
+            this.deviceId = deviceFractional;
+        }
+
+        this.axes = axes;
+        this.bytesPerSample = bytesPerSample;
+        this.count = sampleCount;
+        this.scale = 1 << (8 + ((lightScale >> 13) & 0x07));
+        this.sessionId = buffer.getInt(offset + 6) & 0xffffffffL;
+        this.sequenceId = buffer.getInt(offset + 10) & 0xffffffffL;
+        this.startTime = time - timestampOffset / frequency;
+        this.frequency = frequency;
+        this.range = range(rateCode);
+        this.light = lightScale & 0x3ff;
+        this.temperature = buffer.getShort(offset + 20) & 0x3ff;
+        this.events = buffer.get(offset + 22) & 0xff;
+        this.battery = buffer.get(offset + 23) & 0xff;
+        return OK;
+    }
+
+    // Encode a sector of up to MAX_UNPACKED_SAMPLES unpacked samples (interleaved x/y/z, 1/256 g) at the (absolute) offset of a little-endian buffer, the first sample at the given time (seconds since epoch, device local time)
+    public static void encode(ByteBuffer le, int offset, long sessionId, long sequenceId, double startTime, int rateCode, short[] samples, int samplesOffset, int count) {
+        if (le.order() != ByteOrder.LITTLE_ENDIAN) {
+            throw new IllegalArgumentException("Buffer must be little-endian");
+        }
+        if (count < 0 || count > MAX_UNPACKED_SAMPLES) {
+            throw new IllegalArgumentException("Invalid sample count");
+        }
+        // Whole seconds, with a 15-bit fraction (the whole samples it accounts for are removed from the timestamp offset)
+        long seconds = (long) Math.floor(startTime);
+        int fractional = (int) ((startTime - seconds) * 65536) & 0xfffe;
+        le.putShort(offset, (short) HEADER_AX);
+        le.putShort(offset + 2, (short) (SECTOR_SIZE - 4));
+        le.putShort(offset + 4, (short) (0x8000 | (fractional >> 1)));
+        le.putInt(offset + 6, (int) sessionId);
+        le.putInt(offset + 10, (int) sequenceId);
+        le.putInt(offset + 14, (int) CwaTimestamp.fromSeconds(seconds));
+        le.putShort(offset + 18, (short) 0);    // light (and scale of 1/256 g)
+        le.putShort(offset + 20, (short) 0);    // temperature
+        le.put(offset + 22, (byte) 0);          // events
+        le.put(offset + 23, (byte) 0);          // battery
+        le.put(offset + 24, (byte) rateCode);
+        le.put(offset + 25, (byte) 0x32);       // 3 axes, 2 bytes per axis
+        le.putShort(offset + 26, (short) -((fractional * (long) frequency(rateCode)) >> 16));
+        le.putShort(offset + 28, (short) count);
+        int base = offset + DATA_OFFSET;
+        for (int i = 0; i < count * 3; i++) {
+            le.putShort(base + i * 2, samples[samplesOffset + i]);
+        }
+        for (int i = base + count * 6; i < offset + SECTOR_SIZE - 2; i++) {
+            le.put(i, (byte) 0);
+        }
+        // Checksum: the 16-bit words of the sector sum to zero
+        int sum = 0;
+        for (int i = 0; i < SECTOR_SIZE - 2; i += 2) {
+            sum += le.getShort(offset + i);
+        }
+        le.putShort(offset + SECTOR_SIZE - 2, (short) -sum);
+    }
+
+    // Decode the sector at the (absolute) offset of a little-endian buffer into this block, returns OK or the reason it was not decoded
+    public int decode(ByteBuffer buffer, int offset) {
+        int result = decodeHeader(buffer, offset);
+        if (result != OK) {
+            return result;
+        }
+
+        // Decode samples without allocation
+        int sampleCount = count;
+        int base = offset + DATA_OFFSET;
+        short[] accel = this.accel;
+        if (bytesPerSample == 0) {
+            // Packed 32-bit: (MSB) eezzzzzz zzzzyyyy yyyyyyxx xxxxxxxx (LSB), 10-bit signed values shifted by the 2-bit exponent
+            for (int i = 0, j = 0; i < sampleCount; i++, j += 3) {
+                int value = buffer.getInt(base + i * 4);
+                int exponent = value >>> 30;
+                accel[j] = (short) (((value << 22) >> 22) << exponent);
+                accel[j + 1] = (short) (((value << 12) >> 22) << exponent);
+                accel[j + 2] = (short) (((value << 2) >> 22) << exponent);
+            }
+        } else {
+            // Unpacked 16-bit (for more than 3 axes, the accelerometer follows the gyroscope)
+            int sampleSize = axes * 2;
+            int accelOffset = axes == 3 ? 0 : 6;
+            for (int i = 0, j = 0; i < sampleCount; i++, j += 3) {
+                int position = base + i * sampleSize + accelOffset;
+                accel[j] = buffer.getShort(position);
+                accel[j + 1] = buffer.getShort(position + 2);
+                accel[j + 2] = buffer.getShort(position + 4);
+            }
+        }
+        return OK;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Packed date/time values used in Open Movement CWA data files
+
+package uk.ac.ncl.openlab.ax3config;
+
+public final class CwaTimestamp {
+
+    // Packed as (MSB) YYYYYYMM MMDDDDDh hhhhmmmm mmssssss (LSB), years from 2000, in the device's local time
+    // Special values: zero is "always" (infinite past) and all-ones is "never" (infinite future)
+    public static final long ALWAYS = 0x00000000L;
+    public static final long NEVER = 0xffffffffL;
+
+    private CwaTimestamp() {
+    }
+
+    // Seconds since 1970-01-01T00:00:00 (treating the device's local time as UTC); Long.MIN_VALUE/Long.MAX_VALUE for the special values
+    public static long toSeconds(long packed) {
+        packed &= 0xffffffffL;
+        if (packed == ALWAYS) return Long.MIN_VALUE;
+        if (packed == NEVER) return Long.MAX_VALUE;
+        int year = (int) ((packed >> 26) & 0x3f) + 2000;
+        int month = (int) ((packed >> 22) & 0x0f);
+        int day = (int) ((packed >> 17) & 0x1f);
+        int hours = (int) ((packed >> 12) & 0x1f);
+        int minutes = (int) ((packed >> 6) & 0x3f);
+        int seconds = (int) (packed & 0x3f);
+        return daysFromCivil(year, month, day) * 86400L + hours * 3600 + minutes * 60 + seconds;
+    }
+
+    // Packed value from seconds since 1970-01-01T00:00:00 (clamped to the representable range, 2000-2063)
+    public static long fromSeconds(long seconds) {
+        if (seconds == Long.MIN_VALUE) return ALWAYS;
+        if (seconds == Long.MAX_VALUE) return NEVER;
+        long days = floorDiv(seconds, 86400L);
+        int secondOfDay = (int) (seconds - days * 86400L);
+        // Civil date from days (H. Hinnant's algorithm)
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 2000) return ALWAYS + 1;     // earliest representable (not the special value)
+        if (year > 2063) return NEVER - 1;      // latest representable (not the special value)
+        return ((year - 2000) << 26) | ((long) month << 22) | ((long) day << 17)
+                | ((long) (secondOfDay / 3600) << 12) | ((long) (secondOfDay / 60 % 60) << 6) | (secondOfDay % 60);
+    }
+
+    // (Math.floorDiv() is not available before Android API 24)
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) q--;
+        return q;
+    }
+
+    // Days since 1970-01-01 of a (proleptic Gregorian) civil date (H. Hinnant's algorithm)
+    static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+}
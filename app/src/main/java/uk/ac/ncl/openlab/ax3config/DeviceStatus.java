@@ -0,0 +1,90 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Snapshot of an Open Movement AX3 Device's configuration and state (immutable)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.util.Date;
+
+public final class DeviceStatus {
+
+    private final int sessionId;
+    private final long startTime;
+    private final long endTime;
+    private final int rateValue;
+    private final int rate;
+    private final int range;
+    private final int battery;
+    private final long deviceTime;
+    private final long readTime;
+
+    DeviceStatus(int sessionId, Date startTime, Date endTime, int rateValue, int rate, int battery, Date deviceTime, long readTime) {
+        this.sessionId = sessionId;
+        this.startTime = startTime.getTime();
+        this.endTime = endTime.getTime();
+        this.rateValue = rateValue;
+        this.rate = rate;
+        this.range = rangeFromValue(rateValue);
+        this.battery = battery;
+        this.deviceTime = deviceTime.getTime();
+        this.readTime = readTime;
+    }
+
+    // Sensitivity (+/- g) from the bits of the device's rate value
+    private static int rangeFromValue(int rateValue) {
+        switch (rateValue & 0xC0) {
+            case 0x00: return 16;
+            case 0x40: return 8;
+            case 0x80: return 4;
+            default: return 2;
+        }
+    }
+
+    public int getSessionId() { return sessionId; }
+    public Date getStartTime() { return new Date(startTime); }
+    public Date getEndTime() { return new Date(endTime); }
+    public int getRateValue() { return rateValue; }
+    public int getRate() { return rate; }
+    public int getRange() { return range; }
+    public int getBattery() { return battery; }
+
+    // Device clock when the status was read
+    public Date getDeviceTime() { return new Date(deviceTime); }
+
+    // Local time (milliseconds since epoch) the status was read
+    public long getReadTime() { return readTime; }
+
+    // Whether the device has an existing configuration (which would be lost if re-configured)
+    public boolean hasConfiguration() {
+        return sessionId != 0 || endTime > startTime;
+    }
+
+    @Override
+    public String toString() {
+        return "session=" + sessionId + " start=" + getStartTime() + " end=" + getEndTime() + " rate=" + rate + " Hz range=" + range + " g battery=" + battery + "% time=" + getDeviceTime();
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Streaming per-epoch summary (ENMO, vector magnitude mean and SD) of accelerometer samples, in a single pass with constant memory
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+
+public class EpochSummariser implements CwaReader.Sink {
+
+    // Summary of one epoch (reused: only valid during the listener call)
+    public static class Epoch {
+        double startTime;
+        double duration;
+        long count;
+        double enmoSum;
+        double meanVm;
+        double m2Vm;    // sum of squared differences from the mean
+
+        // Start (seconds since epoch, device local time) and length of the epoch
+        public double getStartTime() { return startTime; }
+        public double getDuration() { return duration; }
+
+        // Number of samples in the epoch
+        public long getCount() { return count; }
+
+        // Mean Euclidean norm minus one (g), negative values as zero
+        public double getEnmo() { return count > 0 ? enmoSum / count : 0; }
+
+        // Mean and standard deviation (sample) of the vector magnitude (g)
+        public double getMeanVm() { return meanVm; }
+        public double getSdVm() { return count > 1 ? Math.sqrt(m2Vm / (count - 1)) : 0; }
+
+        void clear(double startTime, double duration) {
+            this.startTime = startTime;
+            this.duration = duration;
+            count = 0;
+            enmoSum = 0;
+            meanVm = 0;
+            m2Vm = 0;
+        }
+
+        @Override
+        public String toString() {
+            return startTime + "," + count + "," + getEnmo() + "," + getMeanVm() + "," + getSdVm();
+        }
+    }
+
+    // Receives each completed epoch (epochs without samples are not reported)
+    public interface Listener {
+        void onEpoch(Epoch epoch) throws IOException;
+    }
+
+    private final double epochLength;
+    private final Listener listener;
+    private final Epoch epoch = new Epoch();
+    private double epochEnd = Double.NEGATIVE_INFINITY;
+    private long epochs = 0;
+
+    // Epochs of the given length (seconds), aligned to multiples of the length since the epoch
+    public EpochSummariser(double epochLength, Listener listener) {
+        this.epochLength = epochLength;
+        this.listener = listener;
+    }
+
+    public long getEpochCount() { return epochs; }
+
+    @Override
+    public void onSamples(CwaSamples samples) throws IOException {
+        add(samples.getAccel(), 0, samples.getCount(), samples.getScale(), samples.getStartTime(), samples.getFrequency());
+    }
+
+    // Add evenly-spaced samples (interleaved x/y/z, in units of 1/scale g, from the offset of the array), the first at the start time
+    public void add(short[] accel, int offset, int count, int scale, double startTime, double frequency) throws IOException {
+        float unit = 1.0f / scale;
+        int i = 0;
+        while (i < count) {
+            double time = startTime + i / frequency;
+            if (time >= epochEnd || time < epoch.startTime) {
+                // Next epoch (or a time discontinuity)
+                finish();
+                double start = Math.floor(time / epochLength) * epochLength;
+                epoch.clear(start, epochLength);
+                epochEnd = start + epochLength;
+            }
+            // Samples up to the end of this epoch (or the block)
+            int end = (int) Math.min(count, Math.ceil((epochEnd - startTime) * frequency - 1e-9));
+            if (end <= i) end = i + 1;
+
+            // Shifted sums of the run (shifting by 1 g, near the mean, keeps the variance accurate)
+            double sum = 0;
+            double sumSquares = 0;
+            double enmo = 0;
+            for (int j = offset + i * 3, last = offset + end * 3; j < last; j += 3) {
+                float x = accel[j] * unit;
+                float y = accel[j + 1] * unit;
+                float z = accel[j + 2] * unit;
+                double d = Math.sqrt(x * x + y * y + z * z) - 1.0;
+                sum += d;
+                sumSquares += d * d;
+                enmo += Math.max(d, 0.0);   // (branch-free)
+            }
+
+            // Merge the run into the epoch (Chan et al.'s parallel form of Welford's algorithm)
+            int n = end - i;
+            double runMean = sum / n;
+            double runM2 = sumSquares - sum * runMean;
+            long total = epoch.count + n;
+            double delta = (runMean + 1.0) - epoch.meanVm;
+            epoch.meanVm += delta * n / total;
+            epoch.m2Vm += runM2 + delta * delta * epoch.count * n / total;
+            epoch.enmoSum += enmo;
+            epoch.count = total;
+            i = end;
+        }
+    }
+
+    // Report the current (partial) epoch, e.g. at the end of the data
+    public void finish() throws IOException {
+        if (epoch.count > 0) {
+            epochs++;
+            listener.onEpoch(epoch);
+        }
+        epoch.clear(epoch.startTime, epochLength);
+        epochEnd = Double.NEGATIVE_INFINITY;
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// FAT16/FAT32 volume on a block device (read-only, files in the root directory), as on an Open Movement AX3 Device's drive
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class FatVolume {
+
+    // A file in the root directory
+    public static class Entry {
+        private final String name;
+        private final long firstCluster;
+        private final long size;
+
+        Entry(String name, long firstCluster, long size) {
+            this.name = name;
+            this.firstCluster = firstCluster;
+            this.size = size;
+        }
+
+        public String getName() { return name; }
+        public long getSize() { return size; }
+
+        @Override
+        public String toString() {
+            return name + " (" + size + " bytes)";
+        }
+    }
+
+    private static final int FAT_CACHE_BLOCKS = 16;
+
+    private final BlockDevice device;
+    private final int blockSize;
+    private final long volumeStart;         // first block of the volume
+    private final int blocksPerCluster;
+    private final long fatStart;            // (blocks from the start of the device)
+    private final long rootStart;           // FAT16 fixed root directory
+    private final int rootBlocks;
+    private final long rootCluster;         // FAT32 root directory cluster chain
+    private final long dataStart;
+    private final long clusterCount;
+    private final boolean fat32;
+
+    // Cached FAT blocks
+    private final byte[] fatCache;
+    private final ByteBuffer fatBuffer;
+    private long fatCacheBlock = -1;
+
+    // Open the first FAT volume: either the whole device, or the first FAT partition in a partition table
+    public FatVolume(BlockDevice device) throws IOException {
+        this.device = device;
+        this.blockSize = device.getBlockSize();
+        byte[] block = new byte[blockSize];
+        device.read(0, 1, block, 0);
+        ByteBuffer le = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        if ((le.getShort(510) & 0xffff) != 0xAA55) {
+            throw new IOException("No boot sector or partition table");
+        }
+        long start = 0;
+        if (!isBootSector(le)) {
+            start = -1;
+            for (int i = 0; i < 4; i++) {
+                int entry = 446 + i * 16;
+                int type = le.get(entry + 4) & 0xff;
+                if (type == 0x01 || type == 0x04 || type == 0x06 || type == 0x0B || type == 0x0C || type == 0x0E) {
+                    start = le.getInt(entry + 8) & 0xffffffffL;
+                    break;
+                }
+            }
+            if (start < 0) {
+                throw new IOException("No FAT partition");
+            }
+            device.read(start, 1, block, 0);
+            if (!isBootSector(le)) {
+                throw new IOException("Partition has no FAT boot sector");
+            }
+        }
+        volumeStart = start;
+
+        int bytesPerSector = le.getShort(11) & 0xffff;
+        if (bytesPerSector != blockSize) {
+            throw new IOException("Unsupported sector size: " + bytesPerSector);
+        }
+        blocksPerCluster = le.get(13) & 0xff;
+        int reserved = le.getShort(14) & 0xffff;
+        int fats = le.get(16) & 0xff;
+        int rootEntries = le.getShort(17) & 0xffff;
+        long totalSectors = le.getShort(19) & 0xffff;
+        if (totalSectors == 0) totalSectors = le.getInt(32) & 0xffffffffL;
+        long fatSize = le.getShort(22) & 0xffff;
+        if (fatSize == 0) fatSize = le.getInt(36) & 0xffffffffL;
+
+        rootBlocks = (rootEntries * 32 + blockSize - 1) / blockSize;
+        fatStart = volumeStart + reserved;
+        rootStart = fatStart + fats * fatSize;
+        dataStart = rootStart + rootBlocks;
+        clusterCount = (totalSectors - (dataStart - volumeStart)) / blocksPerCluster;
+        if (clusterCount < 4085) {
+            throw new IOException("FAT12 volumes are not supported");
+        }
+        fat32 = clusterCount >= 65525;
+        rootCluster = fat32 ? le.getInt(44) & 0x0fffffffL : 0;
+
+        fatCache = new byte[FAT_CACHE_BLOCKS * blockSize];
+        fatBuffer = ByteBuffer.wrap(fatCache).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static boolean isBootSector(ByteBuffer le) {
+        int jump = le.get(0) & 0xff;
+        int bytesPerSector = le.getShort(11) & 0xffff;
+        int sectorsPerCluster = le.get(13) & 0xff;
+        return (jump == 0xEB || jump == 0xE9) && bytesPerSector >= 512 && (bytesPerSector & (bytesPerSector - 1)) == 0
+                && sectorsPerCluster > 0 && (sectorsPerCluster & (sectorsPerCluster - 1)) == 0;
+    }
+
+    public boolean isFat32() { return fat32; }
+    public int getClusterSize() { return blocksPerCluster * blockSize; }
+
+    // Next cluster in a chain, or -1 at the end of the chain
+    private long nextCluster(long cluster) throws IOException {
+        long byteOffset = cluster * (fat32 ? 4 : 2);
+        long block = fatStart + byteOffset / blockSize;
+        if (fatCacheBlock < 0 || block < fatCacheBlock || block >= fatCacheBlock + FAT_CACHE_BLOCKS) {
+            device.read(block, (int) Math.min(FAT_CACHE_BLOCKS, device.getBlockCount() - block), fatCache, 0);
+            fatCacheBlock = block;
+        }
+        int offset = (int) ((block - fatCacheBlock) * blockSize + byteOffset % blockSize);
+        long next;
+        if (fat32) {
+            next = fatBuffer.getInt(offset) & 0x0fffffffL;
+            if (next >= 0x0ffffff7L) return -1;
+        } else {
+            next = fatBuffer.getShort(offset) & 0xffff;
+            if (next >= 0xfff7) return -1;
+        }
+        if (next < 2 || next >= clusterCount + 2) {
+            throw new IOException("Invalid cluster chain");
+        }
+        return next;
+    }
+
+    private long clusterBlock(long cluster) {
+        return dataStart + (cluster - 2) * blocksPerCluster;
+    }
+
+    // Extents of a cluster chain, as pairs of first block and number of blocks, up to the given number of blocks
+    private long[] extents(long firstCluster, long maxBlocks) throws IOException {
+        List<long[]> runs = new ArrayList<long[]>();
+        long blocks = 0;
+        long cluster = firstCluster;
+        long runStart = -1, runLength = 0;
+        while (cluster >= 2 && blocks < maxBlocks) {
+            long block = clusterBlock(cluster);
+            long length = Math.min(blocksPerCluster, maxBlocks - blocks);
+            if (runStart >= 0 && runStart + runLength == block) {
+                runLength += length;
+            } else {
+                if (runStart >= 0) runs.add(new long[] { runStart, runLength });
+                runStart = block;
+                runLength = length;
+            }
+            blocks += length;
+            if (blocks > clusterCount * blocksPerCluster) {
+                throw new IOException("Cluster chain loops");
+            }
+            cluster = nextCluster(cluster);
+        }
+        if (runStart >= 0) runs.add(new long[] { runStart, runLength });
+        long[] extents = new long[runs.size() * 2];
+        for (int i = 0; i < runs.size(); i++) {
+            extents[i * 2] = runs.get(i)[0];
+            extents[i * 2 + 1] = runs.get(i)[1];
+        }
+        return extents;
+    }
+
+    // Extents of a file's data (pairs of first block and number of blocks, the last block may be partly used), read these for large contiguous transfers
+    public long[] getExtents(Entry entry) throws IOException {
+        if (entry.size == 0) return new long[0];
+        long[] extents = extents(entry.firstCluster, (entry.size + blockSize - 1) / blockSize);
+        long total = 0;
+        for (int i = 1; i < extents.length; i += 2) total += extents[i];
+        if (total * blockSize < entry.size) {
+            throw new IOException("File is shorter than its size");
+        }
+        return extents;
+    }
+
+    // Files in the root directory (short names only)
+    public List<Entry> list() throws IOException {
+        long[] extents = fat32 ? extents(rootCluster, Long.MAX_VALUE) : new long[] { rootStart, rootBlocks };
+        List<Entry> entries = new ArrayList<Entry>();
+        byte[] block = new byte[blockSize];
+        ByteBuffer le = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < extents.length; i += 2) {
+            for (long b = 0; b < extents[i + 1]; b++) {
+                device.read(extents[i] + b, 1, block, 0);
+                for (int offset = 0; offset < blockSize; offset += 32) {
+                    int first = block[offset] & 0xff;
+                    if (first == 0x00) return entries;     // end of directory
+                    int attributes = block[offset + 11] & 0xff;
+                    if (first == 0xE5 || attributes == 0x0F || (attributes & 0x18) != 0) continue;    // deleted, long name, volume label or directory
+                    String base = new String(block, offset, 8, "ISO-8859-1").trim();
+                    String extension = new String(block, offset + 8, 3, "ISO-8859-1").trim();
+                    if (first == 0x05) base = (char) 0xE5 + base.substring(1);
+                    long cluster = (le.getShort(offset + 26) & 0xffff) | (fat32 ? (long) (le.getShort(offset + 20) & 0xffff) << 16 : 0);
+                    long size = le.getInt(offset + 28) & 0xffffffffL;
+                    entries.add(new Entry(extension.length() > 0 ? base + "." + extension : base, cluster, size));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Find a file in the root directory (case-insensitive), or null
+    public Entry find(String name) throws IOException {
+        String upper = name.toUpperCase(Locale.US);
+        for (Entry entry : list()) {
+            if (entry.getName().equals(upper)) return entry;
+        }
+        return null;
+    }
+
+}
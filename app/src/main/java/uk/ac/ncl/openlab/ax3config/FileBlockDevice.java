@@ -0,0 +1,76 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Block device from a disk image file (e.g. a copy of a device's drive, in place of the device)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class FileBlockDevice implements BlockDevice {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int MAX_TRANSFER_BLOCKS = 128;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long blockCount;
+
+    public FileBlockDevice(File image) throws IOException {
+        file = new RandomAccessFile(image, "r");
+        channel = file.getChannel();
+        blockCount = channel.size() / BLOCK_SIZE;
+    }
+
+    public int getBlockSize() { return BLOCK_SIZE; }
+    public long getBlockCount() { return blockCount; }
+    public int getMaxTransferBlocks() { return MAX_TRANSFER_BLOCKS; }
+
+    public void read(long block, int count, byte[] buffer, int offset) throws IOException {
+        if (block < 0 || count < 0 || block + count > blockCount) {
+            throw new IOException("Read beyond the end of the device");
+        }
+        ByteBuffer destination = ByteBuffer.wrap(buffer, offset, count * BLOCK_SIZE);
+        long position = block * BLOCK_SIZE;
+        while (destination.hasRemaining()) {
+            int read = channel.read(destination, position);
+            if (read < 0) throw new IOException("Unexpected end of image");
+            position += read;
+        }
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // (nothing to do)
+        }
+    }
+
+}
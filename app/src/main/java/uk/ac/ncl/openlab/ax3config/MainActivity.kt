@@ -33,29 +33,62 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.hardware.usb.UsbManager
+import android.support.v4.view.ViewCompat
 import android.support.v7.app.AppCompatActivity
 import android.os.Bundle
 import kotlinx.android.synthetic.main.activity_main.*
-import java.io.IOException
 import android.content.IntentFilter
 import android.hardware.usb.UsbDevice
 import android.view.inputmethod.EditorInfo
 import android.content.pm.PackageManager.FEATURE_USB_HOST
 import android.os.Build
+import java.io.File
 import java.util.Calendar
 
 private const val ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION"
+private const val SESSION_TIMEOUT_MS = 60000
+private const val LOG_LINES = 500
+private const val PROFILES_FILE = "device-profiles.properties"
 
 class MainActivity : AppCompatActivity() {
 
+    // Activity log: the most recent lines only, with the view updated at most once per frame
+    private val logLines = AxLog(LOG_LINES)
+    private val logText = StringBuilder()
+    private var logPending = false
+    private val logUpdate = Runnable {
+        logPending = false
+        logText.setLength(0)
+        logLines.appendTo(logText)
+        editTextLog.setText(logText)
+        editTextLog.setSelection(editTextLog.length())
+    }
+
     private fun log(message: String) {
-        editTextLog.append(message + "\n")
+        logLines.add(message)
+        if (!logPending) {
+            logPending = true
+            ViewCompat.postOnAnimation(editTextLog, logUpdate)
+        }
     }
 
     private lateinit var permissionIntent: PendingIntent
 
     private lateinit var usbManager: UsbManager
 
+    // Multiple devices are configured concurrently
+    private val provisioner = AxProvisioner(8)
+
+    // Single device sessions run in the background
+    private lateinit var pipeline: AxSessionPipeline
+
+    // Attached devices, with connections kept open between sessions
+    private lateinit var registry: AxDeviceRegistry
+
+    // Command and transfer metrics for all sessions
+    private val metrics = AxMetrics()
+    private val pendingProvision = HashSet<String>()
+
     private val usbReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
             if (ACTION_USB_PERMISSION == intent.action) {
@@ -64,7 +97,11 @@ class MainActivity : AppCompatActivity() {
                     if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
                         device?.apply {
                             log("Permission allowed.")
-                            connect(device)
+                            if (pendingProvision.remove(device.deviceName)) {
+                                provision(listOf(device))
+                            } else {
+                                connect(device)
+                            }
                         }
                     } else {
                         log("Permission denied for device.")
@@ -75,12 +112,14 @@ class MainActivity : AppCompatActivity() {
                 val device: UsbDevice? = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE)
                 device?.apply {
                     log("DEVICE: Detached")
+                    registry.onDetached(device)
                 }
             }
             if (UsbManager.ACTION_USB_DEVICE_ATTACHED == intent.action) {
                 val device: UsbDevice? = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE)
                 log("DEVICE: Attached")
                 device?.apply {
+                    registry.onAttached(device)
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                         log("DEVICE: Attached ${device.serialNumber}")
                     } else {
@@ -92,90 +131,150 @@ class MainActivity : AppCompatActivity() {
         }
     }
 
+    // Configuration for the specified Session ID, 100 Hz, +/-8g, from now for 7 days, with the time synchronized
+    private fun createConfiguration(id: Int): AxConfiguration {
+        val now = Calendar.getInstance()
+        val start = now.clone() as Calendar
+        val end = start.clone() as Calendar
+        end.add(Calendar.HOUR, 7 * 24);
+
+        val configuration = AxConfiguration()
+        configuration.sessionId = id
+        configuration.startTime = start.time
+        configuration.endTime = end.time
+        configuration.setRate(100, 8)
+        configuration.syncTime = true     // (set the clock on a second boundary, compensating for latency)
+        configuration.setCommit(true, false)
+        configuration.led = 5    // magenta
+        return configuration
+    }
+
+    // Configure several devices concurrently
+    fun provision(devices: List<UsbDevice>) {
+        val id = editTextSessionId.text.toString().toIntOrNull()
+        if (id == null) {
+            log("ERROR: Invalid id")
+            return
+        }
+        val targets = ArrayList<AxProvisioner.Target>()
+        for (device in devices) {
+            if (usbManager.hasPermission(device)) {
+                targets.add(UsbProvisionTarget(registry, device))
+            } else {
+                log("DEVICE: Requesting permission...")
+                pendingProvision.add(device.deviceName)
+                usbManager.requestPermission(device, permissionIntent)
+            }
+        }
+        if (targets.isEmpty()) return
+        log("PROVISIONING: ${targets.size} device(s) for id $id")
+        provisioner.setAllowOverwrite(true)     // (would not normally do this!)
+        provisioner.provision(targets, AxProvisioner.Configurator { _ -> createConfiguration(id) }, object : AxProvisioner.Listener {
+            override fun onResult(result: AxProvisioner.Result) {
+                runOnUiThread {
+                    if (result.isOverwritten) {
+                        log("WARNING: Device ${result.serialNumber} had an existing configuration -- overwritten")
+                    }
+                    log(result.toString())
+                }
+            }
+            override fun onFinished(count: Int) {
+                runOnUiThread { log("PROVISIONED: $count device(s)") }
+            }
+        })
+    }
+
     fun connect(device: UsbDevice) {
         log("CONNECT")
-        val port = UsbSerialPort(device)
-        try {
-            // log("PORT: $port")
-            port.open(usbManager)
-            log("Connected to: Device ID " + port.serialNumber)
+        // (read the UI before handing over to the background session)
+        val text = editTextInput.text.toString()
+        val idStr = editTextSessionId.text.toString()
+        pipeline.submit(device, SESSION_TIMEOUT_MS, AxSessionPipeline.Task { session ->
+            val port = session.port
+            session.progress("Connected to: Device ID " + port.serialNumber)
 
-            var text = editTextInput.text.toString()
             if (text.isEmpty()) {       // normal configuration (not a custom command)
-                val idStr = editTextSessionId.text.toString()
                 val id = idStr.toIntOrNull()
                 if (id == null) {
-                    log("ERROR: Invalid id")
+                    session.progress("ERROR: Invalid id")
                 } else {
-                    val config = AxConfig(port)
+                    val config = session.config
 
-                    log("CHECKING CONFIGURATION...")
+                    session.progress("CHECKING CONFIGURATION...")
 
                     // val existingSid = config.sessionId
-                    // log("EXISTING: sid=$existingSid")
+                    // session.progress("EXISTING: sid=$existingSid")
                     // val existingStart = config.startTime
-                    // log("EXISTING: start=$existingStart")
+                    // session.progress("EXISTING: start=$existingStart")
                     // val existingEnd = config.endTime
-                    // log("EXISTING: end=$existingEnd")
+                    // session.progress("EXISTING: end=$existingEnd")
 
-                    if (config.hasConfiguration()) {
-                        log("WARNING: Device has an existing configuration -- overwriting anyway (would not normally do this!)...")
+                    val status = config.readStatus()
+                    session.progress("STATUS: $status")
+                    if (status.hasConfiguration()) {
+                        session.progress("WARNING: Device has an existing configuration -- overwriting anyway (would not normally do this!)...")
                     }
 
-                    log("CHECKING BATTERY....")
+                    session.progress("CHECKING BATTERY....")
                     val minimumBattery = 80
-                    var battery = config.battery
+                    val battery = status.battery
                     if (battery < minimumBattery) {
-                        log("ERROR: Device battery ($battery%) below minimum required ($minimumBattery%)")
+                        session.progress("ERROR: Device battery ($battery%) below minimum required ($minimumBattery%)")
                     }
                     else {
-                        log("CONFIGURING: for id $id")
-
-                        val now = Calendar.getInstance()
-                        val start = now.clone() as Calendar
-                        val end = start.clone() as Calendar
-                        end.add(Calendar.HOUR, 7 * 24);
-
-                        config.setSessionId(id)
-                        config.setStartTime(start.time)
-                        config.setEndTime(end.time)
-                        config.setRate(100, 8)
-                        config.setTime(now.time)
-                        config.commit(false)
-                        config.setLed(5)    // magenta
-                        log("DONE");
+                        session.checkCancelled()
+                        session.progress("CONFIGURING: for id $id")
+
+                        val batch = config.configure(createConfiguration(id))
+                        if (batch.isSuccess) {
+                            val clockSync = config.clockSync
+                            if (clockSync != null) session.progress("CLOCK: $clockSync")
+                            session.progress("DONE");
+                        } else {
+                            for (error in batch.errors) {
+                                session.progress("ERROR: $error")
+                            }
+                        }
                     }
                 }
             } else {
                 // Custom command to device
-                text += "\r\n"
+                session.progress("SEND: $text")
 
-                log("SEND: $text")
-
-                val written = port.writeString(text, 2000)
-                log("WRITTEN: $written")
-
-                val lines = port.readLines(2000, 250, null)
-                log("READ: ${lines.size}")
+                val lines = session.config.customCommand(text, 2000)
+                session.progress("READ: ${lines.size}")
                 for (line in lines) {
-                    log("<<< $line")
+                    session.progress("<<< $line")
                 }
             }
-        } catch (e: IOException) {
-            // Deal with error.
-            log("IO EXCEPTION: ${e.message}")
-            log("OPEN DEBUG LOG: ${port.debugInfo}");
-        } catch (e: Exception) {
-            // Deal with error.
-            log("EXCEPTION: ${e.message}")
-        } finally {
-            log("Closing...")
-            port.close()
-            log("Closed")
-        }
+        }, object : AxSessionPipeline.Listener {
+            override fun onProgress(message: String) {
+                log(message)
+            }
+            override fun onFinished(success: Boolean, message: String?) {
+                if (message != null) {
+                    log(message)
+                }
+                log("Finished")
+            }
+        })
     }
 
 
+    // Commands handled by the application rather than sent to the device
+    private fun localCommand(command: String) {
+        when (command.trim().toLowerCase()) {
+            "!metrics" -> for (line in metrics.toString().lines()) {
+                if (line.isNotEmpty()) log(line)
+            }
+            "!reset" -> {
+                metrics.reset()
+                log("Metrics reset.")
+            }
+            else -> log("ERROR: Unknown local command: $command")
+        }
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
@@ -185,11 +284,20 @@ class MainActivity : AppCompatActivity() {
             log("WARNING: This system is not a USB host")
 
         permissionIntent = PendingIntent.getBroadcast(this, 0, Intent(ACTION_USB_PERMISSION), 0)
+        usbManager = getSystemService(Context.USB_SERVICE) as UsbManager
+        registry = AxDeviceRegistry(usbManager)
+        registry.setMetrics(metrics)
+        registry.setProfiles(AxDeviceProfiles(File(filesDir, PROFILES_FILE)))
+        pipeline = AxSessionPipeline(usbManager, 4)
+        pipeline.setMetrics(metrics)
+        pipeline.setRegistry(registry)
+        provisioner.setMetrics(metrics)
+
         val filter = IntentFilter(ACTION_USB_PERMISSION)
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED)
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED)
         registerReceiver(usbReceiver, filter)
 
-        usbManager = getSystemService(Context.USB_SERVICE) as UsbManager
-
         editTextInput.setOnEditorActionListener { _, actionId, _ ->
             return@setOnEditorActionListener when (actionId) {
                 EditorInfo.IME_ACTION_SEND -> {
@@ -201,22 +309,44 @@ class MainActivity : AppCompatActivity() {
         }
 
         buttonSend.setOnClickListener {
-            var usbDevices = UsbSerialPort.getDevices(usbManager);
+            val input = editTextInput.text.toString()
+            if (input.startsWith("!")) {
+                localCommand(input)
+                return@setOnClickListener
+            }
+            val usbDevices = registry.devices
             // Find device from attached devices
             log("(${usbDevices.size} devices)")
-            if (usbDevices.isNotEmpty()) {
-                var usbDevice = usbDevices[0];
+            if (usbDevices.size > 1 && editTextInput.text.isEmpty()) {
+                provision(usbDevices.asList())
+            } else if (usbDevices.isNotEmpty()) {
+                val usbDevice = usbDevices[0]
                 // log("DEVICE: ${usbDevice.manufacturerName} // ${usbDevice.productName} // ${usbDevice.serialNumber}")
-                if (!usbManager.hasPermission(usbDevice)) {
+                if (usbManager.hasPermission(usbDevice)) {
+                    connect(usbDevice)
+                } else {
                     log("DEVICE: Requesting permission...")
+                    usbManager.requestPermission(usbDevice, permissionIntent)
                 }
-                // request anyway so the code path is the same
-                usbManager.requestPermission(usbDevice, permissionIntent)
             } else {
                 log("DEVICE: No devices.")
             }
             log("---")
         }
+
+        // Long-press to cancel any device sessions in progress
+        buttonSend.setOnLongClickListener {
+            log("CANCELLING...")
+            pipeline.cancelAll()
+            true
+        }
     }
-}
 
+    override fun onDestroy() {
+        unregisterReceiver(usbReceiver)
+        pipeline.shutdown()
+        provisioner.shutdown(0)
+        registry.closeAll()
+        super.onDestroy()
+    }
+}
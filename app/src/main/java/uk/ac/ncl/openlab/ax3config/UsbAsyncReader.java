@@ -0,0 +1,219 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Asynchronous (queued UsbRequest) reader for Open Movement AX3 Device
+
+package uk.ac.ncl.openlab.ax3config;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class UsbAsyncReader {
+
+    // Device connection
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+
+    // Outstanding transfers, each of the endpoint's maximum packet size (or a given multiple of it)
+    private final int outstanding;
+    private final int transferSize;
+    private UsbRequest[] requests;
+
+    // Completed buffers (reader thread to consumer), and buffers available for re-queueing (consumer to reader thread)
+    private final ConcurrentLinkedQueue<ByteBuffer> completed = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private ByteBuffer current = null;
+
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private volatile Thread waiter = null;
+    private volatile IOException error = null;
+
+    public UsbAsyncReader(UsbDeviceConnection connection, UsbEndpoint endpoint, int outstanding) {
+        this(connection, endpoint, outstanding, endpoint.getMaxPacketSize());
+    }
+
+    public UsbAsyncReader(UsbDeviceConnection connection, UsbEndpoint endpoint, int outstanding, int transferSize) {
+        this.connection = connection;
+        this.endpoint = endpoint;
+        this.outstanding = outstanding;
+        this.transferSize = Math.max(transferSize, 1);
+    }
+
+    private ByteBuffer obtainBuffer() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(transferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // Only UsbRequest.queue(ByteBuffer) (API 26+) sets the buffer position to the length received; the older queue(ByteBuffer, int) leaves it unchanged on some releases
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    private boolean queue(UsbRequest request) {
+        ByteBuffer buffer = obtainBuffer();
+        buffer.limit(transferSize);
+        request.setClientData(buffer);
+        return request.queue(buffer);
+    }
+
+    // Queue the transfers and start the reader thread
+    public synchronized void start() throws IOException {
+        if (running) return;
+        if (!isSupported()) {
+            throw new IOException("Asynchronous reads require Android 8.0 (API 26).");
+        }
+        requests = new UsbRequest[outstanding];
+        for (int i = 0; i < outstanding; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, endpoint)) {
+                throw new IOException("Problem initializing request.");
+            }
+            requests[i] = request;
+        }
+        running = true;
+        for (UsbRequest request : requests) {
+            if (!queue(request)) {
+                stop();
+                throw new IOException("Problem queueing request.");
+            }
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "UsbAsyncReader");
+        thread.start();
+    }
+
+    // Reader thread: hand each completed transfer to the consumer and immediately re-queue the request
+    private void readLoop() {
+        while (running) {
+            UsbRequest request = connection.requestWait();
+            if (request == null) {
+                if (running) error = new IOException("Problem waiting for request.");
+                break;
+            }
+            if (!running) break;
+            ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            if (buffer != null) {
+                buffer.flip();      // position was set to the number of bytes read (by queue(ByteBuffer))
+                if (buffer.hasRemaining()) {
+                    completed.offer(buffer);
+                    Thread w = waiter;
+                    if (w != null) LockSupport.unpark(w);
+                } else {
+                    free.offer(buffer);
+                }
+            }
+            if (!queue(request)) {
+                error = new IOException("Problem re-queueing request.");
+                break;
+            }
+        }
+        Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+    }
+
+    // Cancel outstanding transfers and stop the reader thread
+    public synchronized void stop() {
+        running = false;
+        if (requests != null) {
+            for (UsbRequest request : requests) {
+                if (request != null) request.cancel();
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        if (requests != null) {
+            for (UsbRequest request : requests) {
+                if (request != null) request.close();
+            }
+            requests = null;
+        }
+        completed.clear();
+        current = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Next completed buffer, waiting until the deadline
+    private ByteBuffer next(long deadline) throws IOException {
+        for (;;) {
+            ByteBuffer buffer = completed.poll();
+            if (buffer != null) return buffer;
+            if (error != null) throw error;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) return null;
+            waiter = Thread.currentThread();
+            if (completed.isEmpty() && running) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waiter = null;
+        }
+    }
+
+    // Read bytes (same semantics as a synchronous read: until full, or the first non-empty transfer if single, or timeout)
+    public int read(byte[] buffer, int timeoutMS, boolean single) throws IOException {
+        long deadline = System.nanoTime() + timeoutMS * 1000000L;
+        int offset = 0;
+        while (offset < buffer.length) {
+            if (current == null) {
+                current = next(deadline);
+                if (current == null) break;     // time-out
+            }
+            int count = Math.min(buffer.length - offset, current.remaining());
+            current.get(buffer, offset, count);
+            offset += count;
+            if (!current.hasRemaining()) {
+                free.offer(current);
+                current = null;
+                if (single) break;
+            }
+        }
+        return offset;
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// USB Mass Storage (bulk-only transport, SCSI) block device of an Open Movement AX3 Device, read directly without mounting
+
+package uk.ac.ncl.openlab.ax3config;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// UsbSerialPort claims only the CDC (or generic) interfaces, so this can claim the mass storage interface of the same (composite) device.
+// Each READ(10) command transfers up to 64 kB, with its data phase in 16 kB bulk transfers (the most that older versions
+// of Android transfer at once), and commands are issued back-to-back.
+public class UsbMassStorage implements BlockDevice {
+
+    private static final int SUBCLASS_SCSI = 0x06;
+    private static final int PROTOCOL_BULK_ONLY = 0x50;
+
+    private static final int CBW_SIGNATURE = 0x43425355;    // "USBC"
+    private static final int CSW_SIGNATURE = 0x53425355;    // "USBS"
+    private static final int CBW_SIZE = 31;
+    private static final int CSW_SIZE = 13;
+
+    private static final int MAX_TRANSFER_BLOCKS = 128;     // 64 kB per command
+    private static final int MAX_BULK_TRANSFER = 16384;
+    private static final int TIMEOUT_MS = 5000;
+    private static final int READY_ATTEMPTS = 10;
+
+    private final UsbDevice device;
+    private UsbDeviceConnection connection = null;
+    private UsbInterface usbInterface;
+    private UsbEndpoint endpointIn;
+    private UsbEndpoint endpointOut;
+
+    private final byte[] cbw = new byte[CBW_SIZE];
+    private final byte[] csw = new byte[CSW_SIZE];
+    private final ByteBuffer cbwBuffer = ByteBuffer.wrap(cbw).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer cswBuffer = ByteBuffer.wrap(csw).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] transferBuffer = null;
+    private int tag = 0;
+
+    private int blockSize = 512;
+    private long blockCount = 0;
+
+    public UsbMassStorage(UsbDevice device) {
+        this.device = device;
+    }
+
+    // Claim the mass storage interface, wait for the medium, and read its capacity
+    public void open(UsbManager usbManager) throws IOException {
+        close();
+        UsbDeviceConnection connection = usbManager.openDevice(device);
+        if (connection == null) {
+            throw new IOException("Problem opening device.");
+        }
+        try {
+            for (int i = 0; i < device.getInterfaceCount() && usbInterface == null; i++) {
+                UsbInterface candidate = device.getInterface(i);
+                if (candidate.getInterfaceClass() == UsbConstants.USB_CLASS_MASS_STORAGE
+                        && candidate.getInterfaceSubclass() == SUBCLASS_SCSI && candidate.getInterfaceProtocol() == PROTOCOL_BULK_ONLY) {
+                    usbInterface = candidate;
+                }
+            }
+            if (usbInterface == null) {
+                throw new IOException("Could not find mass storage interface.");
+            }
+            for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+                UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+                if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) continue;
+                if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                    endpointIn = endpoint;
+                } else {
+                    endpointOut = endpoint;
+                }
+            }
+            if (endpointIn == null || endpointOut == null) {
+                throw new IOException("Could not find mass storage endpoints.");
+            }
+            // (detaches any kernel driver)
+            if (!connection.claimInterface(usbInterface, true)) {
+                throw new IOException("Problem claiming mass storage interface.");
+            }
+            this.connection = connection;
+
+            // TEST UNIT READY (the medium may not be ready immediately after connection)
+            boolean ready = false;
+            for (int attempt = 0; attempt < READY_ATTEMPTS && !ready; attempt++) {
+                ready = command(new byte[] { 0x00, 0, 0, 0, 0, 0 }, null, 0, 0, false) == 0;
+                if (!ready) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+            }
+            if (!ready) {
+                throw new IOException("Medium not ready.");
+            }
+
+            // READ CAPACITY (10): last block address and block size (big-endian)
+            byte[] capacity = new byte[8];
+            if (command(new byte[] { 0x25, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, capacity, 0, capacity.length, true) != 0) {
+                throw new IOException("Problem reading capacity.");
+            }
+            ByteBuffer be = ByteBuffer.wrap(capacity);
+            blockCount = (be.getInt(0) & 0xffffffffL) + 1;
+            blockSize = be.getInt(4);
+            if (blockSize <= 0 || blockSize > 4096) {
+                throw new IOException("Invalid block size: " + blockSize);
+            }
+        } catch (IOException e) {
+            if (this.connection != null) {
+                close();
+            } else {
+                connection.close();
+            }
+            throw e;
+        }
+    }
+
+    public int getBlockSize() { return blockSize; }
+    public long getBlockCount() { return blockCount; }
+    public int getMaxTransferBlocks() { return MAX_TRANSFER_BLOCKS; }
+
+    // READ (10) commands of up to MAX_TRANSFER_BLOCKS each
+    public synchronized void read(long block, int count, byte[] buffer, int offset) throws IOException {
+        if (connection == null) {
+            throw new IOException("Not open.");
+        }
+        if (block < 0 || count < 0 || block + count > blockCount) {
+            throw new IOException("Read beyond the end of the device");
+        }
+        while (count > 0) {
+            int blocks = Math.min(count, MAX_TRANSFER_BLOCKS);
+            byte[] cdb = new byte[10];
+            cdb[0] = 0x28;
+            cdb[2] = (byte) (block >> 24);
+            cdb[3] = (byte) (block >> 16);
+            cdb[4] = (byte) (block >> 8);
+            cdb[5] = (byte) block;
+            cdb[7] = (byte) (blocks >> 8);
+            cdb[8] = (byte) blocks;
+            int status = command(cdb, buffer, offset, blocks * blockSize, true);
+            if (status != 0) {
+                throw new IOException("Read failed at block " + block + " (status " + status + ")");
+            }
+            block += blocks;
+            offset += blocks * blockSize;
+            count -= blocks;
+        }
+    }
+
+    // Send a command block wrapper, transfer any data, and return the status from the command status wrapper
+    private int command(byte[] cdb, byte[] data, int offset, int length, boolean in) throws IOException {
+        int commandTag = ++tag;
+        cbwBuffer.clear();
+        cbwBuffer.putInt(CBW_SIGNATURE);
+        cbwBuffer.putInt(commandTag);
+        cbwBuffer.putInt(length);
+        cbwBuffer.put((byte) (in ? 0x80 : 0x00));
+        cbwBuffer.put((byte) 0);                // LUN
+        cbwBuffer.put((byte) cdb.length);
+        cbwBuffer.put(cdb);
+        while (cbwBuffer.hasRemaining()) cbwBuffer.put((byte) 0);
+        if (connection.bulkTransfer(endpointOut, cbw, CBW_SIZE, TIMEOUT_MS) != CBW_SIZE) {
+            resetRecovery();
+            throw new IOException("Problem sending command.");
+        }
+
+        int transferred = 0;
+        while (transferred < length) {
+            int count = transfer(data, offset + transferred, Math.min(length - transferred, MAX_BULK_TRANSFER));
+            if (count < 0) {
+                // (a stalled data phase is followed by the status)
+                clearHalt(endpointIn);
+                break;
+            }
+            transferred += count;
+            if (count == 0) break;
+        }
+
+        int count = connection.bulkTransfer(endpointIn, csw, CSW_SIZE, TIMEOUT_MS);
+        if (count < 0) {
+            clearHalt(endpointIn);
+            count = connection.bulkTransfer(endpointIn, csw, CSW_SIZE, TIMEOUT_MS);
+        }
+        if (count != CSW_SIZE || cswBuffer.getInt(0) != CSW_SIGNATURE || cswBuffer.getInt(4) != commandTag) {
+            resetRecovery();
+            throw new IOException("Invalid command status.");
+        }
+        int status = csw[12] & 0xff;
+        if (status == 0 && transferred < length) {
+            throw new IOException("Short data transfer.");
+        }
+        return status;
+    }
+
+    // Bulk IN transfer into the buffer at the offset
+    private int transfer(byte[] data, int offset, int length) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return connection.bulkTransfer(endpointIn, data, offset, length, TIMEOUT_MS);
+        }
+        if (offset == 0) {
+            return connection.bulkTransfer(endpointIn, data, length, TIMEOUT_MS);
+        }
+        // UsbConnection.bulkTransfer() before JELLY_BEAN_MR2 does not support an offset, so use a local buffer
+        if (transferBuffer == null || transferBuffer.length < length) {
+            transferBuffer = new byte[length];
+        }
+        int count = connection.bulkTransfer(endpointIn, transferBuffer, length, TIMEOUT_MS);
+        if (count > 0) {
+            System.arraycopy(transferBuffer, 0, data, offset, count);
+        }
+        return count;
+    }
+
+    // CLEAR_FEATURE(ENDPOINT_HALT)
+    private void clearHalt(UsbEndpoint endpoint) {
+        connection.controlTransfer(0x02, 0x01, 0, endpoint.getAddress(), null, 0, TIMEOUT_MS);
+    }
+
+    // Bulk-only mass storage reset, then clear both endpoints
+    private void resetRecovery() {
+        connection.controlTransfer(0x21, 0xFF, 0, usbInterface.getId(), null, 0, TIMEOUT_MS);
+        clearHalt(endpointIn);
+        clearHalt(endpointOut);
+    }
+
+    public synchronized void close() {
+        if (connection != null) {
+            if (usbInterface != null) {
+                connection.releaseInterface(usbInterface);
+            }
+            connection.close();
+            connection = null;
+        }
+        usbInterface = null;
+        endpointIn = null;
+        endpointOut = null;
+    }
+
+    @Override
+    public String toString() {
+        return "UsbMassStorage " + device.getDeviceName();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// USB-attached Open Movement AX3 Device as a provisioning target
+
+package uk.ac.ncl.openlab.ax3config;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import java.io.IOException;
+
+public class UsbProvisionTarget implements AxProvisioner.Target {
+
+    private final UsbManager usbManager;
+    private final AxDeviceRegistry registry;
+    private final UsbDevice device;
+    private UsbSerialPort port = null;
+    private AxConfig config = null;
+    private AxDeviceRegistry.Connection connection = null;
+
+    public UsbProvisionTarget(UsbManager usbManager, UsbDevice device) {
+        this.usbManager = usbManager;
+        this.registry = null;
+        this.device = device;
+    }
+
+    // Use the registry's (pooled) connection to the device, which is kept open afterwards
+    public UsbProvisionTarget(AxDeviceRegistry registry, UsbDevice device) {
+        this.usbManager = null;
+        this.registry = registry;
+        this.device = device;
+    }
+
+    @Override
+    public AxTransport open() throws IOException {
+        if (registry != null) {
+            connection = registry.acquire(device);
+            port = connection.getPort();
+            config = connection.getConfig();
+        } else {
+            port = new UsbSerialPort(device);
+            port.open(usbManager);
+            config = new AxConfig(port);
+        }
+        return port;
+    }
+
+    @Override
+    public AxConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public int getSerialNumber() {
+        return port.getSerialNumber();
+    }
+
+    @Override
+    public void close(boolean failed) {
+        if (connection != null) {
+            // Keep the connection open for the next session, unless it may no longer be usable
+            if (failed) {
+                registry.invalidate(connection);
+            } else {
+                registry.release(connection);
+            }
+            connection = null;
+        } else if (port != null) {
+            port.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return port != null ? port.toString() : device.getDeviceName();
+    }
+
+}
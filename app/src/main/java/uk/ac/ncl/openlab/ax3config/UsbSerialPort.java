@@ -34,15 +34,13 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.os.Build;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
-public class UsbSerialPort {
+public class UsbSerialPort extends AbstractAxTransport {
 
     // 0x04D8 / 0x0057: Microchip USB Composite MSD+CDC Device
     private static final int PRODUCT_VID = 0x04D8;
@@ -59,8 +57,22 @@ public class UsbSerialPort {
     private UsbEndpoint endpointRead;
     private UsbEndpoint endpointWrite;
 
-    // Debug log
-    private StringBuilder debugLog = new StringBuilder();
+    // Whether the generic interface (of experimental firmware) is used rather than CDC, and the size of each read transfer
+    private static final int GENERIC_TRANSFER_PACKETS = 8;
+    private static final int MAX_TRANSFER = 16384;      // (the most that older versions of Android transfer at once)
+    private boolean preferGeneric = true;
+    private boolean generic = false;
+    private int transferSize = 64;
+
+    // Asynchronous reader (when enabled)
+    private UsbAsyncReader asyncReader = null;
+
+    // Cached interface/endpoint indices (when set)
+    private AxDeviceProfiles profiles = null;
+
+    // Debug log (most recent lines only, as the port may be kept for a long time)
+    private static final int DEBUG_LOG_LINES = 64;
+    private final AxLog debugLog = new AxLog(DEBUG_LOG_LINES);
     public String getDebugInfo() {
         return debugLog.toString();
     }
@@ -86,11 +98,27 @@ public class UsbSerialPort {
         this.device = device;
     }
 
+    // Use (and update) cached interface/endpoint indices when opening, to skip searching for them (null for none)
+    public void setProfiles(AxDeviceProfiles profiles) {
+        this.profiles = profiles;
+    }
+
+    // Whether to use the generic interface, if the device has one, before trying CDC (otherwise it is only used if CDC fails)
+    public void setPreferGeneric(boolean preferGeneric) {
+        this.preferGeneric = preferGeneric;
+    }
+
+    // Whether the open connection uses the generic interface
+    public boolean isGeneric() {
+        return generic;
+    }
+
     // Open a connection
     public void open(UsbManager usbManager) throws IOException {
         // Close any existing connection
         close();
-        debugLog.append("open()\n");
+        debugLog.add("open()");
+        long openStart = System.nanoTime();
 
         // Open a connection to the device
         UsbDeviceConnection connection = usbManager.openDevice(this.device);
@@ -98,85 +126,265 @@ public class UsbSerialPort {
             throw new IOException("Problem opening device.");
         }
 
-        // Find control and data interfaces
-        debugLog.append("interfaces (" + device.getInterfaceCount() + "):");
+        // Go straight to the previously found interfaces and endpoints, if they still match
+        int serialNumber = parseSerialNumber(connection.getSerial());
+        AxDeviceProfiles profiles = this.profiles;
+        if (profiles != null && serialNumber >= 0) {
+            AxDeviceProfiles.Endpoints endpoints = profiles.getEndpoints(serialNumber);
+            if (endpoints != null) {
+                if (openCached(connection, endpoints)) {
+                    debugLog.add("Done (cached profile)");
+                    this.connection = connection;
+                    if (metrics != null) metrics.recordOpen(System.nanoTime() - openStart);
+                    return;
+                }
+                debugLog.add("Cached profile does not match device");
+                profiles.setEndpoints(serialNumber, null);
+            }
+        }
+        interfaceControl = null;
+        interfaceData = null;
+        endpointControl = null;
+        endpointRead = null;
+        endpointWrite = null;
+        int controlIndex = -1, dataIndex = -1, genericIndex = -1;
+
+        // Find control and data interfaces (and any generic interface)
+        debugLog.add("interfaces (" + device.getInterfaceCount() + "):");
         for (int i = 0; i < device.getInterfaceCount(); i++) {
             UsbInterface usbInterface = device.getInterface(i);
             if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_COMM) {  // 0x02
-                interfaceControl = usbInterface;
-                debugLog.append("..." + i + " as CDC Control interface\n");
+                controlIndex = i;
+                debugLog.add("..." + i + " as CDC Control interface");
             }
             else if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_CDC_DATA) {  // 0x0a
-                interfaceData = usbInterface;
-                debugLog.append("..." + i + " as CDC Data interface\n");
+                dataIndex = i;
+                debugLog.add("..." + i + " as CDC Data interface");
+            }
+            else if (usbInterface.getInterfaceClass() == UsbConstants.USB_CLASS_VENDOR_SPEC && genericIndex < 0) {  // 0xff
+                genericIndex = i;
+                debugLog.add("..." + i + " as generic interface");
             } else {
-                debugLog.append("..." + i + " is unknown interface " + usbInterface.getInterfaceClass() + "\n");
+                debugLog.add("..." + i + " is unknown interface " + usbInterface.getInterfaceClass());
             }
         }
-        if (interfaceControl == null) {
-            debugLog.append("Error: CDC Control interface not found\n");
+
+        // Use the generic interface if preferred, otherwise CDC, then fall back to the other
+        AxDeviceProfiles.Endpoints endpoints = null;
+        if (genericIndex >= 0 && preferGeneric) {
+            endpoints = openGeneric(connection, genericIndex, -1, -1);
+        }
+        if (endpoints == null) {
+            try {
+                endpoints = openCdc(connection, controlIndex, dataIndex);
+            } catch (IOException e) {
+                if (genericIndex >= 0 && !preferGeneric) {
+                    debugLog.add("CDC failed (" + e.getMessage() + "), trying generic interface");
+                    endpoints = openGeneric(connection, genericIndex, -1, -1);
+                }
+                if (endpoints == null) {
+                    throw e;
+                }
+            }
+        }
+
+        debugLog.add("Done" + (generic ? " (generic interface)" : ""));
+        this.connection = connection;
+        if (metrics != null) metrics.recordOpen(System.nanoTime() - openStart);
+
+        if (profiles != null && serialNumber >= 0) {
+            profiles.setEndpoints(serialNumber, endpoints);
+            try {
+                profiles.save();
+            } catch (IOException e) {
+                debugLog.add("Problem saving profile: " + e.getMessage());
+            }
+        }
+    }
+
+    // Claim the CDC interfaces and find their endpoints, returning their indices
+    private AxDeviceProfiles.Endpoints openCdc(UsbDeviceConnection connection, int controlIndex, int dataIndex) throws IOException {
+        int controlEndpointIndex = -1, readIndex = -1, writeIndex = -1;
+        if (controlIndex < 0) {
+            debugLog.add("Error: CDC Control interface not found");
             throw new IOException("Could not find control interfaces.");
         }
-        if (interfaceData == null) {
+        UsbInterface interfaceControl = device.getInterface(controlIndex);
+        UsbInterface interfaceData;
+        if (dataIndex < 0) {
             // Could be older firmware with incorrect USB CDC descriptors
-            debugLog.append("Note: CDC Data interface not found, will inspect CDC Control interface\n");
+            debugLog.add("Note: CDC Data interface not found, will inspect CDC Control interface");
             interfaceData = interfaceControl;
+        } else {
+            interfaceData = device.getInterface(dataIndex);
         }
 
         // Claim control interface (although it is not used unless on older firmware)
-        debugLog.append("Claim control interface...\n");
+        debugLog.add("Claim control interface...");
         if (!connection.claimInterface(interfaceControl, true)) {
             throw new IOException("Problem claiming control interface.");
         }
         // Find control endpoint
-        debugLog.append("Find control endpoint...\n");
+        debugLog.add("Find control endpoint...");
+        UsbEndpoint endpointControl = null;
         for (int i = 0; i < interfaceControl.getEndpointCount(); i++) {
             UsbEndpoint endpoint = interfaceControl.getEndpoint(i);
             if (endpoint.getDirection() == UsbConstants.USB_DIR_IN && endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_INT) {
                 endpointControl = endpoint;
+                controlEndpointIndex = i;
                 break;
             }
         }
         if (endpointControl == null) {
+            connection.releaseInterface(interfaceControl);
             throw new IOException("Could not find control endpoint.");
         }
 
         // Claim data interface
-        debugLog.append("Claim data interface...\n");
+        debugLog.add("Claim data interface...");
         if (interfaceData != interfaceControl && !connection.claimInterface(interfaceData, true)) {
+            connection.releaseInterface(interfaceControl);
             throw new IOException("Problem claiming data interface.");
         }
         // Find read/write endpoints
-        debugLog.append("Find data endpoints...\n");
+        debugLog.add("Find data endpoints...");
+        UsbEndpoint endpointRead = null, endpointWrite = null;
         for (int i = 0; i < interfaceData.getEndpointCount(); i++) {
             UsbEndpoint endpoint = interfaceData.getEndpoint(i);
             // For older firmware, don't consider control endpoint
             if (interfaceData == interfaceControl && endpointControl == endpoint) {
-                debugLog.append("...not considering control endpoint for data\n");
+                debugLog.add("...not considering control endpoint for data");
                 continue;
             } else if (endpoint.getDirection() == UsbConstants.USB_DIR_IN && endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-                debugLog.append("...found read data endpoint\n");
+                debugLog.add("...found read data endpoint");
                 endpointRead = endpoint;
+                readIndex = i;
             } else if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT && endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-                debugLog.append("...found write data endpoint\n");
+                debugLog.add("...found write data endpoint");
                 endpointWrite = endpoint;
+                writeIndex = i;
             } else {
-                debugLog.append("...found additional endpoint (ignored)\n");
+                debugLog.add("...found additional endpoint (ignored)");
             }
         }
         if (endpointRead == null || endpointWrite == null) {
+            if (interfaceData != interfaceControl) connection.releaseInterface(interfaceData);
+            connection.releaseInterface(interfaceControl);
             throw new IOException("Could not find read/write data endpoints.");
         }
 
-        debugLog.append("Done\n");
-        this.connection = connection;
+        useInterfaces(interfaceControl, interfaceData, endpointControl, endpointRead, endpointWrite, false);
+        return new AxDeviceProfiles.Endpoints(controlIndex, interfaceData == interfaceControl ? -1 : dataIndex, controlEndpointIndex, readIndex, writeIndex);
+    }
+
+    // Claim the generic (vendor-specific class) interface, using its bulk endpoints at the given indices (or the first found, if -1), returns null (with nothing claimed) if it cannot be used
+    private AxDeviceProfiles.Endpoints openGeneric(UsbDeviceConnection connection, int genericIndex, int readIndex, int writeIndex) {
+        UsbInterface usbInterface = device.getInterface(genericIndex);
+        if (usbInterface.getInterfaceClass() != UsbConstants.USB_CLASS_VENDOR_SPEC) {
+            return null;
+        }
+        for (int i = 0; i < usbInterface.getEndpointCount() && (readIndex < 0 || writeIndex < 0); i++) {
+            UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+            if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) continue;
+            if (endpoint.getDirection() == UsbConstants.USB_DIR_IN && readIndex < 0) readIndex = i;
+            else if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT && writeIndex < 0) writeIndex = i;
+        }
+        UsbEndpoint read = endpoint(usbInterface, readIndex, UsbConstants.USB_DIR_IN, UsbConstants.USB_ENDPOINT_XFER_BULK);
+        UsbEndpoint write = endpoint(usbInterface, writeIndex, UsbConstants.USB_DIR_OUT, UsbConstants.USB_ENDPOINT_XFER_BULK);
+        if (read == null || write == null) {
+            debugLog.add("Generic interface does not have bulk read/write endpoints");
+            return null;
+        }
+        debugLog.add("Claim generic interface...");
+        if (!connection.claimInterface(usbInterface, true)) {
+            debugLog.add("Problem claiming generic interface");
+            return null;
+        }
+        useInterfaces(null, usbInterface, null, read, write, true);
+        return new AxDeviceProfiles.Endpoints(-1, genericIndex, -1, readIndex, writeIndex);
+    }
+
+    // Use the claimed interfaces and endpoints; transfers on the generic interface span several packets, as there is no serial driver's framing to match
+    private void useInterfaces(UsbInterface control, UsbInterface data, UsbEndpoint controlEndpoint, UsbEndpoint read, UsbEndpoint write, boolean generic) {
+        interfaceControl = control;
+        interfaceData = data;
+        endpointControl = controlEndpoint;
+        endpointRead = read;
+        endpointWrite = write;
+        this.generic = generic;
+        int packetSize = Math.max(read.getMaxPacketSize(), 1);
+        transferSize = generic ? Math.min(packetSize * GENERIC_TRANSFER_PACKETS, MAX_TRANSFER) : packetSize;
+        setReadSize(transferSize);
+    }
+
+    // Claim the interfaces and use the endpoints at the cached indices, returns false (with nothing claimed) if they do not match the device
+    private boolean openCached(UsbDeviceConnection connection, AxDeviceProfiles.Endpoints endpoints) {
+        int count = device.getInterfaceCount();
+        if (endpoints.isGeneric()) {
+            return endpoints.getDataInterface() < count && openGeneric(connection, endpoints.getDataInterface(), endpoints.getReadEndpoint(), endpoints.getWriteEndpoint()) != null;
+        }
+        if (endpoints.getControlInterface() < 0 || endpoints.getControlInterface() >= count || endpoints.getDataInterface() >= count) {
+            return false;
+        }
+        UsbInterface control = device.getInterface(endpoints.getControlInterface());
+        UsbInterface data = endpoints.isMissingDataInterface() ? control : device.getInterface(endpoints.getDataInterface());
+        if (control.getInterfaceClass() != UsbConstants.USB_CLASS_COMM || (data != control && data.getInterfaceClass() != UsbConstants.USB_CLASS_CDC_DATA)) {
+            return false;
+        }
+        UsbEndpoint controlEndpoint = endpoint(control, endpoints.getControlEndpoint(), UsbConstants.USB_DIR_IN, UsbConstants.USB_ENDPOINT_XFER_INT);
+        UsbEndpoint read = endpoint(data, endpoints.getReadEndpoint(), UsbConstants.USB_DIR_IN, UsbConstants.USB_ENDPOINT_XFER_BULK);
+        UsbEndpoint write = endpoint(data, endpoints.getWriteEndpoint(), UsbConstants.USB_DIR_OUT, UsbConstants.USB_ENDPOINT_XFER_BULK);
+        if (controlEndpoint == null || read == null || write == null) {
+            return false;
+        }
+        if (!connection.claimInterface(control, true)) {
+            return false;
+        }
+        if (data != control && !connection.claimInterface(data, true)) {
+            connection.releaseInterface(control);
+            return false;
+        }
+        useInterfaces(control, data, controlEndpoint, read, write, false);
+        return true;
+    }
+
+    // Endpoint at an index, if it has the expected direction and type
+    private static UsbEndpoint endpoint(UsbInterface usbInterface, int index, int direction, int type) {
+        if (index < 0 || index >= usbInterface.getEndpointCount()) return null;
+        UsbEndpoint endpoint = usbInterface.getEndpoint(index);
+        return endpoint.getDirection() == direction && endpoint.getType() == type ? endpoint : null;
+    }
+
+    // Start asynchronous reads, keeping a number of transfers queued (requires an open connection); returns false, with reads remaining synchronous, before Android 8.0
+    public boolean startAsyncRead(int outstanding) throws IOException {
+        if (connection == null) {
+            throw new IOException("Not open.");
+        }
+        if (!UsbAsyncReader.isSupported()) {
+            debugLog.add("Async reads not supported, reads remain synchronous");
+            return false;
+        }
+        stopAsyncRead();
+        UsbAsyncReader reader = new UsbAsyncReader(connection, endpointRead, outstanding, transferSize);
+        reader.start();
+        asyncReader = reader;
+        return true;
+    }
+
+    // Stop asynchronous reads (return to synchronous transfers)
+    public void stopAsyncRead() {
+        if (asyncReader != null) {
+            asyncReader.stop();
+            asyncReader = null;
+        }
     }
 
     // Close the connection
-    public void close() {
+    public synchronized void close() {
+        stopAsyncRead();
         if (this.connection != null) {
             if (endpointWrite != null || endpointRead != null) {
-                if  (interfaceData != interfaceControl) {
+                if  (interfaceData != interfaceControl && interfaceData != null) {
                     connection.releaseInterface(interfaceData);
                 }
                 endpointWrite = null;
@@ -189,6 +397,7 @@ public class UsbSerialPort {
             this.connection.close();
             this.connection = null;
         }
+        generic = false;
     }
 
     @Override
@@ -198,24 +407,20 @@ public class UsbSerialPort {
 
     // USB device serial number
     public int getSerialNumber() {
-        String serial = connection.getSerial().trim();
-        if (!serial.startsWith("AX") && !serial.startsWith("CWA"))
-            return -1;
-        for (int i = serial.length() - 1; ; i--) {
-            if (i < 0 || !Character.isDigit(serial.charAt(i))) {
-                if (i + 1 >= serial.length()) {
-                    return -1;
-                }
-                return Integer.parseInt(serial.substring(i + 1));
-            }
-        }
+        return parseSerialNumber(connection.getSerial());
     }
 
     // Read bytes
-    public int read(byte[] buffer, int timeoutMS) {
-        return read(buffer, timeoutMS, false);
-    }
     public int read(byte[] buffer, int timeoutMS, boolean single) {
+        if (asyncReader != null) {
+            try {
+                return asyncReader.read(buffer, timeoutMS, single);
+            } catch (IOException e) {
+                // (rather than appearing as a quiet device, continue with synchronous reads)
+                debugLog.add("Async read error, reverting to synchronous reads: " + e.getMessage());
+                stopAsyncRead();
+            }
+        }
         // UsbConnection.bulkTransfer() before JELLY_BEAN_MR2 does not support an offset, so use a local buffer
         byte[] readBuffer = null;
         int offset = 0;
@@ -243,65 +448,28 @@ public class UsbSerialPort {
     }
 
     // Write bytes
-    public int write(byte[] buffer, int timeoutMS) {
-        // UsbConnection.bulkTransfer() before JELLY_BEAN_MR2 does not support an offset, so use a local buffer
-        byte[] writeBuffer = null;
-        int offset = 0;
-        while (offset < buffer.length) {
-            int toWrite = buffer.length - offset;
+    private byte[] writeBuffer = null;
+    public int write(byte[] buffer, int offset, int length, int timeoutMS) {
+        int written = 0;
+        while (written < length) {
+            int toWrite = length - written;
             int numWritten;
-            if (offset == 0) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                numWritten = connection.bulkTransfer(endpointWrite, buffer, offset + written, toWrite, timeoutMS);
+            } else if (offset + written == 0) {
                 numWritten = connection.bulkTransfer(endpointWrite, buffer, toWrite, timeoutMS);
             } else {
+                // UsbConnection.bulkTransfer() before JELLY_BEAN_MR2 does not support an offset, so use a local buffer
                 if (writeBuffer == null || writeBuffer.length < toWrite) {
                     writeBuffer = new byte[toWrite];
                 }
-                System.arraycopy(buffer, offset, writeBuffer, 0, toWrite);
+                System.arraycopy(buffer, offset + written, writeBuffer, 0, toWrite);
                 numWritten = connection.bulkTransfer(endpointWrite, writeBuffer, toWrite, timeoutMS);
             }
             if (numWritten <= 0) { break; }
-            offset += numWritten;
-        }
-        return offset;
-    }
-
-    // Read line, up to one beginning with a final prefix, or timeouts
-    StringBuilder sb = new StringBuilder();
-    public String[] readLines(int initialTimeoutMs, int continuationTimeoutMs, String finalPrefix) {
-        boolean endNow = false;
-        boolean probableEnd = false;
-        byte[] buffer = new byte[64];
-        List<String> lines = new ArrayList<String>();
-        for (;;) {
-            if (endNow) break;
-            int count = read(buffer, probableEnd ? continuationTimeoutMs : initialTimeoutMs, true); // blocking wait for next read (or timeout)
-            // parse as characters, line-by-line
-            for (int i = 0; i < count; i++) {
-                char c = (char) buffer[i];
-                if (c == '\n') {
-                    if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '\r') {
-                        sb.deleteCharAt(sb.length() - 1);
-                    }
-                    String newLine = sb.toString();
-                    lines.add(newLine);
-                    sb.delete(0, sb.length());
-                    if (finalPrefix != null && newLine.startsWith(finalPrefix)) {
-                        endNow = true;  // but continue processing bytes
-                    }
-                } else {
-                    sb.append(c);
-                }
-            }
-            // if last read was partial...
-            if (count < buffer.length) {
-                if (count == 0 || probableEnd) break;
-
-                // if was also at the end of a string, probably the end
-                if (sb.length() == 0) probableEnd = true;
-                else probableEnd = false;
-            }
+            written += numWritten;
         }
-        return lines.toArray(new String[0]);
+        return written;
     }
 
 /*
@@ -318,13 +486,6 @@ public class UsbSerialPort {
     }
 */
 
-    // Write string
-    public boolean writeString(String str, int timeoutMS) {
-        byte[] outBuffer = str.getBytes(Charset.forName("UTF-8"));
-        int numBytesWritten = write(outBuffer, timeoutMS);
-        return numBytesWritten == outBuffer.length;
-    }
-
     @Override
     public String toString() {
         return "UsbSerialPort " + device.getDeviceName() + " " + device.getDeviceId();
@@ -0,0 +1,114 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Latency-compensated clock setting, against the simulator with injected link latency
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AxClockSyncTest {
+
+    // (the simulated clock is kept to the millisecond, so the bounds are checked to within that)
+    private static final double RESOLUTION_MS = 1;
+
+    private static AxClockSync.Result sync(long readMicros, long writeMicros, long jitterMicros) throws IOException {
+        AxSimulator simulator = new AxSimulator(1);
+        simulator.setLatency(readMicros, jitterMicros);
+        simulator.setWriteLatency(writeMicros);
+        simulator.setDeviceTimeOffsetMs(-98765);
+        AxConfig config = new AxConfig(simulator);
+        AxClockSync.Result result = config.syncTime(5);
+        long actual = simulator.getDeviceTimeOffsetMs();
+        assertEquals(0, result.getTime().getTime() % 1000);
+        assertTrue(result + ", actual " + actual, actual >= result.getMinOffsetMs() - RESOLUTION_MS);
+        assertTrue(result + ", actual " + actual, actual <= result.getMaxOffsetMs() + RESOLUTION_MS);
+        assertTrue(result.getOffsetMs() >= result.getMinOffsetMs() && result.getOffsetMs() <= result.getMaxOffsetMs());
+        return result;
+    }
+
+    @Test
+    public void setsClockWithoutLatency() throws IOException {
+        AxClockSync.Result result = sync(0, 0, 0);
+        assertTrue(result.toString(), result.getUncertaintyMs() < 5);
+    }
+
+    @Test
+    public void compensatesSymmetricLatency() throws IOException {
+        AxClockSync.Result result = sync(10000, 10000, 0);
+        assertEquals(20, result.getRoundTripMs(), 5);
+        assertTrue(result.toString(), Math.abs(result.getOffsetMs()) < 5);
+        assertTrue(result.toString(), result.getUncertaintyMs() <= result.getRoundTripMs() / 2 + 5);
+    }
+
+    @Test
+    public void boundsAsymmetricLatency() throws IOException {
+        // (the split of the round-trip is unknown, so only the bounds hold)
+        sync(2000, 30000, 0);
+    }
+
+    @Test
+    public void boundsJitteryLatency() throws IOException {
+        sync(8000, 8000, 3000);
+    }
+
+    @Test
+    public void syncsWhenConfiguring() throws IOException {
+        AxSimulator simulator = new AxSimulator(2);
+        simulator.setLatency(5000, 0);
+        simulator.setWriteLatency(5000);
+        simulator.setDeviceTimeOffsetMs(12345);
+        AxConfig config = new AxConfig(simulator);
+        AxConfiguration configuration = new AxConfiguration();
+        configuration.setSessionId(42);
+        configuration.setSyncTime(true);
+        assertTrue(config.configure(configuration).isSuccess());
+        AxClockSync.Result result = config.getClockSync();
+        assertNotNull(result);
+        assertTrue(Math.abs(simulator.getDeviceTimeOffsetMs()) <= 10);
+    }
+
+    @Test
+    public void configuringWithoutSyncClearsLastSync() throws IOException {
+        AxSimulator simulator = new AxSimulator(3);
+        AxConfig config = new AxConfig(simulator);
+        AxConfiguration configuration = new AxConfiguration();
+        configuration.setSessionId(1);
+        configuration.setSyncTime(true);
+        assertTrue(config.configure(configuration).isSuccess());
+        assertNotNull(config.getClockSync());
+        configuration.setSyncTime(false);
+        assertTrue(config.configure(configuration).isSuccess());
+        assertNull(config.getClockSync());
+    }
+
+}
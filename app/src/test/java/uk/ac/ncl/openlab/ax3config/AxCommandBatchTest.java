@@ -0,0 +1,150 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Matching of pipelined command responses
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AxCommandBatchTest {
+
+    private static AxCommandBatch batch() {
+        AxCommandBatch batch = new AxCommandBatch();
+        batch.add("SESSION 42", "SESSION=42");
+        batch.add("RATE 100,8", "RATE=");
+        batch.add("LED 5", "LED=5");
+        return batch;
+    }
+
+    @Test
+    public void requestHasEachCommandOnALine() {
+        assertEquals("SESSION 42\r\nRATE 100,8\r\nLED 5\r\n", batch().getRequest());
+    }
+
+    @Test
+    public void matchesResponsesInOrder() {
+        AxCommandBatch batch = batch();
+        assertEquals("SESSION=42", batch.getPendingPrefix());
+        assertTrue(batch.onLine("SESSION=42\r\n"));
+        assertTrue(batch.onLine("RATE=74,100"));
+        assertFalse(batch.isComplete());
+        assertTrue(batch.onLine("LED=5"));
+        assertTrue(batch.isComplete());
+        assertNull(batch.getPendingPrefix());
+        assertTrue(batch.isSuccess());
+        assertEquals(0, batch.getErrors().length);
+        assertEquals("RATE=74,100", batch.getResults()[1].getResponse());
+    }
+
+    @Test
+    public void skipsUnrelatedLines() {
+        AxCommandBatch batch = batch();
+        assertFalse(batch.onLine("AX3,90,17"));
+        assertFalse(batch.onLine(""));
+        assertTrue(batch.onLine("SESSION=42"));
+        assertEquals("RATE=", batch.getPendingPrefix());
+    }
+
+    @Test
+    public void unexpectedValueOrErrorCompletesTheCommandAsFailed() {
+        AxCommandBatch batch = batch();
+        assertTrue(batch.onLine("SESSION=7"));              // (same key, different value)
+        assertTrue(batch.onLine("ERROR: Invalid rate"));
+        assertTrue(batch.onLine("LED=5"));
+        assertTrue(batch.isComplete());
+        assertFalse(batch.isSuccess());
+        String[] errors = batch.getErrors();
+        assertEquals(2, errors.length);
+        assertTrue(errors[0].startsWith("SESSION 42 -- unexpected response: SESSION=7"));
+        assertTrue(errors[1].startsWith("RATE 100,8 -- unexpected response: ERROR"));
+    }
+
+    @Test
+    public void missingResponsesAreErrors() {
+        AxCommandBatch batch = batch();
+        batch.onLine("SESSION=42");
+        assertFalse(batch.isComplete());
+        assertFalse(batch.isSuccess());
+        assertEquals(2, batch.getErrors().length);
+        assertTrue(batch.getErrors()[0].contains("no response"));
+    }
+
+    @Test
+    public void linesAfterCompletionAreNotConsumed() {
+        AxCommandBatch batch = new AxCommandBatch();
+        batch.add("LED 1", "LED=1");
+        assertTrue(batch.onLine("LED=1"));
+        assertFalse(batch.onLine("LED=1"));
+    }
+
+    private static AxConfiguration configuration() {
+        AxConfiguration configuration = new AxConfiguration();
+        configuration.setSessionId(42);
+        configuration.setRate(100, 8);
+        configuration.setCommit(true, false);
+        configuration.setLed(5);
+        return configuration;
+    }
+
+    @Test
+    public void configuresInOneTransfer() throws IOException {
+        final int[] writes = { 0 };
+        AxSimulator simulator = new AxSimulator(1) {
+            @Override
+            public synchronized int write(byte[] buffer, int offset, int length, int timeoutMS) {
+                writes[0]++;
+                return super.write(buffer, offset, length, timeoutMS);
+            }
+        };
+        AxCommandBatch batch = new AxConfig(simulator).configure(configuration());
+        assertTrue(batch.isSuccess());
+        assertEquals(1, writes[0]);
+        assertEquals(4, simulator.getCommandCount());
+        assertEquals(42, simulator.getSessionId());
+        assertEquals(5, simulator.getLed());
+    }
+
+    @Test
+    public void configureReportsEachFailedCommand() throws IOException {
+        AxSimulator simulator = new AxSimulator(2);
+        simulator.setResponse("FORMAT QC", "ERROR: Not allowed");
+        AxCommandBatch batch = new AxConfig(simulator).configure(configuration());
+        assertTrue(batch.isComplete());
+        assertFalse(batch.isSuccess());
+        String[] errors = batch.getErrors();
+        assertEquals(1, errors.length);
+        assertTrue(errors[0], errors[0].startsWith("FORMAT QC"));
+        assertEquals(5, simulator.getLed());    // (later commands are still applied)
+    }
+
+}
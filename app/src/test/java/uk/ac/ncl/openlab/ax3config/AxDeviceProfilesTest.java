@@ -0,0 +1,109 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Device profiles cache, saved and reloaded
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AxDeviceProfilesTest {
+
+    private static final long MS = 1000000L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("profiles", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private AxDeviceProfiles reload(AxDeviceProfiles profiles) throws IOException {
+        profiles.save();
+        return new AxDeviceProfiles(file);
+    }
+
+    @Test
+    public void keepsEndpointsAndStatus() throws IOException {
+        AxDeviceProfiles profiles = new AxDeviceProfiles(file);
+        profiles.setEndpoints(12345, new AxDeviceProfiles.Endpoints(0, -1, 1, 2, 3));
+        DeviceStatus status = new DeviceStatus(42, new Date(1000000), new Date(2000000), 74, 100, 85, new Date(3000000), 4000000);
+        profiles.setLastStatus(12345, status);
+        profiles = reload(profiles);
+        AxDeviceProfiles.Endpoints endpoints = profiles.getEndpoints(12345);
+        assertTrue(endpoints.isMissingDataInterface());
+        assertEquals(3, endpoints.getWriteEndpoint());
+        DeviceStatus restored = profiles.getLastStatus(12345);
+        assertEquals(42, restored.getSessionId());
+        assertEquals(85, restored.getBattery());
+        assertEquals(3000000, restored.getDeviceTime().getTime());
+        assertNull(profiles.getEndpoints(99));
+        profiles.remove(12345);
+        assertNull(reload(profiles).getLastStatus(12345));
+    }
+
+    @Test
+    public void restoredTimingsNeedAFreshResponse() throws IOException {
+        AxResponseTimings learned = new AxResponseTimings();
+        for (int i = 0; i < 10; i++) {
+            learned.get("STATUS").record(10 * MS, 2 * MS);
+        }
+        assertTrue(learned.get("STATUS").getContinuationTimeoutMs(250) < 250);
+        AxDeviceProfiles profiles = new AxDeviceProfiles(file);
+        profiles.setTimings(12345, learned);
+        profiles = reload(profiles);
+
+        AxResponseTimings timings = new AxResponseTimings();
+        profiles.restoreTimings(12345, timings);
+        AxResponseTimings.Timing timing = timings.get("STATUS");
+        assertEquals(10, timing.getLatencyMs(), 0.001);
+        assertEquals(250, timing.getContinuationTimeoutMs(250));
+        timing.record(10 * MS, 2 * MS);
+        assertTrue(timing.getContinuationTimeoutMs(250) < 250);
+    }
+
+    @Test
+    public void unreadableFileIsEmpty() throws IOException {
+        AxDeviceProfiles profiles = new AxDeviceProfiles(new File(file.getPath() + ".missing"));
+        assertNull(profiles.getLastStatus(1));
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Byte-level line framing
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AxLineFramerTest {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static List<String> frame(AxLineFramer framer, String text) {
+        List<String> lines = new ArrayList<String>();
+        for (byte b : text.getBytes(LATIN1)) {
+            if (framer.add(b)) lines.add(framer.toString());
+        }
+        return lines;
+    }
+
+    @Test
+    public void splitsLinesOnLfAndCrLf() {
+        List<String> lines = frame(new AxLineFramer(), "BATTERY=4.12V,85%\r\nLED=5\n\r\n");
+        assertEquals(3, lines.size());
+        assertEquals("BATTERY=4.12V,85%", lines.get(0));
+        assertEquals("LED=5", lines.get(1));
+        assertEquals("", lines.get(2));
+    }
+
+    @Test
+    public void keepsPartialLinesBetweenChunks() {
+        AxLineFramer framer = new AxLineFramer();
+        assertTrue(frame(framer, "SESS").isEmpty());
+        assertTrue(framer.isPartial());
+        List<String> lines = frame(framer, "ION=42\r");
+        assertTrue(lines.isEmpty());
+        lines = frame(framer, "\nRA");
+        assertEquals(1, lines.size());
+        assertEquals("SESSION=42", lines.get(0));
+        assertTrue(framer.isPartial());
+        framer.clear();
+        assertFalse(framer.isPartial());
+    }
+
+    @Test
+    public void comparesPrefixWithoutDecoding() {
+        AxLineFramer framer = new AxLineFramer();
+        frame(framer, "$TIME=2018/01/02,03:04:05\n");
+        assertTrue(framer.startsWith("$TIME="));
+        assertFalse(framer.startsWith("TIME"));
+        assertFalse(framer.startsWith("$TIME=2018/01/02,03:04:05 and more"));
+        assertEquals(25, framer.getLength());
+    }
+
+    @Test
+    public void truncatesOverlongLines() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) sb.append('x');
+        List<String> lines = frame(new AxLineFramer(), sb.append("\nOK\n").toString());
+        assertEquals(2, lines.size());
+        assertEquals(4096, lines.get(0).length());
+        assertEquals("OK", lines.get(1));
+    }
+
+    @Test
+    public void comparesPrefixWithinABuffer() {
+        byte[] buffer = "xxRATE=74,100".getBytes(LATIN1);
+        assertTrue(AxLineFramer.startsWith(buffer, 2, buffer.length - 2, "RATE="));
+        assertFalse(AxLineFramer.startsWith(buffer, 0, buffer.length, "RATE="));
+        assertFalse(AxLineFramer.startsWith(buffer, 2, 4, "RATE="));       // (only the given length is compared)
+        byte[] accented = { 'C', (byte) 0xe9 };
+        assertTrue(AxLineFramer.startsWith(accented, 0, 2, "C\u00e9"));    // (bytes as ISO-8859-1 characters)
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Responses routed to the thread whose commands they answer, on a shared connection
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AxMultiplexerTest {
+
+    private AxSimulator simulator;
+    private AxMultiplexer multiplexer;
+
+    @Before
+    public void setUp() {
+        simulator = new AxSimulator(1);
+        simulator.setLatency(2000, 1000);
+        simulator.setFragmentation(7, true);
+        multiplexer = new AxMultiplexer(simulator);
+    }
+
+    @After
+    public void tearDown() {
+        multiplexer.close();
+    }
+
+    private String[] exchange(String command, String finalPrefix) {
+        multiplexer.writeString(command + "\r\n", 1000);
+        return multiplexer.readLines(1000, 200, finalPrefix);
+    }
+
+    private static String last(String[] lines) {
+        return lines.length > 0 ? lines[lines.length - 1] : null;
+    }
+
+    @Test
+    public void routesConcurrentExchanges() throws InterruptedException {
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        int value = id * 100 + i;
+                        String[] lines = exchange("LED " + value, "LED=");
+                        if (lines.length != 1 || !lines[0].equals("LED=" + value)) {
+                            errors.add("LED " + value + ": " + java.util.Arrays.toString(lines));
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join(30000);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, multiplexer.getUnsolicited());
+    }
+
+    @Test
+    public void abandonedExchangeDoesNotHoldUpOthers() throws InterruptedException {
+        // (a command written by another thread, whose response is never read)
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                multiplexer.writeString("SESSION 1\r\n", 1000);
+            }
+        });
+        writer.start();
+        writer.join();
+        long start = System.nanoTime();
+        String[] lines = exchange("LED 3", "LED=");
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals("LED=3", last(lines));
+        assertTrue(elapsedMs + " ms", elapsedMs < 2000);
+    }
+
+    @Test
+    public void unreadResponseIsNotReturnedForTheNextCommand() throws InterruptedException {
+        multiplexer.writeString("SESSION 1\r\n", 1000);
+        Thread.sleep(100);      // (received, but not read, before the next command)
+        String[] lines = exchange("SESSION 2", "SESSION=");
+        assertEquals("SESSION=2", last(lines));
+    }
+
+    @Test
+    public void rawReadsReturnLinesInPieces() {
+        multiplexer.writeString("SESSION 5\r\nLED 2\r\n", 1000);
+        StringBuilder text = new StringBuilder();
+        byte[] buffer = new byte[4];
+        int count;
+        while ((count = multiplexer.read(buffer, 200)) > 0) {
+            text.append(new String(buffer, 0, count));
+        }
+        assertEquals("SESSION=5\r\nLED=2\r\n", text.toString());
+    }
+
+    @Test
+    public void linesWithNoCommandAreUnsolicited() throws InterruptedException {
+        simulator.inject("Banner\r\n");
+        Thread.sleep(200);
+        assertEquals(1, multiplexer.getUnsolicited());
+        assertEquals(0, multiplexer.readLines(100, 100, null).length);     // (nothing written)
+    }
+
+}
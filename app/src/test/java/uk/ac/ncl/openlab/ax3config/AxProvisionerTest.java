@@ -0,0 +1,114 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Provisioning failures are reported, and the batch always finishes
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AxProvisionerTest {
+
+    // A device that fails while opening, or while closing
+    private static class FailingTarget implements AxProvisioner.Target {
+        final int serialNumber;
+        final RuntimeException onOpen;
+        final RuntimeException onClose;
+        volatile Boolean closedFailed = null;
+
+        FailingTarget(int serialNumber, RuntimeException onOpen, RuntimeException onClose) {
+            this.serialNumber = serialNumber;
+            this.onOpen = onOpen;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public AxTransport open() throws IOException {
+            if (onOpen != null) throw onOpen;
+            throw new IOException("no device");
+        }
+
+        @Override
+        public AxConfig getConfig() { return null; }
+
+        @Override
+        public int getSerialNumber() { return serialNumber; }
+
+        @Override
+        public void close(boolean failed) {
+            closedFailed = failed;
+            if (onClose != null) throw onClose;
+        }
+    }
+
+    private static final AxProvisioner.Configurator CONFIGURATOR = new AxProvisioner.Configurator() {
+        @Override
+        public AxConfiguration getConfiguration(int serialNumber) { return null; }
+    };
+
+    @Test
+    public void runtimeExceptionIsAFailedResult() {
+        FailingTarget target = new FailingTarget(12345, new IllegalStateException("bad reply"), null);
+        AxProvisioner.Result result = new AxProvisioner(1).provision(target, CONFIGURATOR);
+        assertEquals(AxProvisioner.Outcome.FAILED, result.getOutcome());
+        assertTrue(result.getMessage().contains("bad reply"));
+        assertEquals(Boolean.TRUE, target.closedFailed);
+    }
+
+    @Test
+    public void batchFinishesDespiteFailures() throws InterruptedException {
+        List<FailingTarget> targets = Arrays.asList(
+                new FailingTarget(1, null, null),
+                new FailingTarget(2, new IllegalStateException("open"), null),
+                new FailingTarget(3, null, new IllegalStateException("close")));
+        final List<AxProvisioner.Result> results = Collections.synchronizedList(new ArrayList<AxProvisioner.Result>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        AxProvisioner provisioner = new AxProvisioner(2);
+        provisioner.provision(targets, CONFIGURATOR, new AxProvisioner.Listener() {
+            @Override
+            public void onResult(AxProvisioner.Result result) { results.add(result); }
+            @Override
+            public void onFinished(int count) { finished.countDown(); }
+        });
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(3, results.size());
+        for (AxProvisioner.Result result : results) {
+            assertEquals(AxProvisioner.Outcome.FAILED, result.getOutcome());
+        }
+        provisioner.shutdown(1000);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Response line tokenizing and in-place number parsing
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AxResponseTest {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static AxResponse response(String line) {
+        AxResponse response = new AxResponse();
+        byte[] bytes = ("junk" + line).getBytes(LATIN1);
+        response.setLine(bytes, 4, bytes.length - 4);
+        return response;
+    }
+
+    @Test
+    public void tokenizesCommaSeparatedValues() {
+        AxResponse response = response("RATE=74,100");
+        response.tokenize(true);
+        assertEquals(3, response.getFieldCount());
+        assertTrue(response.fieldEquals(0, "RATE"));
+        assertEquals(74, response.getInt(1));
+        assertEquals(100, response.getInt(2));
+    }
+
+    @Test
+    public void tokenizesSingleValueWithSeparators() {
+        AxResponse response = response("  $TIME=2018/01/02,03:04:05\r ");
+        response.tokenize(false);
+        assertEquals(2, response.getFieldCount());
+        assertEquals("$TIME", response.getString(0));
+        assertEquals("2018/01/02,03:04:05", response.getString(1));
+    }
+
+    @Test
+    public void unseparatedLineIsOneField() {
+        AxResponse response = response("OK");
+        response.tokenize(true);
+        assertEquals(1, response.getFieldCount());
+        assertEquals("OK", response.getString(0));
+    }
+
+    @Test
+    public void parsesSignedNumbers() {
+        AxResponse response = response("OFFSET=-1234,+56,0");
+        response.tokenize(true);
+        assertEquals(-1234L, response.getLong(1));
+        assertEquals(56, response.getInt(2));
+        assertEquals(0, response.getInt(3));
+    }
+
+    @Test
+    public void rejectsInvalidNumbers() {
+        AxResponse response = response("X=12a,,99999999999");
+        response.tokenize(true);
+        try {
+            response.getInt(1);
+            fail();
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        try {
+            response.getInt(2);     // (empty)
+            fail();
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        try {
+            response.getInt(3);     // (out of range)
+            fail();
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        assertEquals(99999999999L, response.getLong(3));
+    }
+
+    @Test
+    public void clearsAndReusesTheBuffer() {
+        AxResponse response = response("LED=5");
+        assertTrue(response.startsWith("LED="));
+        response.clear();
+        assertTrue(response.isEmpty());
+        assertFalse(response.startsWith("LED="));
+        StringBuilder sb = new StringBuilder("DATA=");
+        for (int i = 0; i < 100; i++) sb.append(i).append(',');
+        byte[] bytes = sb.toString().getBytes(LATIN1);
+        response.setLine(bytes, 0, bytes.length);
+        response.tokenize(true);
+        assertEquals(101, response.getFieldCount());
+        assertEquals(99, response.getInt(100));
+    }
+
+    @Test
+    public void readsLastLineFromFragmentedTransport() {
+        AxSimulator simulator = new AxSimulator(1);
+        simulator.setFragmentation(3, true);
+        simulator.inject("Banner\r\n");
+        assertTrue(simulator.writeString("RATE 74\r\n", 100));
+        AxResponse response = new AxResponse();
+        assertTrue(simulator.readResponse(1000, 100, "RATE=", response));
+        assertTrue(response.startsWith("RATE="));
+        response.tokenize(true);
+        assertEquals(74, response.getInt(1));
+        assertEquals(100, response.getInt(2));
+    }
+
+}
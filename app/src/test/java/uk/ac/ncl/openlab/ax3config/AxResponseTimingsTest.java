@@ -0,0 +1,97 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Learned response timings
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AxResponseTimingsTest {
+
+    private static final long MS = 1000000L;
+
+    private static AxResponseTimings.Timing learned() {
+        AxResponseTimings.Timing timing = new AxResponseTimings.Timing();
+        for (int i = 0; i < 10; i++) {
+            timing.record(10 * MS, 2 * MS);
+        }
+        return timing;
+    }
+
+    @Test
+    public void usesMaximumsUntilLearned() {
+        AxResponseTimings.Timing timing = new AxResponseTimings.Timing();
+        timing.record(10 * MS, 2 * MS);
+        assertEquals(1000, timing.getInitialTimeoutMs(1000, false));
+        assertEquals(250, timing.getContinuationTimeoutMs(250));
+    }
+
+    @Test
+    public void shrinksQuietPeriod() {
+        AxResponseTimings.Timing timing = learned();
+        int continuation = timing.getContinuationTimeoutMs(250);
+        assertTrue(continuation >= 20 && continuation < 50);
+    }
+
+    @Test
+    public void keepsFullWaitWhenTheEndIsRecognised() {
+        AxResponseTimings.Timing timing = learned();
+        assertEquals(1000, timing.getInitialTimeoutMs(1000, true));
+        int initial = timing.getInitialTimeoutMs(1000, false);
+        assertTrue(initial >= 100 && initial < 1000);
+    }
+
+    @Test
+    public void backsOffAfterTimeoutUntilResponse() {
+        AxResponseTimings.Timing timing = learned();
+        timing.record(-1, 0);
+        assertEquals(1, timing.getTimeouts());
+        assertEquals(1000, timing.getInitialTimeoutMs(1000, false));
+        assertEquals(250, timing.getContinuationTimeoutMs(250));
+        timing.record(10 * MS, 2 * MS);
+        assertTrue(timing.getContinuationTimeoutMs(250) < 250);
+    }
+
+    @Test
+    public void gapEstimateRisesImmediately() {
+        AxResponseTimings.Timing timing = learned();
+        timing.record(10 * MS, 40 * MS);
+        assertEquals(40, timing.getGapMs(), 0.001);
+        assertEquals(165, timing.getContinuationTimeoutMs(250));
+    }
+
+    @Test
+    public void timingsArePerCommand() {
+        AxResponseTimings timings = new AxResponseTimings();
+        assertTrue(timings.get("FORMAT WC") == timings.get("FORMAT WC"));
+        assertTrue(timings.get("FORMAT WC") != timings.get("FORMAT QC"));
+        assertEquals(2, timings.getAll().size());
+    }
+
+}
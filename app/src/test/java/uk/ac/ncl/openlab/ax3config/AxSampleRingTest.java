@@ -0,0 +1,109 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Sample ring buffer: capacity, wrap-around, a full ring, and a concurrent producer and consumer
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AxSampleRingTest {
+
+    // Samples with consecutive values from the first
+    private static short[] samples(int count, int first) {
+        short[] samples = new short[count * 3];
+        for (int i = 0; i < samples.length; i++) samples[i] = (short)(first * 3 + i);
+        return samples;
+    }
+
+    @Test
+    public void capacityIsAPowerOfTwo() {
+        assertEquals(128, new AxSampleRing(100).getCapacity());
+        assertEquals(64, new AxSampleRing(64).getCapacity());
+        assertEquals(4, new AxSampleRing(3).getCapacity());
+    }
+
+    @Test
+    public void wrapsAround() {
+        AxSampleRing ring = new AxSampleRing(8);
+        short[] batch = new short[5 * 3];
+        for (int i = 0; i < 20; i++) {
+            assertEquals(5, ring.offer(samples(5, i * 5), 0, 5));
+            assertEquals(5, ring.size());
+            assertEquals(5, ring.poll(batch, 0, 8));
+            for (int j = 0; j < batch.length; j++) assertEquals((short)(i * 15 + j), batch[j]);
+        }
+        assertEquals(0, ring.poll(batch, 0, 5));
+    }
+
+    @Test
+    public void fullRingTakesOnlyWhatFits() {
+        AxSampleRing ring = new AxSampleRing(8);
+        assertEquals(8, ring.offer(samples(10, 0), 0, 10));
+        assertEquals(0, ring.offer(samples(1, 10), 0, 1));
+        short[] batch = new short[8 * 3];
+        assertEquals(3, ring.poll(batch, 0, 3));
+        assertEquals(3, ring.offer(samples(5, 8), 0, 5));
+        assertEquals(8, ring.poll(batch, 0, 8));
+        for (int j = 0; j < batch.length; j++) assertEquals((short)(9 + j), batch[j]);
+    }
+
+    @Test
+    public void concurrentProducerAndConsumer() throws InterruptedException {
+        final int total = 1000000;
+        final AxSampleRing ring = new AxSampleRing(1024);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] frame = new short[32 * 3];
+                int sent = 0;
+                while (sent < total) {
+                    int count = Math.min(32, total - sent);
+                    for (int j = 0; j < count * 3; j++) frame[j] = (short)(sent * 3 + j);
+                    int offset = 0;
+                    while (offset < count) {
+                        offset += ring.offer(frame, offset * 3, count - offset);
+                    }
+                    sent += count;
+                }
+            }
+        });
+        producer.start();
+        short[] batch = new short[100 * 3];
+        int received = 0;
+        while (received < total) {
+            int count = ring.poll(batch, 0, 100);
+            for (int j = 0; j < count * 3; j++) {
+                assertEquals((short)(received * 3 + j), batch[j]);
+            }
+            received += count;
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Live streaming: samples from the (experimental) simulated stream, and gaps from dropped frames and overruns
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AxStreamTest {
+
+    private static void assertGap(AxStream.Gap gap, long position, long missing) {
+        assertEquals(position, gap.getPosition());
+        assertEquals(missing, gap.getMissing());
+    }
+
+    @Test
+    public void droppedFramesAreGaps() {
+        AxStream stream = new AxStream(new AxSimulator(), 1000, AxStreamParser.EXPERIMENTAL_PACKED);
+        stream.setTrackGaps(true);
+        short[] frame = new short[40 * 3];
+        stream.onFrame(frame, 40, 0xfffe);
+        stream.onFrame(frame, 40, 0xffff);
+        stream.onFrame(frame, 40, 0);       // (sequence wraps)
+        stream.onFrame(frame, 40, 3);       // (frames 1 and 2 lost)
+        assertEquals(2, stream.getDroppedFrames());
+        assertEquals(160, stream.getSamples());
+        assertNull(stream.pollGap(119));
+        assertGap(stream.pollGap(120), 120, 80);
+        assertNull(stream.pollGap(1000));
+    }
+
+    @Test
+    public void overrunIsAGap() {
+        AxStream stream = new AxStream(new AxSimulator(), 64, AxStreamParser.EXPERIMENTAL_PACKED);
+        stream.setTrackGaps(true);
+        short[] frame = new short[40 * 3];
+        stream.onFrame(frame, 40, 0);
+        stream.onFrame(frame, 40, 1);       // (only 24 fit)
+        assertEquals(16, stream.getOverruns());
+        assertEquals(64, stream.available());
+        short[] batch = new short[64 * 3];
+        assertEquals(64, stream.read(batch, 64, 0));
+        stream.onFrame(frame, 40, 2);
+        assertEquals(0, stream.getDroppedFrames());
+        assertGap(stream.pollGap(104), 64, 16);
+        assertNull(stream.pollGap(104));
+    }
+
+    @Test
+    public void gapsAreOnlyKeptWhenTracked() {
+        AxStream stream = new AxStream(new AxSimulator(), 1000, AxStreamParser.EXPERIMENTAL_PACKED);
+        short[] frame = new short[40 * 3];
+        stream.onFrame(frame, 40, 0);
+        stream.onFrame(frame, 40, 2);
+        assertEquals(1, stream.getDroppedFrames());
+        assertNull(stream.pollGap(1000));
+    }
+
+    // Stream from the simulator for a while, checking the samples are those it generated, in order
+    private static void streamSamples(AxTransport transport, AxStreamProtocol protocol) throws IOException {
+        AxStream stream = new AxStream(transport, 16384, protocol);
+        stream.start();
+        short[] batch = new short[512 * 3];
+        long received = 0;
+        long end = System.nanoTime() + 300 * 1000000L;
+        try {
+            while (System.nanoTime() < end) {
+                int count = stream.read(batch, 512, 100);
+                for (int i = 0; i < count; i++) {
+                    for (int axis = 0; axis < 3; axis++) {
+                        assertEquals(AxSimulator.streamValue(received + i, axis), batch[i * 3 + axis]);
+                    }
+                }
+                received += count;
+            }
+        } finally {
+            stream.stop();
+        }
+        assertTrue(received + " samples", received >= 3200 * 0.2);
+        assertEquals(0, stream.getDroppedFrames());
+        assertEquals(0, stream.getChecksumErrors());
+    }
+
+    @Test
+    public void streamsFromSimulator() throws IOException {
+        AxSimulator simulator = new AxSimulator(1);
+        simulator.setFragmentation(64, true);
+        AxConfig config = new AxConfig(simulator);
+        config.setRate(3200, 8);
+        streamSamples(simulator, AxStreamParser.EXPERIMENTAL_PACKED);
+        streamSamples(simulator, AxStreamParser.EXPERIMENTAL_UNPACKED);
+        config.close();
+    }
+
+    @Test
+    public void streamsWithCommandsOnAMultiplexer() throws IOException {
+        AxSimulator simulator = new AxSimulator(2);
+        AxMultiplexer multiplexer = new AxMultiplexer(simulator, AxStreamParser.EXPERIMENTAL_UNPACKED);
+        try {
+            AxConfig config = new AxConfig(multiplexer);
+            config.setRate(3200, 8);
+            streamSamples(multiplexer, AxStreamParser.EXPERIMENTAL_UNPACKED);
+        } finally {
+            multiplexer.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multiplexerMustParseTheStreamProtocol() {
+        AxMultiplexer multiplexer = new AxMultiplexer(new AxSimulator());
+        try {
+            new AxStream(multiplexer, 1000, AxStreamParser.EXPERIMENTAL_PACKED);
+        } finally {
+            multiplexer.close();
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Time-to-sector index of a CWA data file, and reading a time range with it
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CwaIndexTest {
+
+    private static final int RATE_CODE = 0x4A;         // 100 Hz
+    private static final double START = 1514862245.0;
+    private static final int SECTOR_SAMPLES = CwaSamples.MAX_UNPACKED_SAMPLES;
+    private static final long GAP = 30L * 24 * 60 * 60 * 100;     // 30 days of samples (beyond 32-bit milliseconds)
+
+    private File dataFile;
+    private File indexFile;
+
+    // 10 sectors, a 30-day gap, then 10 more sectors
+    @Before
+    public void setUp() throws IOException {
+        dataFile = File.createTempFile("cwaindex", ".cwa");
+        indexFile = CwaIndex.indexFile(dataFile);
+        CwaRecorder recorder = new CwaRecorder(dataFile, 42, RATE_CODE, START);
+        short[] samples = new short[SECTOR_SAMPLES * 10 * 3];
+        recorder.add(samples, 0, SECTOR_SAMPLES * 10);
+        recorder.skip(GAP);
+        recorder.add(samples, 0, SECTOR_SAMPLES * 10);
+        recorder.close();
+    }
+
+    @After
+    public void tearDown() {
+        dataFile.delete();
+        indexFile.delete();
+    }
+
+    private static double sectorTime(int sector) {
+        long sample = (long) sector * SECTOR_SAMPLES + (sector >= 10 ? GAP : 0);
+        return START + sample / 100.0;
+    }
+
+    @Test
+    public void indexesEachSector() throws IOException {
+        CwaIndex index = CwaIndexBuilder.build(dataFile, indexFile);
+        assertTrue(index.isComplete());
+        assertEquals(42, index.getSessionId());
+        assertEquals(20, index.getCount());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(sectorTime(i), index.getTime(i), 0.002);     // (millisecond index, 1/32768 s sector times)
+            assertEquals(SECTOR_SAMPLES, index.getSampleCount(i));
+        }
+    }
+
+    @Test
+    public void findsSectorsByTime() throws IOException {
+        CwaIndex index = CwaIndexBuilder.build(dataFile, indexFile);
+        assertEquals(0, index.findSector(START - 100));
+        assertEquals(0, index.findSector(START));
+        assertEquals(3, index.findSector(sectorTime(3)));
+        assertEquals(3, index.findSector(sectorTime(4) - 0.01));
+        assertEquals(9, index.findSector(sectorTime(10) - 1000));      // (in the gap)
+        assertEquals(15, index.findSector(sectorTime(15) + 0.5));
+        assertEquals(19, index.findSector(sectorTime(19) + 1000));
+    }
+
+    @Test
+    public void incrementalIndexMatchesBuiltIndex() throws IOException {
+        CwaIndex built = CwaIndexBuilder.build(dataFile, indexFile);
+        File incrementalFile = new File(indexFile.getPath() + ".2");
+        try {
+            CwaIndexBuilder builder = new CwaIndexBuilder(incrementalFile);
+            RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+            try {
+                byte[] data = new byte[(int) file.length()];
+                file.readFully(data);
+                for (int offset = 0; offset < data.length; offset += 3 * CwaSamples.SECTOR_SIZE) {
+                    builder.addFileData(ByteBuffer.wrap(data, offset, Math.min(3 * CwaSamples.SECTOR_SIZE, data.length - offset)).slice());
+                }
+            } finally {
+                file.close();
+            }
+            builder.close();
+            CwaIndex incremental = new CwaIndex(incrementalFile);
+            assertTrue(incremental.isComplete());
+            assertEquals(built.getSessionId(), incremental.getSessionId());
+            assertEquals(built.getCount(), incremental.getCount());
+            for (int i = 0; i < built.getCount(); i++) {
+                assertEquals(built.getTime(i), incremental.getTime(i), 0);
+            }
+        } finally {
+            incrementalFile.delete();
+        }
+    }
+
+    @Test
+    public void selectsRangeForReader() throws IOException {
+        CwaIndex index = CwaIndexBuilder.build(dataFile, indexFile);
+        CwaReader reader = new CwaReader(dataFile);
+        try {
+            index.selectRange(reader, sectorTime(12) + 0.1, sectorTime(14) + 0.1);
+            CwaSamples block = new CwaSamples();
+            int blocks = 0;
+            while (reader.next(block)) {
+                assertEquals(sectorTime(12 + blocks), block.getStartTime(), 0.001);
+                blocks++;
+            }
+            assertEquals(3, blocks);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void parallelDecoderRespectsSelectedRange() throws IOException {
+        CwaIndex index = CwaIndexBuilder.build(dataFile, indexFile);
+        CwaReader reader = new CwaReader(dataFile);
+        CwaParallelDecoder decoder = new CwaParallelDecoder(2);
+        try {
+            index.selectRange(reader, sectorTime(2), sectorTime(5));
+            final int[] blocks = { 0 };
+            long samples = decoder.read(reader, new CwaReader.Sink() {
+                @Override
+                public void onSamples(CwaSamples block) {
+                    assertEquals(sectorTime(2 + blocks[0]), block.getStartTime(), 0.001);
+                    blocks[0]++;
+                }
+            });
+            assertEquals(4, blocks[0]);
+            assertEquals(4 * SECTOR_SAMPLES, samples);
+        } finally {
+            decoder.close();
+            reader.close();
+        }
+    }
+
+    @Test
+    public void partialIndexIsUsableWhileBuilding() throws IOException {
+        CwaIndexBuilder builder = new CwaIndexBuilder(indexFile);
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        try {
+            byte[] data = new byte[1024 + 5 * CwaSamples.SECTOR_SIZE];   // (the header and the first 5 sectors)
+            file.readFully(data);
+            builder.addFileData(ByteBuffer.wrap(data));
+            builder.flush();
+            CwaIndex index = new CwaIndex(indexFile);
+            assertFalse(index.isComplete());
+            assertEquals(42, index.getSessionId());
+            assertEquals(5, index.getCount());
+            assertEquals(4, index.findSector(sectorTime(10)));
+        } finally {
+            builder.abandon();
+            file.close();
+        }
+    }
+
+    @Test
+    public void otherIndexVersionsAreRejected() throws IOException {
+        CwaIndexBuilder.build(dataFile, indexFile);
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.seek(4);
+            file.write(new byte[] { 1, 0 });    // (version 1: 32-bit times)
+        } finally {
+            file.close();
+        }
+        try {
+            new CwaIndex(indexFile);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void parallelDecoderMatchesSequentialOrder() throws IOException {
+        // (a corrupt sector, skipped by both)
+        RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+        try {
+            file.seek(1024 + 7 * CwaSamples.SECTOR_SIZE + 100);
+            file.write(0x55);
+        } finally {
+            file.close();
+        }
+        final List<Double> sequential = new ArrayList<Double>();
+        CwaReader reader = new CwaReader(dataFile);
+        try {
+            reader.read(new CwaReader.Sink() {
+                @Override
+                public void onSamples(CwaSamples block) {
+                    sequential.add(block.getStartTime());
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        assertEquals(19, sequential.size());
+
+        // (small tasks, so the sectors are split over many)
+        ForkJoinPool pool = new ForkJoinPool(4);
+        CwaParallelDecoder decoder = new CwaParallelDecoder(pool, 3);
+        try {
+            final List<Double> parallel = new ArrayList<Double>();
+            long samples = decoder.read(dataFile, new CwaReader.Sink() {
+                @Override
+                public void onSamples(CwaSamples block) {
+                    parallel.add(block.getStartTime());
+                }
+            });
+            assertEquals(sequential, parallel);
+            assertEquals(19 * SECTOR_SAMPLES, samples);
+            assertEquals(1, decoder.getBadChecksums());
+        } finally {
+            decoder.close();
+            pool.shutdown();
+        }
+    }
+
+}
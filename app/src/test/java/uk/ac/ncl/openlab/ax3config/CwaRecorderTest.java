@@ -0,0 +1,128 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Recorded files read back, with samples missing from the stream as gaps in the timestamps
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CwaRecorderTest {
+
+    private static final int RATE_CODE = 0x4A;          // 100 Hz
+    private static final double START_TIME = 1700000000.0;
+    private static final double TOLERANCE = 0.002;      // (times are stored to the ms)
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("recorder", ".cwa");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static short[] samples(int count, int first) {
+        short[] samples = new short[count * 3];
+        for (int i = 0; i < samples.length; i++) samples[i] = (short)(first * 3 + i);
+        return samples;
+    }
+
+    // Start time (relative to the recording's start) and count of each sector
+    private List<double[]> readBack(List<Short> values) throws IOException {
+        List<double[]> sectors = new ArrayList<double[]>();
+        CwaReader reader = new CwaReader(file);
+        try {
+            assertEquals(7, reader.getSessionId());
+            CwaSamples block = new CwaSamples();
+            while (reader.next(block)) {
+                sectors.add(new double[] { block.getStartTime() - START_TIME, block.getCount() });
+                for (int i = 0; i < block.getCount() * 3; i++) values.add(block.getAccel()[i]);
+            }
+        } finally {
+            reader.close();
+        }
+        return sectors;
+    }
+
+    @Test
+    public void skippedSamplesEndTheSectorAndAdvanceTheClock() throws IOException {
+        CwaRecorder recorder = new CwaRecorder(file, 7, RATE_CODE, START_TIME);
+        recorder.add(samples(100, 0), 0, 100);
+        recorder.skip(50);
+        recorder.add(samples(200, 100), 0, 200);
+        recorder.close();
+        assertEquals(300, recorder.getSamples());
+        assertEquals(50, recorder.getMissing());
+
+        List<Short> values = new ArrayList<Short>();
+        List<double[]> sectors = readBack(values);
+        double[][] expected = { { 0, 80 }, { 0.8, 20 }, { 1.5, 80 }, { 2.3, 80 }, { 3.1, 40 } };
+        assertEquals(expected.length, sectors.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], sectors.get(i)[0], TOLERANCE);
+            assertEquals(expected[i][1], sectors.get(i)[1], 0);
+        }
+        assertEquals(300 * 3, values.size());
+        for (int i = 0; i < values.size(); i++) assertEquals((short)i, (short)values.get(i));
+    }
+
+    @Test
+    public void droppedFramesAreGapsInTheRecording() throws IOException, InterruptedException {
+        AxStream stream = new AxStream(new AxSimulator(), 1000, AxStreamParser.EXPERIMENTAL_PACKED);
+        stream.setTrackGaps(true);
+        short[] frame = new short[40 * 3];
+        stream.onFrame(frame, 40, 0);
+        stream.onFrame(frame, 40, 1);
+        stream.onFrame(frame, 40, 4);       // (frames 2 and 3, 80 samples, lost)
+        stream.onFrame(frame, 40, 5);
+        CwaRecorder recorder = new CwaRecorder(file, 7, RATE_CODE, START_TIME);
+        recorder.start(stream);
+        Thread.sleep(300);
+        recorder.close();
+        assertEquals(160, recorder.getSamples());
+        assertEquals(80, recorder.getMissing());
+
+        List<double[]> sectors = readBack(new ArrayList<Short>());
+        assertEquals(2, sectors.size());
+        assertEquals(0, sectors.get(0)[0], TOLERANCE);
+        assertEquals(80, sectors.get(0)[1], 0);
+        assertEquals(1.6, sectors.get(1)[0], TOLERANCE);
+        assertEquals(80, sectors.get(1)[1], 0);
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Encoding and decoding of CWA data sectors
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CwaSamplesTest {
+
+    private static final int RATE_CODE = 0x4A;     // 100 Hz, +/-8 g
+    private static final double START = 1514862245.25;
+
+    private static short[] samples(int count) {
+        short[] samples = new short[count * 3];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((i * 37) % 4096 - 2048);
+        }
+        return samples;
+    }
+
+    private static ByteBuffer sector(short[] samples, int count, double start) {
+        ByteBuffer buffer = ByteBuffer.allocate(CwaSamples.SECTOR_SIZE * 2).order(ByteOrder.LITTLE_ENDIAN);
+        CwaSamples.encode(buffer, CwaSamples.SECTOR_SIZE, 1234, 99, start, RATE_CODE, samples, 0, count);
+        return buffer;
+    }
+
+    @Test
+    public void roundTrip() {
+        short[] samples = samples(CwaSamples.MAX_UNPACKED_SAMPLES);
+        ByteBuffer buffer = sector(samples, CwaSamples.MAX_UNPACKED_SAMPLES, START);
+        CwaSamples block = new CwaSamples();
+        assertEquals(CwaSamples.OK, block.decode(buffer, CwaSamples.SECTOR_SIZE));
+        assertEquals(CwaSamples.MAX_UNPACKED_SAMPLES, block.getCount());
+        assertEquals(1234, block.getSessionId());
+        assertEquals(99, block.getSequenceId());
+        assertEquals(100.0, block.getFrequency(), 0);
+        assertEquals(8, block.getRange());
+        assertEquals(START, block.getStartTime(), 1 / 65536.0 * 2);
+        assertEquals(START + 10 / 100.0, block.getTime(10), 1 / 65536.0 * 2);
+        for (int i = 0; i < CwaSamples.MAX_UNPACKED_SAMPLES; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(samples[i * 3 + axis] / 256.0f, block.getAccel(i, axis), 0);
+            }
+        }
+    }
+
+    @Test
+    public void partialSector() {
+        ByteBuffer buffer = sector(samples(7), 7, START);
+        CwaSamples block = new CwaSamples();
+        assertEquals(CwaSamples.OK, block.decode(buffer, CwaSamples.SECTOR_SIZE));
+        assertEquals(7, block.getCount());
+    }
+
+    @Test
+    public void fractionalStartTimes() {
+        CwaSamples block = new CwaSamples();
+        for (int i = 0; i < 100; i++) {
+            double start = START + i * 0.0137;
+            ByteBuffer buffer = sector(samples(10), 10, start);
+            assertEquals(CwaSamples.OK, block.decodeHeader(buffer, CwaSamples.SECTOR_SIZE));
+            assertEquals(start, block.getStartTime(), 1 / 65536.0 * 2);
+        }
+    }
+
+    @Test
+    public void checksumDetectsCorruption() {
+        ByteBuffer buffer = sector(samples(40), 40, START);
+        assertEquals(CwaSamples.OK, CwaSamples.validate(buffer, CwaSamples.SECTOR_SIZE));
+        buffer.put(CwaSamples.SECTOR_SIZE + 100, (byte) (buffer.get(CwaSamples.SECTOR_SIZE + 100) ^ 0x10));
+        assertEquals(CwaSamples.BAD_CHECKSUM, CwaSamples.validate(buffer, CwaSamples.SECTOR_SIZE));
+        CwaSamples block = new CwaSamples();
+        assertEquals(CwaSamples.BAD_CHECKSUM, block.decode(buffer, CwaSamples.SECTOR_SIZE));
+        assertEquals(0, block.getCount());
+    }
+
+    @Test
+    public void otherSectorsAreNotData() {
+        ByteBuffer buffer = ByteBuffer.allocate(CwaSamples.SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(CwaSamples.NOT_DATA, CwaSamples.validate(buffer, 0));
+        buffer.putShort(0, (short) 0x444D);     // "MD" file header
+        buffer.putShort(2, (short) (1024 - 4));
+        assertEquals(CwaSamples.NOT_DATA, new CwaSamples().decode(buffer, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresLittleEndian() {
+        CwaSamples.validate(ByteBuffer.allocate(CwaSamples.SECTOR_SIZE), 0);
+    }
+
+    // Synthetic data file: a header, then sectors (sequence numbers from zero, samples as samples()), except those
+    // corrupted or left empty
+    private static File dataFile(int sectors, int corrupt, int empty) throws IOException {
+        File file = File.createTempFile("cwasamples", ".cwa");
+        ByteBuffer buffer = ByteBuffer.allocate(1024 + sectors * CwaSamples.SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort(0, (short) 0x444D);     // "MD"
+        buffer.putShort(2, (short) (1024 - 4));
+        buffer.putInt(7, 1234);
+        buffer.put(36, (byte) RATE_CODE);
+        short[] samples = samples(CwaSamples.MAX_UNPACKED_SAMPLES);
+        for (int i = 0; i < sectors; i++) {
+            if (i == empty) continue;
+            int offset = 1024 + i * CwaSamples.SECTOR_SIZE;
+            CwaSamples.encode(buffer, offset, 1234, i, START + i * 0.8, RATE_CODE, samples, 0, CwaSamples.MAX_UNPACKED_SAMPLES);
+            if (i == corrupt) buffer.put(offset + 100, (byte) (buffer.get(offset + 100) + 1));
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void readerSkipsCorruptAndEmptySectors() throws IOException {
+        File file = dataFile(6, 2, 4);
+        CwaReader reader = new CwaReader(file);
+        try {
+            assertEquals(1234, reader.getSessionId());
+            assertEquals(100, reader.getRate());
+            assertEquals(6, reader.getSectorCount());
+            CwaSamples block = new CwaSamples();
+            long[] expected = { 0, 1, 3, 5 };
+            for (long sequenceId : expected) {
+                assertTrue(reader.next(block));
+                assertEquals(sequenceId, block.getSequenceId());
+                assertEquals(START + sequenceId * 0.8, block.getStartTime(), 1.0 / 32768);
+            }
+            assertFalse(reader.next(block));
+            assertEquals(2, reader.getSkipped());
+            assertEquals(1, reader.getBadChecksums());
+        } finally {
+            reader.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readerStreamsAcrossMappedWindows() throws IOException {
+        int sectors = 8192 + 100;       // (more than one mapped window)
+        File file = dataFile(sectors, -1, -1);
+        CwaReader reader = new CwaReader(file);
+        try {
+            final long[] next = { 0 };
+            long total = reader.read(new CwaReader.Sink() {
+                @Override
+                public void onSamples(CwaSamples block) {
+                    assertEquals(next[0]++, block.getSequenceId());
+                }
+            });
+            assertEquals(sectors, next[0]);
+            assertEquals((long) sectors * CwaSamples.MAX_UNPACKED_SAMPLES, total);
+        } finally {
+            reader.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readerRejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("cwasamples", ".txt");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.write(new byte[1024]);
+        } finally {
+            out.close();
+        }
+        try {
+            new CwaReader(file).close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,423 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Reading files from generated FAT16/FAT32 images, and downloading the data file from them
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FatVolumeTest {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final int BLOCK = 512;
+    private static final int DATA_SECTORS = 60;
+
+    private final List<File> files = new ArrayList<File>();
+    private byte[] data;
+
+    // A small CWA data file
+    @Before
+    public void setUp() throws IOException {
+        File dataFile = temp(".cwa");
+        CwaRecorder recorder = new CwaRecorder(dataFile, 7, 0x4A, 1514862245.0);
+        short[] samples = new short[CwaSamples.MAX_UNPACKED_SAMPLES * 3];
+        for (int i = 0; i < DATA_SECTORS; i++) {
+            Arrays.fill(samples, (short) i);
+            recorder.add(samples, 0, CwaSamples.MAX_UNPACKED_SAMPLES);
+        }
+        recorder.close();
+        data = read(dataFile);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private File temp(String suffix) throws IOException {
+        File file = File.createTempFile("fatvolume", suffix);
+        files.add(file);
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Generated volume image: a text file, a deleted entry, a long name entry, then the data file (optionally in fragments)
+    private static class Image {
+        final boolean fat32;
+        final int clusterBlocks;
+        final long totalBlocks;
+        final int reserved;
+        final int rootEntries;
+        final long fatBlocks;
+        final long volumeStart;
+        final ByteBuffer le;
+        long nextCluster;
+
+        Image(boolean fat32, int clusterBlocks, long totalBlocks, long volumeStart) {
+            this.fat32 = fat32;
+            this.clusterBlocks = clusterBlocks;
+            this.totalBlocks = totalBlocks;
+            this.volumeStart = volumeStart;
+            reserved = fat32 ? 32 : 1;
+            rootEntries = fat32 ? 0 : 512;
+            fatBlocks = ((totalBlocks / clusterBlocks + 2) * (fat32 ? 4 : 2) + BLOCK - 1) / BLOCK;
+            le = ByteBuffer.allocate((int) ((volumeStart + totalBlocks) * BLOCK)).order(ByteOrder.LITTLE_ENDIAN);
+            nextCluster = fat32 ? 3 : 2;    // (FAT32 root directory in cluster 2)
+
+            int boot = (int) (volumeStart * BLOCK);
+            le.put(boot, (byte) 0xEB);
+            le.putShort(boot + 11, (short) BLOCK);
+            le.put(boot + 13, (byte) clusterBlocks);
+            le.putShort(boot + 14, (short) reserved);
+            le.put(boot + 16, (byte) 2);
+            le.putShort(boot + 17, (short) rootEntries);
+            if (totalBlocks < 0x10000) le.putShort(boot + 19, (short) totalBlocks); else le.putInt(boot + 32, (int) totalBlocks);
+            if (fat32) {
+                le.putInt(boot + 36, (int) fatBlocks);
+                le.putInt(boot + 44, 2);
+                setFat(2, 0x0fffffff);
+            } else {
+                le.putShort(boot + 22, (short) fatBlocks);
+            }
+            le.putShort(boot + 510, (short) 0xAA55);
+            if (volumeStart > 0) {
+                // Partition table
+                le.put(446 + 4, (byte) (fat32 ? 0x0C : 0x0E));
+                le.putInt(446 + 8, (int) volumeStart);
+                le.putInt(446 + 12, (int) totalBlocks);
+                le.putShort(510, (short) 0xAA55);
+            }
+        }
+
+        long fatStart() { return volumeStart + reserved; }
+        long rootStart() { return fatStart() + 2 * fatBlocks; }
+        long dataStart() { return rootStart() + (rootEntries * 32 + BLOCK - 1) / BLOCK; }
+        int clusterOffset(long cluster) { return (int) ((dataStart() + (cluster - 2) * clusterBlocks) * BLOCK); }
+
+        void setFat(long cluster, long value) {
+            int offset = (int) (fatStart() * BLOCK + cluster * (fat32 ? 4 : 2));
+            if (fat32) le.putInt(offset, (int) value); else le.putShort(offset, (short) value);
+        }
+
+        // Write a file to clusters allocated in runs (skipping the given number of clusters between runs), returns its first cluster
+        long write(byte[] content, int runClusters, int skipClusters) {
+            int clusterSize = clusterBlocks * BLOCK;
+            int clusters = (content.length + clusterSize - 1) / clusterSize;
+            long first = 0, previous = 0;
+            for (int i = 0; i < clusters; i++) {
+                if (i > 0 && runClusters > 0 && i % runClusters == 0) nextCluster += skipClusters;
+                long cluster = nextCluster++;
+                int length = Math.min(clusterSize, content.length - i * clusterSize);
+                System.arraycopy(content, i * clusterSize, le.array(), clusterOffset(cluster), length);
+                if (previous != 0) setFat(previous, cluster); else first = cluster;
+                previous = cluster;
+            }
+            if (previous != 0) setFat(previous, fat32 ? 0x0fffffff : 0xffff);
+            return first;
+        }
+
+        void entry(int index, String name, int attributes, long cluster, long size) {
+            int offset = fat32 ? clusterOffset(2) : (int) (rootStart() * BLOCK);
+            offset += index * 32;
+            byte[] bytes = name.getBytes(LATIN1);
+            System.arraycopy(bytes, 0, le.array(), offset, 11);
+            le.put(offset + 11, (byte) attributes);
+            le.putShort(offset + 20, (short) (cluster >> 16));
+            le.putShort(offset + 26, (short) cluster);
+            le.putInt(offset + 28, (int) size);
+        }
+
+        File save(File file, byte[] data, int runClusters, int skipClusters) throws IOException {
+            byte[] text = "Hello".getBytes(LATIN1);
+            entry(0, "README  TXT", 0x20, write(text, 0, 0), text.length);
+            entry(1, "_OLD    TXT", 0x20, 0, 0);
+            le.put((fat32 ? clusterOffset(2) : (int) (rootStart() * BLOCK)) + 32, (byte) 0xE5);     // (deleted)
+            entry(2, "ALONGN~1   ", 0x0F, 0, 0);
+            entry(3, "CWA-DATACWA", 0x20, write(data, runClusters, skipClusters), data.length);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.write(le.array());
+            } finally {
+                raf.close();
+            }
+            return file;
+        }
+    }
+
+    private File fat16(int runClusters, int skipClusters) throws IOException {
+        return new Image(false, 4, 20000, 0).save(temp(".img"), data, runClusters, skipClusters);
+    }
+
+    private File fat32(long volumeStart, int runClusters, int skipClusters) throws IOException {
+        return new Image(true, 1, 70000, volumeStart).save(temp(".img"), data, runClusters, skipClusters);
+    }
+
+    private void assertVolume(File image, boolean fat32) throws IOException {
+        FileBlockDevice device = new FileBlockDevice(image);
+        try {
+            FatVolume volume = new FatVolume(device);
+            assertEquals(fat32, volume.isFat32());
+            List<FatVolume.Entry> entries = volume.list();
+            assertEquals(2, entries.size());
+            assertEquals("README.TXT", entries.get(0).getName());
+            assertEquals(5, entries.get(0).getSize());
+            FatVolume.Entry entry = volume.find("cwa-data.cwa");
+            assertNotNull(entry);
+            assertEquals(data.length, entry.getSize());
+            assertNull(volume.find("MISSING.CWA"));
+
+            // The extents cover the file, in order
+            long[] extents = volume.getExtents(entry);
+            byte[] content = new byte[data.length];
+            byte[] block = new byte[BLOCK];
+            int position = 0;
+            for (int i = 0; i < extents.length; i += 2) {
+                for (long b = 0; b < extents[i + 1] && position < content.length; b++) {
+                    device.read(extents[i] + b, 1, block, 0);
+                    int length = Math.min(BLOCK, content.length - position);
+                    System.arraycopy(block, 0, content, position, length);
+                    position += length;
+                }
+            }
+            assertArrayEquals(data, content);
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void readsFat16() throws IOException {
+        assertVolume(fat16(0, 0), false);
+    }
+
+    @Test
+    public void readsFat32() throws IOException {
+        assertVolume(fat32(0, 0, 0), true);
+    }
+
+    @Test
+    public void readsPartitionedVolume() throws IOException {
+        assertVolume(fat32(63, 0, 0), true);
+    }
+
+    @Test
+    public void mergesContiguousClustersIntoExtents() throws IOException {
+        FileBlockDevice device = new FileBlockDevice(fat16(0, 0));
+        try {
+            FatVolume volume = new FatVolume(device);
+            assertEquals(2, volume.getExtents(volume.find(CwaDownloader.DATA_FILE)).length);
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void followsFragmentedChains() throws IOException {
+        File image = fat16(3, 2);
+        assertVolume(image, false);
+        FileBlockDevice device = new FileBlockDevice(image);
+        try {
+            FatVolume volume = new FatVolume(device);
+            long[] extents = volume.getExtents(volume.find(CwaDownloader.DATA_FILE));
+            int clusters = (data.length + volume.getClusterSize() - 1) / volume.getClusterSize();
+            assertEquals((clusters + 2) / 3 * 2, extents.length);
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void rejectsImageWithoutBootSector() throws IOException {
+        File image = temp(".img");
+        RandomAccessFile raf = new RandomAccessFile(image, "rw");
+        raf.setLength(64 * BLOCK);
+        raf.close();
+        FileBlockDevice device = new FileBlockDevice(image);
+        try {
+            new FatVolume(device);
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            device.close();
+        }
+    }
+
+    private void assertDownload(File image) throws IOException {
+        File destination = temp(".cwa");
+        File indexFile = temp(".idx");
+        FileBlockDevice device = new FileBlockDevice(image);
+        final long[] progress = { 0, 0 };
+        try {
+            CwaDownloader downloader = new CwaDownloader(device);
+            downloader.setListener(new CwaDownloader.Listener() {
+                @Override
+                public void onProgress(long bytes, long total) {
+                    assertTrue(bytes >= progress[0]);
+                    progress[0] = bytes;
+                    progress[1] = total;
+                }
+            });
+            assertEquals(data.length, downloader.download(destination, indexFile));
+        } finally {
+            device.close();
+        }
+        assertArrayEquals(data, read(destination));
+        assertEquals(data.length, progress[0]);
+        assertEquals(data.length, progress[1]);
+
+        CwaIndex index = new CwaIndex(indexFile);
+        assertTrue(index.isComplete());
+        assertEquals(7, index.getSessionId());
+        assertEquals(DATA_SECTORS, index.getCount());
+        assertFalse(index.getTime(1) <= index.getTime(0));
+    }
+
+    @Test
+    public void downloadsFromFat16() throws IOException {
+        assertDownload(fat16(5, 1));
+    }
+
+    @Test
+    public void downloadsFromFat32() throws IOException {
+        assertDownload(fat32(63, 7, 3));
+    }
+
+    @Test
+    public void downloadFailsWithoutDataFile() throws IOException {
+        Image image = new Image(false, 4, 20000, 0);
+        File file = temp(".img");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(image.le.array());
+        raf.close();
+        FileBlockDevice device = new FileBlockDevice(file);
+        try {
+            new CwaDownloader(device).download(temp(".cwa"), null);
+            fail();
+        } catch (IOException e) {
+            assertEquals("No data file on the device", e.getMessage());
+        } finally {
+            device.close();
+        }
+    }
+
+    // Image reads, in transfers of up to the given number of blocks, recording the data file's transfers
+    private static class CountingDevice implements BlockDevice {
+        final FileBlockDevice device;
+        final int maxTransferBlocks;
+        final List<Integer> transfers = new ArrayList<Integer>();
+        long dataStart = Long.MAX_VALUE;
+
+        CountingDevice(File image, int maxTransferBlocks) throws IOException {
+            this.device = new FileBlockDevice(image);
+            this.maxTransferBlocks = maxTransferBlocks;
+        }
+
+        public int getBlockSize() { return device.getBlockSize(); }
+        public long getBlockCount() { return device.getBlockCount(); }
+        public int getMaxTransferBlocks() { return maxTransferBlocks; }
+        public void close() { device.close(); }
+
+        public void read(long block, int count, byte[] buffer, int offset) throws IOException {
+            if (block >= dataStart) transfers.add(count);
+            device.read(block, count, buffer, offset);
+        }
+    }
+
+    @Test
+    public void downloadsInLargeTransfers() throws IOException {
+        Image image = new Image(false, 4, 20000, 0);
+        File file = image.save(temp(".img"), data, 0, 0);
+        CountingDevice device = new CountingDevice(file, 16);
+        try {
+            device.dataStart = image.dataStart();
+            new CwaDownloader(device).download(temp(".cwa"), null);
+        } finally {
+            device.close();
+        }
+        // (one contiguous extent: full transfers, then the rest of the file's blocks)
+        int blocks = (data.length + BLOCK - 1) / BLOCK;
+        List<Integer> transfers = device.transfers;
+        assertEquals((blocks + 15) / 16, transfers.size());
+        int total = 0;
+        for (int i = 0; i < transfers.size(); i++) {
+            if (i < transfers.size() - 1) assertEquals(16, (int) transfers.get(i));
+            total += transfers.get(i);
+        }
+        assertEquals(blocks, total);
+    }
+
+    @Test
+    public void cancelledDownloadLeavesIndexIncomplete() throws IOException {
+        File indexFile = temp(".idx");
+        FileBlockDevice device = new FileBlockDevice(fat16(0, 0));
+        try {
+            CwaDownloader downloader = new CwaDownloader(device);
+            downloader.cancel();
+            downloader.download(temp(".cwa"), indexFile);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Cancelled", e.getMessage());
+        } finally {
+            device.close();
+        }
+        assertFalse(new CwaIndex(indexFile).isComplete());
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Recorded AX3 response traces for benchmarking
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class AxTraces {
+
+    private AxTraces() {
+    }
+
+    // Single-line responses (one packet each)
+    public static final String SESSION = "SESSION=123456789\r\n";
+    public static final String HIBERNATE = "HIBERNATE=2018/07/16,16:00:00\r\n";
+    public static final String RATE = "RATE=74,100\r\n";
+    public static final String BATTERY = "$BATT=718,4207,mV,98,1\r\n";
+
+    // Long multi-line output before the expected response
+    public static final String BANNER =
+            "\r\n" +
+            "CWA,HW-17,FW-47,12345\r\n" +
+            "ID=CWA,17,47,12345,1\r\n" +
+            "$TIME=2018/07/16,15:59:58\r\n" +
+            "SESSION=123456789\r\n" +
+            "HIBERNATE=2018/07/16,16:00:00\r\n" +
+            "STOP=2018/07/23,16:00:00\r\n" +
+            "LOCK=0\r\n" +
+            "MEMORY=0,0,0,0,0\r\n" +
+            "$BATT=718,4207,mV,98,1\r\n" +
+            "RATE=74,100\r\n";
+
+    // Split a response into packets of at most the given size
+    public static byte[][] packets(String response, int packetSize) {
+        byte[] bytes = response.getBytes(Charset.forName("US-ASCII"));
+        List<byte[]> packets = new ArrayList<byte[]>();
+        for (int offset = 0; offset < bytes.length; offset += packetSize) {
+            int length = Math.min(packetSize, bytes.length - offset);
+            byte[] packet = new byte[length];
+            System.arraycopy(bytes, offset, packet, 0, length);
+            packets.add(packet);
+        }
+        return packets.toArray(new byte[0][]);
+    }
+
+}
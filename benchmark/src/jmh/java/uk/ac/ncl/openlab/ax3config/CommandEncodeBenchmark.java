@@ -0,0 +1,86 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: command encoding and writing
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandEncodeBenchmark {
+
+    private final AxCommandEncoder encoder = new AxCommandEncoder();
+    private AxConfig rateConfig;
+    private AxConfig hibernateConfig;
+    private Date date;
+
+    @Setup
+    public void setup() {
+        rateConfig = new AxConfig(new TraceTransport(AxTraces.packets(AxTraces.RATE, 64)));
+        hibernateConfig = new AxConfig(new TraceTransport(AxTraces.packets(AxTraces.HIBERNATE, 64)));
+        date = new Date(1531756800000L);    // 2018-07-16T16:00:00Z
+    }
+
+    // Encoding only
+    @Benchmark
+    public ByteBuffer encodeRate() {
+        encoder.begin().append("RATE ").append(74).expect("RATE=").expect(74).expect(",").expect(100);
+        return encoder.end();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDate() {
+        encoder.begin().append("HIBERNATE ");
+        int argument = encoder.position();
+        encoder.appendDate(date, true).expect("HIBERNATE=").expectArgument(argument);
+        return encoder.end();
+    }
+
+    // Full command: encode, write, read and check the response
+    @Benchmark
+    public void setRate() throws IOException {
+        rateConfig.setRate(100, 8);
+    }
+
+    @Benchmark
+    public void setStartTime() throws IOException {
+        hibernateConfig.setStartTime(date);
+    }
+
+}
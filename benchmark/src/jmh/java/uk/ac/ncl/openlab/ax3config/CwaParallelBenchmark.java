@@ -0,0 +1,105 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: parallel (fork/join) decoding of CWA data files, scaling with the number of threads
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CwaParallelBenchmark {
+
+    // 100000 sectors: 12M samples (one day at 100 Hz would be 8.64M), about 49 MB
+    private static final int SECTORS = 100000;
+
+    // Threads (0 for the single-threaded CwaReader, for comparison); on machines with fewer cores, the higher counts show the overhead
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    private File file;
+    private CwaParallelDecoder decoder;
+
+    // Sums the samples (so that the decoding is not optimized away)
+    private static class SumSink implements CwaReader.Sink {
+        long sum = 0;
+
+        @Override
+        public void onSamples(CwaSamples samples) {
+            short[] accel = samples.getAccel();
+            for (int i = 0, n = samples.getCount() * 3; i < n; i++) {
+                sum += accel[i];
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = CwaSynthetic.create(SECTORS, true);
+        if (threads > 0) {
+            decoder = new CwaParallelDecoder(threads);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (decoder != null) {
+            decoder.close();
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public long readFile() throws IOException {
+        SumSink sink = new SumSink();
+        if (decoder != null) {
+            decoder.read(file, sink);
+        } else {
+            CwaReader reader = new CwaReader(file);
+            try {
+                reader.read(sink);
+            } finally {
+                reader.close();
+            }
+        }
+        return sink.sum;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: decoding CWA data files (synthetic, memory-mapped)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CwaReadBenchmark {
+
+    // 20000 sectors: 2.4M samples packed, 1.6M unpacked (about 9.7 MB)
+    private static final int SECTORS = 20000;
+
+    @Param({"true", "false"})
+    public boolean packed;
+
+    private File file;
+    private ByteBuffer sector;
+    private final CwaSamples samples = new CwaSamples();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = CwaSynthetic.create(SECTORS, packed);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            sector = ByteBuffer.allocate(CwaSamples.SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            raf.getChannel().read(sector, 1024);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    // Decode one sector (checksum, header and samples)
+    @Benchmark
+    public CwaSamples decodeSector() {
+        samples.decode(sector, 0);
+        return samples;
+    }
+
+    // Read the whole file, summarising into 60 s epochs (compare with readFile() for the cost of summarising)
+    @Benchmark
+    public double readFileEpochs() throws IOException {
+        final double[] total = new double[1];
+        EpochSummariser summariser = new EpochSummariser(60, new EpochSummariser.Listener() {
+            @Override
+            public void onEpoch(EpochSummariser.Epoch epoch) {
+                total[0] += epoch.getEnmo();
+            }
+        });
+        CwaReader reader = new CwaReader(file);
+        try {
+            reader.read(summariser);
+            summariser.finish();
+            return total[0];
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Read the whole file, summing the samples
+    @Benchmark
+    public long readFile() throws IOException {
+        CwaReader reader = new CwaReader(file);
+        try {
+            long sum = 0;
+            while (reader.next(samples)) {
+                short[] accel = samples.getAccel();
+                for (int i = 0, n = samples.getCount() * 3; i < n; i++) {
+                    sum += accel[i];
+                }
+            }
+            return sum;
+        } finally {
+            reader.close();
+        }
+    }
+
+}
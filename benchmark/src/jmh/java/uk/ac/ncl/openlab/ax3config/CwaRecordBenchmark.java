@@ -0,0 +1,123 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: recording streamed samples to a CWA data file (sustained packing and writing, and from a simulated device)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CwaRecordBenchmark {
+
+    private static final int RATE_CODE = 0x4f;     // 3200 Hz, +/- 8g
+    private static final int SECOND = 3200;
+
+    private File file;
+    private CwaRecorder recorder;
+    private final short[] samples = new short[SECOND * 3];
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        for (int i = 0; i < SECOND; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                samples[i * 3 + axis] = AxSimulator.streamValue(i, axis);
+            }
+        }
+        file = File.createTempFile("record", ".cwa");
+        recorder = new CwaRecorder(file, 1, RATE_CODE, CwaSynthetic.START);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        recorder.close();
+        file.delete();
+    }
+
+    // Write latency from the simulated device (per iteration: the mean and maximum time for a batch of sectors to be written)
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Latency {
+        public double meanWriteLatencyMs;
+        public double maxWriteLatencyMs;
+        public long droppedFrames;
+        public long samples;
+    }
+
+    // Pack and write one second of samples at 3200 Hz (sustained: waits for the writer when both batches are full)
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+    public long recordSecond() throws IOException {
+        recorder.add(samples, 0, SECOND);
+        return recorder.getSectors();
+    }
+
+    // Stream two seconds at 3200 Hz from the simulated device through AxStream to the recorder, until written to the file
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 1, time = 1)
+    @Measurement(iterations = 3, time = 1)
+    public long simulated(Latency latency) throws IOException, InterruptedException {
+        AxSimulator simulator = new AxSimulator();
+        simulator.setFragmentation(64, true);
+        AxConfig config = new AxConfig(simulator);
+        config.setRate(3200, 8);
+        File simulatedFile = File.createTempFile("simulated", ".cwa");
+        try {
+            CwaRecorder simulatedRecorder = new CwaRecorder(simulatedFile, 1, RATE_CODE, CwaSynthetic.START);
+            AxStream stream = new AxStream(simulator, 16384, AxStreamParser.EXPERIMENTAL_UNPACKED);
+            stream.start();
+            simulatedRecorder.start(stream);
+            Thread.sleep(2000);
+            stream.stop();
+            simulatedRecorder.close();
+            latency.meanWriteLatencyMs = simulatedRecorder.getMeanWriteLatencyMs();
+            latency.maxWriteLatencyMs = simulatedRecorder.getMaxWriteLatencyMs();
+            latency.droppedFrames = stream.getDroppedFrames() + stream.getOverruns();
+            latency.samples = simulatedRecorder.getSamples();
+            return simulatedFile.length();
+        } finally {
+            config.close();
+            simulatedFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Synthetic Open Movement CWA data files (for benchmarks)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class CwaSynthetic {
+
+    public static final int RATE_CODE = 0x4a;    // 100 Hz, +/- 8g
+    public static final long START = 1530000000L; // 2018-06-26T08:00:00 (device local time)
+
+    // Write a file of the given number of data sectors, packed (120 samples/sector) or unpacked (80 samples/sector), 100 Hz
+    public static File create(long sectors, boolean packed) throws IOException {
+        File file = File.createTempFile("synthetic", ".cwa");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+            header.putShort(0, (short) 0x444D);
+            header.putShort(2, (short) 1020);
+            header.putShort(5, (short) 1234);
+            header.putInt(7, 5678);
+            header.putShort(11, (short) 0);
+            header.putInt(13, (int) CwaTimestamp.fromSeconds(START));
+            header.putInt(17, (int) CwaTimestamp.fromSeconds(START + 7 * 86400));
+            header.put(36, (byte) RATE_CODE);
+            channel.write(header, 0);
+
+            ByteBuffer buffer = ByteBuffer.allocate(CwaSamples.SECTOR_SIZE * 256).order(ByteOrder.LITTLE_ENDIAN);
+            int perSector = packed ? 120 : 80;
+            long sample = 0;
+            long position = 1024;
+            for (long s = 0; s < sectors; ) {
+                buffer.clear();
+                while (buffer.hasRemaining() && s < sectors) {
+                    sector(buffer, buffer.position(), s, sample, perSector, packed);
+                    buffer.position(buffer.position() + CwaSamples.SECTOR_SIZE);
+                    sample += perSector;
+                    s++;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    // Synthetic acceleration (1/256 g) of a sample's axis
+    public static int value(long sample, int axis) {
+        return (int) (200 * Math.sin((sample + axis * 33) * 0.01)) + (axis == 2 ? 256 : 0);    // (within 10-bit packed range)
+    }
+
+    private static void sector(ByteBuffer buffer, int offset, long sequence, long firstSample, int count, boolean packed) {
+        // Timestamp of the first sample with a fractional part
+        double time = START + firstSample / 100.0;
+        long seconds = (long) Math.floor(time);
+        int fractional = (int) ((time - seconds) * 65536);
+        buffer.putShort(offset, (short) 0x5841);
+        buffer.putShort(offset + 2, (short) 508);
+        buffer.putShort(offset + 4, (short) (0x8000 | (fractional >> 1)));
+        buffer.putInt(offset + 6, 5678);
+        buffer.putInt(offset + 10, (int) sequence);
+        buffer.putInt(offset + 14, (int) CwaTimestamp.fromSeconds(seconds));
+        buffer.putShort(offset + 18, (short) 100);
+        buffer.putShort(offset + 20, (short) 300);
+        buffer.put(offset + 22, (byte) 0);
+        buffer.put(offset + 23, (byte) 200);
+        buffer.put(offset + 24, (byte) RATE_CODE);
+        buffer.put(offset + 25, (byte) (packed ? 0x30 : 0x32));
+        // (the firmware removes the whole samples accounted for by the fraction from the offset)
+        buffer.putShort(offset + 26, (short) -((fractional * 100L) >> 16));
+        buffer.putShort(offset + 28, (short) count);
+        for (int i = 0; i < count; i++) {
+            int x = value(firstSample + i, 0), y = value(firstSample + i, 1), z = value(firstSample + i, 2);
+            if (packed) {
+                buffer.putInt(offset + 30 + i * 4, (x & 0x3ff) | ((y & 0x3ff) << 10) | ((z & 0x3ff) << 20));
+            } else {
+                buffer.putShort(offset + 30 + i * 6, (short) x);
+                buffer.putShort(offset + 30 + i * 6 + 2, (short) y);
+                buffer.putShort(offset + 30 + i * 6 + 4, (short) z);
+            }
+        }
+        buffer.putShort(offset + 510, (short) 0);
+        int sum = 0;
+        for (int i = 0; i < 510; i += 2) {
+            sum += buffer.getShort(offset + i) & 0xffff;
+        }
+        buffer.putShort(offset + 510, (short) -sum);
+    }
+
+}
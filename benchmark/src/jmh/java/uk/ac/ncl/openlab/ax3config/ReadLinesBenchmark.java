@@ -0,0 +1,91 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: line assembly from (fragmented) packets
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadLinesBenchmark {
+
+    // single: one short response in one packet
+    // banner: long multi-line output in full 64-byte packets
+    // fragmented: long multi-line output split into small packets
+    @Param({"single", "banner", "fragmented"})
+    public String trace;
+
+    private TraceTransport transport;
+    private String finalPrefix;
+    private final AxResponse response = new AxResponse();
+
+    @Setup
+    public void setup() {
+        if (trace.equals("single")) {
+            transport = new TraceTransport(AxTraces.packets(AxTraces.BATTERY, 64));
+            finalPrefix = "$BATT=";
+        } else if (trace.equals("banner")) {
+            transport = new TraceTransport(AxTraces.packets(AxTraces.BANNER, 64));
+            finalPrefix = "RATE=";
+        } else {
+            transport = new TraceTransport(AxTraces.packets(AxTraces.BANNER, 7));
+            finalPrefix = "RATE=";
+        }
+    }
+
+    @Benchmark
+    public String[] readLines() {
+        transport.rewind();
+        return transport.readLines(1000, 250, finalPrefix);
+    }
+
+    // Framing only, keeping just the final line
+    @Benchmark
+    public AxResponse readResponse() {
+        transport.rewind();
+        transport.readResponse(1000, 250, finalPrefix, response);
+        return response;
+    }
+
+    // Without a final prefix (as for custom commands), reading to the end of the trace
+    @Benchmark
+    public String[] readLinesUnterminated() {
+        transport.rewind();
+        return transport.readLines(1000, 250, null);
+    }
+
+}
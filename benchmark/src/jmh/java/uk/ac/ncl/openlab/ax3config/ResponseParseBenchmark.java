@@ -0,0 +1,95 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: AxConfig command response parsing
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseParseBenchmark {
+
+    private AxConfig batteryConfig;
+    private AxConfig sessionConfig;
+    private AxConfig hibernateConfig;
+
+    private final AxResponse response = new AxResponse();
+    private byte[] batteryLine;
+    private byte[] hibernateLine;
+
+    @Setup
+    public void setup() {
+        batteryConfig = new AxConfig(new TraceTransport(AxTraces.packets(AxTraces.BATTERY, 64)));
+        sessionConfig = new AxConfig(new TraceTransport(AxTraces.packets(AxTraces.SESSION, 64)));
+        hibernateConfig = new AxConfig(new TraceTransport(AxTraces.packets(AxTraces.HIBERNATE, 64)));
+        batteryLine = AxTraces.BATTERY.trim().getBytes(Charset.forName("US-ASCII"));
+        hibernateLine = AxTraces.HIBERNATE.trim().getBytes(Charset.forName("US-ASCII"));
+    }
+
+    // Response line tokenizing only
+    @Benchmark
+    public int parseCommaSeparated() {
+        response.setLine(batteryLine, 0, batteryLine.length);
+        response.tokenize(true);
+        return response.getInt(4);
+    }
+
+    @Benchmark
+    public int parseNameValue() {
+        response.setLine(hibernateLine, 0, hibernateLine.length);
+        response.tokenize(false);
+        return response.getFieldLength(1);
+    }
+
+    // Full command: write, read lines, parse, convert
+    @Benchmark
+    public int getBattery() throws IOException {
+        return batteryConfig.getBattery();
+    }
+
+    @Benchmark
+    public int getSessionId() throws IOException {
+        return sessionConfig.getSessionId();
+    }
+
+    @Benchmark
+    public Object getStartTime() throws IOException {
+        return hibernateConfig.getStartTime();
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Benchmark: parsing streamed sample frames into the ring buffer, and reading them in batches
+
+package uk.ac.ncl.openlab.ax3config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StreamParseBenchmark {
+
+    // One second at 3200 Hz: 100 frames of 32 samples, received in 64-byte packets
+    private static final int FRAMES = 100;
+    private static final int SAMPLES_PER_FRAME = 32;
+
+    @Param({"0", "2"})
+    public int format;
+
+    private byte[] data;
+    private int length;
+    private AxSampleRing ring;
+    private AxStreamParser parser;
+    private final short[] batch = new short[1024 * 3];
+
+    @Setup
+    public void setup() {
+        short[] samples = new short[SAMPLES_PER_FRAME * 3];
+        data = new byte[FRAMES * (SAMPLES_PER_FRAME * 6 + 7)];
+        length = 0;
+        for (int f = 0; f < FRAMES; f++) {
+            for (int i = 0; i < SAMPLES_PER_FRAME; i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    samples[i * 3 + axis] = AxSimulator.streamValue(f * SAMPLES_PER_FRAME + i, axis);
+                }
+            }
+            length += AxStreamParser.encode(samples, 0, SAMPLES_PER_FRAME, format, f, data, length);
+        }
+        ring = new AxSampleRing(FRAMES * SAMPLES_PER_FRAME);
+        parser = new AxStreamParser(new AxStreamProtocol.Listener() {
+            @Override
+            public void onFrame(short[] frameSamples, int count, int sequence) {
+                ring.offer(frameSamples, 0, count);
+            }
+
+            @Override
+            public void onLine(byte[] line, int lineLength) {
+            }
+        });
+    }
+
+    // Parse one second of frames (in 64-byte packets), then read them out in batches
+    @Benchmark
+    public int parseSecond() {
+        for (int offset = 0; offset < length; offset += 64) {
+            parser.parse(data, offset, Math.min(64, length - offset));
+        }
+        int total = 0;
+        int count;
+        while ((count = ring.poll(batch, 0, 1024)) > 0) {
+            total += count;
+        }
+        return total;
+    }
+
+}
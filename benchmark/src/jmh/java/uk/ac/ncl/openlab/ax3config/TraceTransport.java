@@ -0,0 +1,73 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Transport that replays a recorded response trace (for benchmarking)
+
+package uk.ac.ncl.openlab.ax3config;
+
+public class TraceTransport extends AbstractAxTransport {
+
+    private final byte[][] packets;
+    private int index = 0;
+    private int offset = 0;
+
+    public TraceTransport(byte[][] packets) {
+        this.packets = packets;
+    }
+
+    // Restart the trace
+    public void rewind() {
+        index = 0;
+        offset = 0;
+    }
+
+    // Read bytes (returns immediately at the end of the trace, as if timed-out)
+    public int read(byte[] buffer, int timeoutMS, boolean single) {
+        int count = 0;
+        while (count < buffer.length && index < packets.length) {
+            byte[] packet = packets[index];
+            int length = Math.min(buffer.length - count, packet.length - offset);
+            System.arraycopy(packet, offset, buffer, count, length);
+            count += length;
+            offset += length;
+            if (offset >= packet.length) {
+                index++;
+                offset = 0;
+            }
+            if (single) break;
+        }
+        return count;
+    }
+
+    // Each command is answered by replaying the trace from the start
+    public int write(byte[] buffer, int offset, int length, int timeoutMS) {
+        rewind();
+        return length;
+    }
+
+    public void close() {
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Command-line provisioning of Open Movement AX3 Devices attached to a Linux host
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class AxHost {
+
+    private static final String DATE_FORMAT = "yyyy/MM/dd','HH:mm:ss";
+
+    private static void usage() {
+        System.out.println("Usage: host [options] [tty...]     (default: all /dev/ttyACM* devices)");
+        System.out.println("  --session <id>       configure with the session id (required to configure)");
+        System.out.println("  --start <time|now>   start time (" + DATE_FORMAT.replace("','", ",") + "), default now");
+        System.out.println("  --end <time>         end time, default 7 days after the start");
+        System.out.println("  --rate <hz>          sample rate, default 100");
+        System.out.println("  --range <g>          sensitivity, default 8");
+        System.out.println("  --no-sync            send the time in the batch (instead of setting the clock on a second boundary)");
+        System.out.println("  --wipe               wipe the data file when committing");
+        System.out.println("  --led <n>            LED colour once configured, default 5 (magenta)");
+        System.out.println("  --overwrite          configure even if a device has an existing configuration");
+        System.out.println("  --min-battery <%>    minimum battery level, default 80");
+        System.out.println("  --workers <n>        devices configured at once, default 16");
+        System.out.println("  --metrics            report protocol metrics once finished");
+        System.out.println("  --status             only read and report each device's status");
+        System.out.println("  --simulate           act as simulated devices on the given ttys (e.g. pseudo-terminals), until stopped");
+        System.out.println("  --latency <us>       simulated link latency in each direction");
+    }
+
+    private static Date parseDate(String value) throws ParseException {
+        if (value.equalsIgnoreCase("now")) return new Date();
+        return new SimpleDateFormat(DATE_FORMAT, Locale.US).parse(value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Integer sessionId = null;
+        Date start = null, end = null;
+        int rate = 100, range = 8, led = 5, minimumBattery = 80, workers = 16;
+        long latencyMicros = 0;
+        boolean sync = true, wipe = false, overwrite = false, metricsReport = false, statusOnly = false, simulate = false;
+        List<String> paths = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--help") || arg.equals("-h")) { usage(); return; }
+                else if (arg.equals("--session")) sessionId = Integer.parseInt(args[++i]);
+                else if (arg.equals("--start")) start = parseDate(args[++i]);
+                else if (arg.equals("--end")) end = parseDate(args[++i]);
+                else if (arg.equals("--rate")) rate = Integer.parseInt(args[++i]);
+                else if (arg.equals("--range")) range = Integer.parseInt(args[++i]);
+                else if (arg.equals("--no-sync")) sync = false;
+                else if (arg.equals("--wipe")) wipe = true;
+                else if (arg.equals("--led")) led = Integer.parseInt(args[++i]);
+                else if (arg.equals("--overwrite")) overwrite = true;
+                else if (arg.equals("--min-battery")) minimumBattery = Integer.parseInt(args[++i]);
+                else if (arg.equals("--workers")) workers = Integer.parseInt(args[++i]);
+                else if (arg.equals("--metrics")) metricsReport = true;
+                else if (arg.equals("--status")) statusOnly = true;
+                else if (arg.equals("--simulate")) simulate = true;
+                else if (arg.equals("--latency")) latencyMicros = Long.parseLong(args[++i]);
+                else if (arg.startsWith("-")) throw new IllegalArgumentException("Unknown option: " + arg);
+                else paths.add(arg);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("ERROR: Missing option value");
+            System.exit(2);
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(2);
+        } catch (ParseException e) {
+            System.err.println("ERROR: Invalid time: " + e.getMessage());
+            System.exit(2);
+        }
+
+        if (paths.isEmpty() && !simulate) {
+            paths = TtyPort.getDevices();
+        }
+        if (paths.isEmpty()) {
+            System.err.println("ERROR: No devices");
+            System.exit(1);
+        }
+
+        if (simulate) {
+            simulate(paths, latencyMicros);
+        } else if (statusOnly) {
+            System.exit(status(paths, workers));
+        } else {
+            if (sessionId == null) {
+                System.err.println("ERROR: No session id (--session)");
+                System.exit(2);
+            }
+            if (start == null) start = new Date();
+            if (end == null) end = new Date(start.getTime() + 7 * 24 * 60 * 60 * 1000L);
+            AxConfiguration configuration = new AxConfiguration();
+            configuration.setSessionId(sessionId);
+            configuration.setStartTime(start);
+            configuration.setEndTime(end);
+            configuration.setRate(rate, range);
+            if (sync) {
+                configuration.setSyncTime(true);
+            } else {
+                configuration.setTime(new Date());
+            }
+            configuration.setCommit(true, wipe);
+            configuration.setLed(led);
+            AxMetrics metrics = metricsReport ? new AxMetrics() : null;
+            int failed = provision(paths, configuration, workers, minimumBattery, overwrite, metrics);
+            if (metrics != null) {
+                System.out.print(metrics);
+            }
+            System.exit(failed > 0 ? 1 : 0);
+        }
+    }
+
+    // Configure the devices concurrently, returning the number not configured
+    private static int provision(List<String> paths, final AxConfiguration configuration, int workers, int minimumBattery, boolean overwrite, AxMetrics metrics) throws InterruptedException {
+        List<TtyProvisionTarget> targets = new ArrayList<TtyProvisionTarget>();
+        for (String path : paths) {
+            targets.add(new TtyProvisionTarget(path));
+        }
+        AxProvisioner provisioner = new AxProvisioner(Math.min(workers, targets.size()));
+        provisioner.setMinimumBattery(minimumBattery);
+        provisioner.setAllowOverwrite(overwrite);
+        provisioner.setMetrics(metrics);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final int[] failed = { 0 };
+        final long startTime = System.nanoTime();
+        provisioner.provision(targets, new AxProvisioner.Configurator() {
+            @Override
+            public AxConfiguration getConfiguration(int serialNumber) {
+                return configuration;
+            }
+        }, new AxProvisioner.Listener() {
+            @Override
+            public void onResult(AxProvisioner.Result result) {
+                synchronized (failed) {
+                    if (result.getOutcome() != AxProvisioner.Outcome.CONFIGURED) failed[0]++;
+                    System.out.println(result);
+                }
+            }
+
+            @Override
+            public void onFinished(int count) {
+                System.out.println("PROVISIONED: " + count + " device(s) in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+                finished.countDown();
+            }
+        });
+        finished.await();
+        provisioner.shutdown(1000);
+        synchronized (failed) {
+            return failed[0];
+        }
+    }
+
+    // Read and report each device's status concurrently, returning the exit code
+    private static int status(List<String> paths, int workers) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, paths.size())));
+        final int[] failed = { 0 };
+        for (final String path : paths) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TtyPort port = new TtyPort(path);
+                    String line;
+                    try {
+                        port.open();
+                        DeviceStatus status = new AxConfig(port).readStatus();
+                        line = path + " (" + port.getSerialNumber() + "): " + status;
+                    } catch (IOException e) {
+                        line = path + ": ERROR: " + e.getMessage();
+                        synchronized (failed) { failed[0]++; }
+                    } finally {
+                        port.close();
+                    }
+                    System.out.println(line);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        synchronized (failed) {
+            return failed[0] > 0 ? 1 : 0;
+        }
+    }
+
+    // Serve a simulated device on each tty (the device end of a pseudo-terminal pair) until stopped
+    private static void simulate(List<String> paths, long latencyMicros) throws IOException, InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (String path : paths) {
+            final TtyPort port = new TtyPort(path);
+            port.open();
+            final AxSimulator simulator = new AxSimulator(path.hashCode());
+            simulator.setLatency(latencyMicros, 0);
+            simulator.setWriteLatency(latencyMicros);
+            // Device output to the tty
+            Thread output = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[512];
+                    while (!port.isClosed()) {
+                        int count = simulator.read(buffer, 100, true);
+                        if (count > 0 && port.write(buffer, 0, count, 500) != count) break;
+                    }
+                }
+            }, "AxHost-simulate-out-" + path);
+            // Commands from the tty to the device
+            Thread input = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[512];
+                    while (!port.isClosed()) {
+                        int count = port.read(buffer, 100, true);
+                        if (count > 0) simulator.write(buffer, 0, count, 500);
+                    }
+                }
+            }, "AxHost-simulate-in-" + path);
+            output.start();
+            input.start();
+            threads.add(output);
+            threads.add(input);
+            System.out.println("SIMULATING: " + path);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+}
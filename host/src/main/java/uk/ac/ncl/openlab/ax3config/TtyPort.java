@@ -0,0 +1,244 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Open Movement AX3 Device on a Linux CDC-ACM tty (e.g. /dev/ttyACM0)
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Each open port has a reader thread: a tty cannot be opened non-blocking (or as a selectable channel) from the JDK,
+// so its input is read by blocking reads, buffered, and handed to the caller's read()s.
+public class TtyPort extends AbstractAxTransport {
+
+    private static final int INPUT_CAPACITY = 64 * 1024;
+    private static final int READ_SIZE = 512;
+
+    private final String path;
+    private FileChannel input = null;
+    private FileChannel output = null;
+    private final Object writeLock = new Object();
+
+    // Received bytes not yet read (filled by the reader thread)
+    private final ByteBuffer received = ByteBuffer.allocate(INPUT_CAPACITY);
+    private long overflow = 0;
+    private boolean closed = true;
+
+    public TtyPort(String path) {
+        this.path = path;
+    }
+
+    // CDC-ACM ttys of attached devices
+    public static List<String> getDevices() {
+        List<String> devices = new ArrayList<String>();
+        String[] names = new File("/dev").list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                if (name.startsWith("ttyACM")) devices.add("/dev/" + name);
+            }
+        }
+        return devices;
+    }
+
+    // Raw mode (no line discipline processing or echo), as the line settings are not available through the JDK
+    private void configure() throws IOException {
+        Process process = new ProcessBuilder("stty", "-F", path, "raw", "-echo", "-hupcl").redirectErrorStream(true).start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String message = reader.readLine();
+            if (process.waitFor() != 0) {
+                throw new IOException("Could not configure " + path + (message != null ? ": " + message : ""));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted configuring " + path);
+        }
+    }
+
+    // Open the tty, and start its reader thread (reads and writes use separate channels, so a blocked read does not hold up writes)
+    public void open() throws IOException {
+        long openStart = System.nanoTime();
+        configure();
+        input = new FileInputStream(path).getChannel();
+        try {
+            output = new FileOutputStream(path).getChannel();
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        synchronized (this) {
+            closed = false;
+            received.clear();
+        }
+        final FileChannel channel = input;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer data = ByteBuffer.allocate(READ_SIZE);
+                try {
+                    while (channel.read(data) >= 0) {
+                        data.flip();
+                        onReceived(data);
+                        data.clear();
+                    }
+                } catch (IOException e) {
+                    // (closed, or device removed)
+                } finally {
+                    onClosed();
+                }
+            }
+        }, "TtyPort-" + path);
+        reader.setDaemon(true);
+        reader.start();
+        if (metrics != null) metrics.recordOpen(System.nanoTime() - openStart);
+    }
+
+    // USB serial number of the tty's device (e.g. "CWA17_12345"), from sysfs, or -1 if not known (e.g. a pseudo-terminal)
+    public int getSerialNumber() {
+        String usbSerial = null;
+        try {
+            String name = new File(path).getCanonicalFile().getName();
+            File device = new File("/sys/class/tty/" + name + "/device").getCanonicalFile();
+            BufferedReader reader = new BufferedReader(new FileReader(new File(device.getParentFile(), "serial")));
+            try {
+                usbSerial = reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return parseSerialNumber(usbSerial);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    // Bytes discarded because they were not read quickly enough
+    public synchronized long getOverflow() {
+        return overflow;
+    }
+
+    // Whether the input has ended
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Data from the reader thread
+    private synchronized void onReceived(ByteBuffer data) {
+        int count = Math.min(data.remaining(), received.remaining());
+        if (count < data.remaining()) {
+            overflow += data.remaining() - count;
+        }
+        int limit = data.limit();
+        data.limit(data.position() + count);
+        received.put(data);
+        data.limit(limit);
+        notifyAll();
+    }
+
+    // Input ended (closed, or device removed)
+    private synchronized void onClosed() {
+        closed = true;
+        notifyAll();
+    }
+
+    // Read bytes
+    public synchronized int read(byte[] buffer, int timeoutMS, boolean single) {
+        long deadline = System.nanoTime() + timeoutMS * 1000000L;
+        int offset = 0;
+        while (offset < buffer.length) {
+            if (received.position() > 0) {
+                received.flip();
+                int count = Math.min(buffer.length - offset, received.remaining());
+                received.get(buffer, offset, count);
+                received.compact();
+                offset += count;
+                if (single) break;
+                continue;
+            }
+            if (closed) break;
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) break;   // time-out
+            try {
+                wait(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return offset;
+    }
+
+    // Write bytes (a tty write completes once the kernel has buffered the data, so the time-out is not needed)
+    public int write(byte[] buffer, int offset, int length, int timeoutMS) {
+        synchronized (writeLock) {
+            FileChannel channel = output;
+            if (channel == null) return 0;
+            ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                // (closed, or device removed)
+            }
+            return data.position() - offset;
+        }
+    }
+
+    // Close the tty (ends the reader thread)
+    public void close() {
+        synchronized (writeLock) {
+            if (output != null) {
+                try { output.close(); } catch (IOException e) { }
+                output = null;
+            }
+        }
+        if (input != null) {
+            try { input.close(); } catch (IOException e) { }
+        }
+        onClosed();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+* Copyright (c) 2018, Newcastle University, UK.
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+* 1. Redistributions of source code must retain the above copyright notice,
+*    this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+
+// Open Movement AX3 Device on a tty as a provisioning target
+
+package uk.ac.ncl.openlab.ax3config;
+
+import java.io.IOException;
+
+public class TtyProvisionTarget implements AxProvisioner.Target {
+
+    private final String path;
+    private TtyPort port = null;
+    private AxConfig config = null;
+
+    public TtyProvisionTarget(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public AxTransport open() throws IOException {
+        port = new TtyPort(path);
+        port.open();
+        config = new AxConfig(port);
+        return port;
+    }
+
+    @Override
+    public AxConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public int getSerialNumber() {
+        return port.getSerialNumber();
+    }
+
+    @Override
+    public void close(boolean failed) {
+        if (port != null) {
+            port.close();
+            port = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+}